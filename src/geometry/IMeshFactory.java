@@ -1,5 +1,17 @@
 package geometry;
 
+import java.util.concurrent.CompletableFuture;
+
 public interface IMeshFactory {
     Mesh create(String name);
+
+    /**
+     * Loads the mesh on a worker thread, the future completes once {@link #processUploads()} uploaded it.
+     */
+    CompletableFuture<Mesh> createAsync(String name);
+
+    /**
+     * Uploads meshes finished by {@link #createAsync(String)}, called once per frame on the render thread.
+     */
+    int processUploads();
 }
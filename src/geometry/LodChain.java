@@ -0,0 +1,51 @@
+package geometry;
+
+import java.nio.IntBuffer;
+
+/**
+ * Index ranges of all levels of detail of a mesh. Every level indexes the same vertex buffer, the ranges are
+ * stored back to back in one index buffer with level 0 being the full resolution mesh.
+ */
+public final class LodChain {
+
+    private final IntBuffer indices;
+    private final int[] offsets;
+    private final int[] counts;
+    private final float[] errors;
+
+    public LodChain(IntBuffer i, int[] o, int[] c, float[] e) {
+        if (o.length == 0 || o.length != c.length || o.length != e.length)
+            throw new IllegalStateException("Level of detail tables do not match!");
+        indices = i;
+        offsets = o;
+        counts = c;
+        errors = e;
+    }
+
+    public static LodChain of(IntBuffer indices) {
+        return new LodChain(indices, new int[]{0}, new int[]{indices.remaining()}, new float[]{0f});
+    }
+
+    public IntBuffer getIndices() {
+        return indices;
+    }
+
+    public int getLevelCount() {
+        return offsets.length;
+    }
+
+    public int getOffset(int level) {
+        return offsets[level];
+    }
+
+    public int getCount(int level) {
+        return counts[level];
+    }
+
+    /**
+     * Object space deviation of the level from the full resolution mesh.
+     */
+    public float getError(int level) {
+        return errors[level];
+    }
+}
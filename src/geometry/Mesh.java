@@ -1,11 +1,16 @@
 package geometry;
 
 import geometry.loaders.Material;
+import renderers.MeshArena;
 import renderers.MeshRenderer;
 import org.lwjgl.opengl.GL11;
+import utils.BatchMath;
+import utils.OcclusionCuller;
 
+import java.nio.Buffer;
 import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
+import java.util.Arrays;
 
 public class Mesh {
 
@@ -18,17 +23,138 @@ public class Mesh {
     private int vertexArrayIndex;
 
     private int indicesCount;
+    private int indexType;
+
+    private MeshArena arena;
+    private MeshArena.Allocation arenaAllocation;
+
+    private Buffer pendingVertices;
+    private Buffer pendingIndices;
+    private long uploadSize;
+
+    private int[] lodOffsets = {0};
+    private int[] lodCounts = {0};
+    private float[] lodErrors = {0f};
+
+    private VertexFormat vertexFormat;
+    private final float[] positionOffset = {0f, 0f, 0f};
+    private final float[] positionScale = {1f, 1f, 1f};
+    private final float[] bounds = new float[6];
+    private final float[] boundingSphere = new float[4];
+    private TriangleBvh triangleBvh;
+    private OcclusionCuller.Occluder occluder;
 
     public Mesh(String n) {
         name = n;
         meshRenderer = new MeshRenderer(this);
         renderMode = GL11.GL_TRIANGLES;
+        indexType = GL11.GL_UNSIGNED_INT;
+        vertexFormat = VertexFormat.FLOAT;
+    }
+
+    /**
+     * Selects the GPU side vertex layout, has to be called before {@link #initialize(FloatBuffer, LodChain)}.
+     */
+    public void setVertexFormat(VertexFormat format) {
+        vertexFormat = format;
+    }
+
+    /**
+     * Uploads into the shared buffers of the arena instead of buffers of its own, has to be called before
+     * {@link #upload()}.
+     */
+    public void setArena(MeshArena meshArena) {
+        arena = meshArena;
     }
 
     public void initialize(FloatBuffer buffer, IntBuffer indices) {
+        initialize(buffer, LodChain.of(indices));
+    }
+
+    public void initialize(FloatBuffer buffer, LodChain lodChain) {
+        prepare(buffer, lodChain);
+        upload();
+    }
+
+    /**
+     * Builds the GPU side buffers without touching GL, so it can run on a loader thread. {@link #upload()} has to
+     * follow on the thread owning the context.
+     */
+    public void prepare(FloatBuffer buffer, LodChain lodChain) {
+        final IntBuffer indices = lodChain.getIndices();
+        final int vertexCount = buffer.remaining() / VertexQuantizer.SOURCE_STRIDE;
+        computeBounds(buffer, vertexCount);
+
+        Buffer vertexData = buffer;
+        if (vertexFormat == VertexFormat.COMPACT) {
+            vertexData = VertexQuantizer.quantize(buffer, positionOffset, positionScale);
+        }
+
+        Buffer indexData = indices;
+        indexType = GL11.GL_UNSIGNED_INT;
+        if (vertexCount < VertexQuantizer.MAX_SHORT_INDEXED_VERTICES) {
+            indexData = VertexQuantizer.toShortIndices(indices);
+            indexType = GL11.GL_UNSIGNED_SHORT;
+        }
+
+        final int levels = lodChain.getLevelCount();
+        lodOffsets = new int[levels];
+        lodCounts = new int[levels];
+        lodErrors = new float[levels];
+        for (int l = 0; l < levels; l++) {
+            lodOffsets[l] = lodChain.getOffset(l);
+            lodCounts[l] = lodChain.getCount(l);
+            lodErrors[l] = lodChain.getError(l);
+        }
 
-        indicesCount = indices.capacity();
-        vertexArrayIndex = meshRenderer.initVertexArrayObject(buffer, indices);
+        indicesCount = lodCounts[0];
+        pendingVertices = vertexData;
+        pendingIndices = indexData;
+        uploadSize = (long) vertexData.remaining() * (vertexData instanceof FloatBuffer ? Float.BYTES : 1)
+                + (long) indexData.remaining() * (indexType == GL11.GL_UNSIGNED_SHORT ? Short.BYTES : Integer.BYTES);
+    }
+
+    private void computeBounds(FloatBuffer buffer, int vertexCount) {
+        if (vertexCount == 0) {
+            Arrays.fill(bounds, 0f);
+            Arrays.fill(boundingSphere, 0f);
+            return;
+        }
+        final int stride = VertexQuantizer.SOURCE_STRIDE;
+        BatchMath.bounds(buffer, buffer.position(), stride, vertexCount, bounds);
+        for (int i = 0; i < 3; i++) {
+            boundingSphere[i] = (bounds[BatchMath.MIN_X + i] + bounds[BatchMath.MAX_X + i]) * 0.5f;
+        }
+        boundingSphere[3] = BatchMath.maxDistance(buffer, buffer.position(), stride, vertexCount, boundingSphere[0],
+                boundingSphere[1], boundingSphere[2]);
+    }
+
+    public void upload() {
+        if (pendingVertices == null) throw new IllegalStateException("Mesh " + name + " has nothing to upload!");
+
+        if (arena != null) {
+            arenaAllocation = arena.allocate(vertexFormat, pendingVertices, pendingIndices);
+        } else {
+            vertexArrayIndex = meshRenderer.initVertexArrayObject(pendingVertices, pendingIndices, vertexFormat);
+        }
+        pendingVertices = null;
+        pendingIndices = null;
+    }
+
+    /**
+     * Returns the mesh's range of the arena, a mesh with buffers of its own cannot be released yet.
+     */
+    public void release() {
+        if (arenaAllocation == null) return;
+        arena.free(arenaAllocation);
+        arenaAllocation = null;
+    }
+
+    /**
+     * Bytes the pending {@link #upload()} transfers to the GPU.
+     */
+    public long getUploadSize() {
+        return uploadSize;
     }
 
     public void addComponent(Object comp) {
@@ -36,13 +162,108 @@ public class Mesh {
     }
 
     public int getVertexArrayIndex() {
-        return vertexArrayIndex;
+        return arenaAllocation == null ? vertexArrayIndex : arenaAllocation.getVertexArray();
+    }
+
+    /**
+     * Offset added to every index, non zero when the mesh lives in an arena.
+     */
+    public int getBaseVertex() {
+        return arenaAllocation == null ? 0 : arenaAllocation.getBaseVertex();
+    }
+
+    public boolean isInArena() {
+        return arenaAllocation != null;
     }
 
     public int getIndicesCount() {
         return indicesCount;
     }
 
+    public int getLevelOfDetailCount() {
+        return lodCounts.length;
+    }
+
+    public int getIndicesCount(int level) {
+        return lodCounts[level];
+    }
+
+    /**
+     * Byte offset of the level in the index buffer, as expected by glDrawElements.
+     */
+    public long getIndicesOffset(int level) {
+        final long base = arenaAllocation == null ? 0L : arenaAllocation.getIndexOffset();
+        return base + (long) lodOffsets[level] * (indexType == GL11.GL_UNSIGNED_SHORT ? Short.BYTES : Integer.BYTES);
+    }
+
+    /**
+     * Coarsest level whose projected error stays below {@code threshold} pixels. Switching back to a finer level
+     * only happens once the error exceeds the threshold by the hysteresis factor, which avoids popping between
+     * two levels at a constant distance.
+     */
+    public int selectLevelOfDetail(int current, float pixelsPerUnit, float threshold, float hysteresis) {
+        int level = 0;
+        while (level + 1 < lodErrors.length && lodErrors[level + 1] * pixelsPerUnit <= threshold) level++;
+
+        if (level < current && current < lodErrors.length
+                && lodErrors[current] * pixelsPerUnit <= threshold * hysteresis) return current;
+        return level;
+    }
+
+    public int getIndexType() {
+        return indexType;
+    }
+
+    public VertexFormat getVertexFormat() {
+        return vertexFormat;
+    }
+
+    /**
+     * Axis aligned bounds in model space, min xyz followed by max xyz.
+     */
+    public float[] getBounds() {
+        return bounds;
+    }
+
+    /**
+     * Bounding sphere around the centre of the bounds, centre xyz followed by the radius.
+     */
+    public float[] getBoundingSphere() {
+        return boundingSphere;
+    }
+
+    /**
+     * Hierarchy over the triangles of the full resolution level in model space, null unless the factory was asked
+     * to build one.
+     */
+    public TriangleBvh getTriangleBvh() {
+        return triangleBvh;
+    }
+
+    public void setTriangleBvh(TriangleBvh bvh) {
+        triangleBvh = bvh;
+    }
+
+    /**
+     * Positions and triangles of the coarsest level of detail for occlusion culling, null unless the factory was
+     * asked to keep them.
+     */
+    public OcclusionCuller.Occluder getOccluder() {
+        return occluder;
+    }
+
+    public void setOccluder(OcclusionCuller.Occluder o) {
+        occluder = o;
+    }
+
+    public float[] getPositionOffset() {
+        return positionOffset;
+    }
+
+    public float[] getPositionScale() {
+        return positionScale;
+    }
+
     public Material getMaterial() {
         return material;
     }
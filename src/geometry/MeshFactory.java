@@ -1,33 +1,219 @@
 package geometry;
 
 import geometry.loaders.Material;
+import geometry.loaders.MeshCache;
 import geometry.loaders.MeshLoader;
 import geometry.loaders.MeshLoaderWaveFront;
+import renderers.MeshArena;
+import utils.OcclusionCuller;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
 
 
 public class MeshFactory implements IMeshFactory {
 
-    private MeshLoader waveFrontLoader = new MeshLoaderWaveFront();
+    private static final int OPTIMIZED_FLAG = 1;
+    private static final int SIMPLIFIED_FLAG = 2;
+    private static final int TRIANGLE_BVH_FLAG = 4;
+
+    private final ThreadLocal<MeshLoader> waveFrontLoader;
+    private final MeshUploadQueue uploadQueue = new MeshUploadQueue();
+    private Executor loadExecutor = ForkJoinPool.commonPool();
+
+    private MeshCache meshCache;
+    private MeshArena meshArena;
+    private MeshOptimizer meshOptimizer;
+    private volatile MeshOptimizer.Statistics optimizationStatistics;
+    private MeshSimplifier meshSimplifier;
+    private VertexFormat vertexFormat = VertexFormat.FLOAT;
+    private boolean triangleBvhEnabled;
+    private boolean occludersEnabled;
+
+    public MeshFactory() {
+        this(null);
+    }
+
+    /**
+     * Loaders keep scratch buffers between meshes, so every loading thread gets its own.
+     */
+    public MeshFactory(Path assetRoot) {
+        waveFrontLoader = ThreadLocal.withInitial(() -> {
+            MeshLoader loader = new MeshLoaderWaveFront();
+            loader.setAssetRoot(assetRoot);
+            return loader;
+        });
+    }
+
+    public void setCacheDirectory(Path directory) {
+        meshCache = directory == null ? null : new MeshCache(directory);
+    }
+
+    public void setVertexFormat(VertexFormat format) {
+        vertexFormat = format;
+    }
+
+    /**
+     * Sub allocates all created meshes from the shared buffers of the arena.
+     */
+    public void setArena(MeshArena arena) {
+        meshArena = arena;
+    }
+
+    public void setLoadExecutor(Executor executor) {
+        loadExecutor = executor;
+    }
+
+    /**
+     * Limits the GL uploads done by one {@link #processUploads()} call.
+     */
+    public void setUploadBudget(long nanos, long bytes) {
+        uploadQueue.setBudget(nanos, bytes);
+    }
+
+    public MeshUploadQueue getUploadQueue() {
+        return uploadQueue;
+    }
+
+    /**
+     * Reorders triangles and vertices of every parsed mesh before it is uploaded and cached.
+     */
+    public void setOptimizer(MeshOptimizer optimizer) {
+        meshOptimizer = optimizer;
+    }
+
+    /**
+     * Generates coarser levels of detail for every parsed mesh, the renderer picks one by projected error.
+     */
+    public void setSimplifier(MeshSimplifier simplifier) {
+        meshSimplifier = simplifier;
+    }
+
+    /**
+     * Builds a {@link TriangleBvh} for picking on every created mesh, it is cached along with the mesh.
+     */
+    public void setTriangleBvhEnabled(boolean enabled) {
+        triangleBvhEnabled = enabled;
+    }
+
+    /**
+     * Keeps the coarsest level of detail of every created mesh on the CPU, so it can be rendered as an occluder.
+     */
+    public void setOccludersEnabled(boolean enabled) {
+        occludersEnabled = enabled;
+    }
+
+    /**
+     * Cache statistics of the last optimised mesh, null if it came from the cache or optimisation is off.
+     */
+    public MeshOptimizer.Statistics getOptimizationStatistics() {
+        return optimizationStatistics;
+    }
 
     @Override
     public Mesh create(String name) {
+        Mesh mesh = prepare(name);
+        mesh.upload();
+        return mesh;
+    }
+
+    @Override
+    public CompletableFuture<Mesh> createAsync(String name) {
+        return CompletableFuture.supplyAsync(() -> prepare(name), loadExecutor).thenCompose(uploadQueue::submit);
+    }
+
+    @Override
+    public int processUploads() {
+        return uploadQueue.drain();
+    }
+
+    /**
+     * Loads, optimises and encodes the mesh without any GL call.
+     */
+    private Mesh prepare(String name) {
         if (name.equals("")) throw new IllegalStateException("Mesh name is empty!");
 
         MeshLoader loader;
         Mesh mesh = new Mesh(name);
 
         if (name.endsWith(".obj")) {
-            loader = waveFrontLoader;
+            loader = waveFrontLoader.get();
         } else throw new IllegalStateException("Unable to load mesh: unsupported format!");
 
-        loader.loadMesh(name);
+        FloatBuffer vertices;
+        LodChain lodChain;
+        TriangleBvh triangleBvh = null;
+        MeshOptimizer.Statistics statistics = null;
+
+        int flags = meshOptimizer == null ? 0 : OPTIMIZED_FLAG;
+        if (meshSimplifier != null) flags |= SIMPLIFIED_FLAG;
+        if (triangleBvhEnabled) flags |= TRIANGLE_BVH_FLAG;
+
+        MeshCache.Entry cached = meshCache == null ? null : meshCache.find(name, loader, flags);
+        if (cached != null) {
+            loader.loadMaterialLibraries(cached.getMaterialLibraries());
+            vertices = cached.getVertices();
+            lodChain = new LodChain(cached.getIndices(), cached.getLevelOffsets(), cached.getLevelCounts(),
+                    cached.getLevelErrors());
+            if (triangleBvhEnabled) {
+                triangleBvh = TriangleBvh.of(cached.getBvhBounds(), cached.getBvhNodes(),
+                        cached.getBvhTriangleIds(), vertices, cached.getVertexStride(), lodChain.getIndices(),
+                        lodChain.getOffset(0));
+            }
+        } else {
+            loader.loadMesh(name);
+            vertices = loader.getVerticesBuffer();
+            IntBuffer indices = loader.getIndicesBuffer();
+            if (meshOptimizer != null) {
+                statistics = meshOptimizer.optimize(vertices, indices, loader.getVertexStride());
+            }
+            lodChain = meshSimplifier == null ? LodChain.of(indices)
+                    : meshSimplifier.simplify(vertices, indices, loader.getVertexStride());
+            if (triangleBvhEnabled) {
+                triangleBvh = TriangleBvh.build(vertices, loader.getVertexStride(), lodChain.getIndices(),
+                        lodChain.getOffset(0), lodChain.getCount(0));
+            }
+            if (meshCache != null) store(name, loader, flags, vertices, lodChain, triangleBvh);
+        }
 
         Material mat = loader.getMaterial();
         if (mat == null) mat = new Material("material " + name);
 
         mesh.addComponent(mat);
-        mesh.initialize(loader.getVerticesBuffer(), loader.getIndicesBuffer());
+        mesh.setVertexFormat(vertexFormat);
+        mesh.setArena(meshArena);
+        mesh.setTriangleBvh(triangleBvh);
+        if (occludersEnabled) {
+            final int level = lodChain.getLevelCount() - 1;
+            mesh.setOccluder(OcclusionCuller.Occluder.of(vertices, loader.getVertexStride(), lodChain.getIndices(),
+                    lodChain.getOffset(level), lodChain.getCount(level)));
+        }
+        mesh.prepare(vertices, lodChain);
+        optimizationStatistics = statistics;
 
         return mesh;
     }
+
+    private void store(String name, MeshLoader loader, int flags, FloatBuffer vertices, LodChain lodChain,
+                       TriangleBvh triangleBvh) {
+        final int levels = lodChain.getLevelCount();
+        final int[] offsets = new int[levels];
+        final int[] counts = new int[levels];
+        final float[] errors = new float[levels];
+        for (int l = 0; l < levels; l++) {
+            offsets[l] = lodChain.getOffset(l);
+            counts[l] = lodChain.getCount(l);
+            errors[l] = lodChain.getError(l);
+        }
+        if (triangleBvh == null) {
+            meshCache.store(name, loader, flags, vertices, lodChain.getIndices(), offsets, counts, errors);
+        } else {
+            meshCache.store(name, loader, flags, vertices, lodChain.getIndices(), offsets, counts, errors,
+                    triangleBvh.getBounds(), triangleBvh.getNodes(), triangleBvh.getTriangleIds());
+        }
+    }
 }
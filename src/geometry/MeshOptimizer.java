@@ -0,0 +1,408 @@
+package geometry;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/**
+ * CPU side index and vertex reordering for indexed triangle lists. Triangles are first ordered for the post
+ * transform cache (Forsyth's linear speed vertex cache optimisation), then cache friendly clusters are sorted
+ * front to back to reduce overdraw, and finally vertices are renumbered in the order they are fetched.
+ */
+public final class MeshOptimizer {
+
+    public static final int DEFAULT_CACHE_SIZE = 16;
+    public static final float DEFAULT_OVERDRAW_THRESHOLD = 1.05f;
+
+    private static final int SCORE_CACHE_SIZE = 32;
+    private static final int MAX_VALENCE = 32;
+    private static final float CACHE_DECAY_POWER = 1.5f;
+    private static final float LAST_TRIANGLE_SCORE = 0.75f;
+    private static final float VALENCE_BOOST_SCALE = 2.0f;
+    private static final float VALENCE_BOOST_POWER = 0.5f;
+
+    private static final float[] cachePositionScores = new float[SCORE_CACHE_SIZE];
+    private static final float[] valenceScores = new float[MAX_VALENCE + 1];
+
+    static {
+        final float scaler = 1f / (SCORE_CACHE_SIZE - 3);
+        for (int i = 0; i < SCORE_CACHE_SIZE; i++) {
+            cachePositionScores[i] = i < 3 ? LAST_TRIANGLE_SCORE : (float) Math.pow(1f - (i - 3) * scaler, CACHE_DECAY_POWER);
+        }
+        for (int i = 1; i <= MAX_VALENCE; i++) {
+            valenceScores[i] = VALENCE_BOOST_SCALE * (float) Math.pow(i, -VALENCE_BOOST_POWER);
+        }
+    }
+
+    private final int cacheSize;
+    private final float overdrawThreshold;
+
+    public MeshOptimizer() {
+        this(DEFAULT_CACHE_SIZE, DEFAULT_OVERDRAW_THRESHOLD);
+    }
+
+    public MeshOptimizer(int size, float threshold) {
+        if (size < 3) throw new IllegalStateException("Vertex cache size must be at least 3!");
+        cacheSize = size;
+        overdrawThreshold = threshold;
+    }
+
+    /**
+     * Reorders the remaining part of both buffers in place. Positions are expected in the first three floats of
+     * every vertex.
+     */
+    public Statistics optimize(FloatBuffer vertices, IntBuffer indices, int vertexStride) {
+        final int indexCount = indices.remaining();
+        final int vertexCount = vertices.remaining() / vertexStride;
+
+        final int[] indexData = new int[indexCount];
+        final float[] vertexData = new float[vertexCount * vertexStride];
+        indices.duplicate().get(indexData);
+        vertices.duplicate().get(vertexData);
+
+        final float acmrBefore = computeAcmr(indexData, indexCount, vertexCount, cacheSize);
+        final float atvrBefore = computeAtvr(indexData, indexCount, vertexCount, cacheSize);
+
+        optimizeVertexCache(indexData, indexCount, vertexCount);
+        optimizeOverdraw(indexData, indexCount, vertexData, vertexStride, vertexCount);
+        optimizeVertexFetch(vertexData, vertexStride, vertexCount, indexData, indexCount);
+
+        indices.duplicate().put(indexData);
+        vertices.duplicate().put(vertexData);
+
+        return new Statistics(acmrBefore, computeAcmr(indexData, indexCount, vertexCount, cacheSize),
+                atvrBefore, computeAtvr(indexData, indexCount, vertexCount, cacheSize));
+    }
+
+    public void optimizeVertexCache(int[] indices, int indexCount, int vertexCount) {
+        final int triangleCount = indexCount / 3;
+        if (triangleCount == 0) return;
+
+        final int[] remaining = new int[vertexCount];
+        for (int i = 0; i < triangleCount * 3; i++) remaining[indices[i]]++;
+
+        final int[] offsets = new int[vertexCount + 1];
+        for (int v = 0; v < vertexCount; v++) offsets[v + 1] = offsets[v] + remaining[v];
+
+        final int[] adjacency = new int[triangleCount * 3];
+        final int[] fill = Arrays.copyOf(offsets, vertexCount);
+        for (int i = 0; i < triangleCount * 3; i++) adjacency[fill[indices[i]]++] = i / 3;
+
+        final float[] vertexScores = new float[vertexCount];
+        for (int v = 0; v < vertexCount; v++) vertexScores[v] = getVertexScore(-1, remaining[v]);
+
+        final float[] triangleScores = new float[triangleCount];
+        int bestTriangle = 0;
+        for (int t = 0; t < triangleCount; t++) {
+            triangleScores[t] = vertexScores[indices[t * 3]] + vertexScores[indices[t * 3 + 1]] + vertexScores[indices[t * 3 + 2]];
+            if (triangleScores[t] > triangleScores[bestTriangle]) bestTriangle = t;
+        }
+
+        final boolean[] emitted = new boolean[triangleCount];
+        final int[] output = new int[triangleCount * 3];
+        int[] cache = new int[SCORE_CACHE_SIZE + 3];
+        int[] nextCache = new int[SCORE_CACHE_SIZE + 3];
+        int cacheCount = 0;
+        int scanCursor = 0;
+
+        for (int k = 0; k < triangleCount; k++) {
+            if (bestTriangle < 0) {
+                while (emitted[scanCursor]) scanCursor++;
+                bestTriangle = scanCursor;
+            }
+
+            emitted[bestTriangle] = true;
+            int nextCount = 0;
+            for (int c = 0; c < 3; c++) {
+                final int v = indices[bestTriangle * 3 + c];
+                output[k * 3 + c] = v;
+
+                removeTriangle(adjacency, offsets[v], remaining[v], bestTriangle);
+                remaining[v]--;
+
+                if (!contains(nextCache, nextCount, v)) nextCache[nextCount++] = v;
+            }
+            for (int i = 0; i < cacheCount; i++) {
+                if (!contains(nextCache, nextCount, cache[i])) nextCache[nextCount++] = cache[i];
+            }
+
+            for (int i = 0; i < nextCount; i++) {
+                final int v = nextCache[i];
+                final float score = getVertexScore(i < SCORE_CACHE_SIZE ? i : -1, remaining[v]);
+                final float delta = score - vertexScores[v];
+                vertexScores[v] = score;
+                for (int a = offsets[v]; a < offsets[v] + remaining[v]; a++) triangleScores[adjacency[a]] += delta;
+            }
+
+            bestTriangle = -1;
+            float bestScore = -Float.MAX_VALUE;
+            cacheCount = Math.min(nextCount, SCORE_CACHE_SIZE);
+            for (int i = 0; i < cacheCount; i++) {
+                final int v = nextCache[i];
+                for (int a = offsets[v]; a < offsets[v] + remaining[v]; a++) {
+                    final int t = adjacency[a];
+                    if (triangleScores[t] > bestScore) {
+                        bestScore = triangleScores[t];
+                        bestTriangle = t;
+                    }
+                }
+            }
+
+            final int[] swap = cache;
+            cache = nextCache;
+            nextCache = swap;
+        }
+
+        System.arraycopy(output, 0, indices, 0, output.length);
+    }
+
+    /**
+     * Splits the cache optimised triangle order into clusters and sorts them so that clusters facing away from
+     * the mesh centre are drawn first. Clusters only break where the vertex cache would mostly miss anyway, which
+     * keeps the cache efficiency within the configured threshold.
+     */
+    public void optimizeOverdraw(int[] indices, int indexCount, float[] vertices, int vertexStride, int vertexCount) {
+        final int triangleCount = indexCount / 3;
+        if (triangleCount < 2) return;
+
+        final int[] timestamps = new int[vertexCount];
+        final int[] clusters = new int[triangleCount + 1];
+        int clusterCount = 0;
+
+        int time = cacheSize + 1;
+        for (int t = 0; t < triangleCount; t++) {
+            int misses = 0;
+            for (int c = 0; c < 3; c++) {
+                final int v = indices[t * 3 + c];
+                if (time - timestamps[v] > cacheSize) {
+                    timestamps[v] = time++;
+                    misses++;
+                }
+            }
+            if (t == 0 || misses == 3) clusters[clusterCount++] = t;
+        }
+        clusters[clusterCount] = triangleCount;
+
+        final int[] softClusters = new int[triangleCount + 1];
+        int softCount = 0;
+        for (int i = 0; i < clusterCount; i++) {
+            final int start = clusters[i];
+            final int end = clusters[i + 1];
+
+            time += cacheSize + 1;
+            final int clusterStartTime = time;
+            for (int t = start * 3; t < end * 3; t++) {
+                final int v = indices[t];
+                if (time - timestamps[v] > cacheSize) timestamps[v] = time++;
+            }
+            final float clusterAcmr = (float) (time - clusterStartTime) / (end - start);
+
+            time += cacheSize + 1;
+            int splitTime = time;
+            int clusterStart = start;
+            softClusters[softCount++] = start;
+            for (int t = start; t < end; t++) {
+                for (int c = 0; c < 3; c++) {
+                    final int v = indices[t * 3 + c];
+                    if (time - timestamps[v] > cacheSize) timestamps[v] = time++;
+                }
+                if (t + 1 < end && time - splitTime <= clusterAcmr * overdrawThreshold * (t + 1 - clusterStart)) {
+                    softClusters[softCount++] = t + 1;
+                    clusterStart = t + 1;
+                    time += cacheSize + 1;
+                    splitTime = time;
+                }
+            }
+        }
+        softClusters[softCount] = triangleCount;
+
+        float mx = 0f;
+        float my = 0f;
+        float mz = 0f;
+        for (int v = 0; v < vertexCount; v++) {
+            mx += vertices[v * vertexStride];
+            my += vertices[v * vertexStride + 1];
+            mz += vertices[v * vertexStride + 2];
+        }
+        mx /= vertexCount;
+        my /= vertexCount;
+        mz /= vertexCount;
+
+        final long[] sortKeys = new long[softCount];
+        for (int i = 0; i < softCount; i++) {
+            float cx = 0f, cy = 0f, cz = 0f;
+            float nx = 0f, ny = 0f, nz = 0f;
+            float area = 0f;
+
+            for (int t = softClusters[i]; t < softClusters[i + 1]; t++) {
+                final int a = indices[t * 3] * vertexStride;
+                final int b = indices[t * 3 + 1] * vertexStride;
+                final int c = indices[t * 3 + 2] * vertexStride;
+
+                final float e1x = vertices[b] - vertices[a];
+                final float e1y = vertices[b + 1] - vertices[a + 1];
+                final float e1z = vertices[b + 2] - vertices[a + 2];
+                final float e2x = vertices[c] - vertices[a];
+                final float e2y = vertices[c + 1] - vertices[a + 1];
+                final float e2z = vertices[c + 2] - vertices[a + 2];
+
+                final float px = e1y * e2z - e1z * e2y;
+                final float py = e1z * e2x - e1x * e2z;
+                final float pz = e1x * e2y - e1y * e2x;
+                final float triangleArea = (float) Math.sqrt(px * px + py * py + pz * pz);
+
+                cx += (vertices[a] + vertices[b] + vertices[c]) / 3f * triangleArea;
+                cy += (vertices[a + 1] + vertices[b + 1] + vertices[c + 1]) / 3f * triangleArea;
+                cz += (vertices[a + 2] + vertices[b + 2] + vertices[c + 2]) / 3f * triangleArea;
+                nx += px;
+                ny += py;
+                nz += pz;
+                area += triangleArea;
+            }
+
+            final float inverseArea = area == 0f ? 0f : 1f / area;
+            final float normalLength = (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+            final float inverseNormal = normalLength == 0f ? 0f : 1f / normalLength;
+            final float key = ((cx * inverseArea - mx) * nx + (cy * inverseArea - my) * ny + (cz * inverseArea - mz) * nz) * inverseNormal;
+
+            sortKeys[i] = (long) toSortableBits(-key) << 32 | i;
+        }
+        Arrays.sort(sortKeys);
+
+        final int[] output = new int[triangleCount * 3];
+        int written = 0;
+        for (long sortKey : sortKeys) {
+            final int cluster = (int) sortKey;
+            final int start = softClusters[cluster] * 3;
+            final int length = softClusters[cluster + 1] * 3 - start;
+            System.arraycopy(indices, start, output, written, length);
+            written += length;
+        }
+        System.arraycopy(output, 0, indices, 0, output.length);
+    }
+
+    /**
+     * Renumbers vertices in order of first use and returns the number of referenced vertices.
+     * Unreferenced vertices are kept after the referenced ones.
+     */
+    public int optimizeVertexFetch(float[] vertices, int vertexStride, int vertexCount, int[] indices, int indexCount) {
+        final int[] remap = new int[vertexCount];
+        Arrays.fill(remap, -1);
+
+        int next = 0;
+        for (int i = 0; i < indexCount; i++) {
+            final int v = indices[i];
+            if (remap[v] < 0) remap[v] = next++;
+            indices[i] = remap[v];
+        }
+        final int referenced = next;
+        for (int v = 0; v < vertexCount; v++) {
+            if (remap[v] < 0) remap[v] = next++;
+        }
+
+        final float[] reordered = new float[vertexCount * vertexStride];
+        for (int v = 0; v < vertexCount; v++) {
+            System.arraycopy(vertices, v * vertexStride, reordered, remap[v] * vertexStride, vertexStride);
+        }
+        System.arraycopy(reordered, 0, vertices, 0, reordered.length);
+        return referenced;
+    }
+
+    /**
+     * Average cache miss ratio: transformed vertices per triangle for a FIFO cache of the given size.
+     */
+    public static float computeAcmr(int[] indices, int indexCount, int vertexCount, int cacheSize) {
+        final int triangleCount = indexCount / 3;
+        if (triangleCount == 0) return 0f;
+        return (float) simulateFifo(indices, indexCount, vertexCount, cacheSize) / triangleCount;
+    }
+
+    /**
+     * Average transform to vertex ratio, 1.0 means every vertex is transformed exactly once.
+     */
+    public static float computeAtvr(int[] indices, int indexCount, int vertexCount, int cacheSize) {
+        if (vertexCount == 0) return 0f;
+        return (float) simulateFifo(indices, indexCount, vertexCount, cacheSize) / vertexCount;
+    }
+
+    private static int simulateFifo(int[] indices, int indexCount, int vertexCount, int cacheSize) {
+        final int[] timestamps = new int[vertexCount];
+        int time = cacheSize + 1;
+        int misses = 0;
+        for (int i = 0; i < indexCount - indexCount % 3; i++) {
+            final int v = indices[i];
+            if (time - timestamps[v] > cacheSize) {
+                timestamps[v] = time++;
+                misses++;
+            }
+        }
+        return misses;
+    }
+
+    private static float getVertexScore(int cachePosition, int remainingTriangles) {
+        if (remainingTriangles == 0) return -1f;
+
+        float score = cachePosition < 0 ? 0f : cachePositionScores[cachePosition];
+        score += remainingTriangles <= MAX_VALENCE ? valenceScores[remainingTriangles]
+                : VALENCE_BOOST_SCALE * (float) Math.pow(remainingTriangles, -VALENCE_BOOST_POWER);
+        return score;
+    }
+
+    private static void removeTriangle(int[] adjacency, int offset, int count, int triangle) {
+        for (int a = offset; a < offset + count; a++) {
+            if (adjacency[a] == triangle) {
+                adjacency[a] = adjacency[offset + count - 1];
+                adjacency[offset + count - 1] = triangle;
+                return;
+            }
+        }
+    }
+
+    private static boolean contains(int[] values, int count, int value) {
+        for (int i = 0; i < count; i++) {
+            if (values[i] == value) return true;
+        }
+        return false;
+    }
+
+    private static int toSortableBits(float f) {
+        final int bits = Float.floatToIntBits(f);
+        return bits ^ ((bits >> 31) & 0x7fffffff);
+    }
+
+    public static final class Statistics {
+
+        private final float acmrBefore;
+        private final float acmrAfter;
+        private final float atvrBefore;
+        private final float atvrAfter;
+
+        private Statistics(float acmrB, float acmrA, float atvrB, float atvrA) {
+            acmrBefore = acmrB;
+            acmrAfter = acmrA;
+            atvrBefore = atvrB;
+            atvrAfter = atvrA;
+        }
+
+        public float getAcmrBefore() {
+            return acmrBefore;
+        }
+
+        public float getAcmrAfter() {
+            return acmrAfter;
+        }
+
+        public float getAtvrBefore() {
+            return atvrBefore;
+        }
+
+        public float getAtvrAfter() {
+            return atvrAfter;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("ACMR %.3f -> %.3f, ATVR %.3f -> %.3f", acmrBefore, acmrAfter, atvrBefore, atvrAfter);
+        }
+    }
+}
@@ -0,0 +1,349 @@
+package geometry;
+
+import utils.BatchMath;
+import utils.IntArray;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/**
+ * Builds a chain of coarser index buffers with quadric error metric edge collapses. Vertices are only ever
+ * collapsed onto existing neighbours, so all levels share the original vertex buffer. Vertices on UV seams,
+ * normal creases and open borders are locked to keep the silhouette and the texture mapping intact. Every level
+ * halves the triangle count of the previous one unless that would exceed its error budget, which starts at a
+ * fraction of the mesh radius and doubles per level.
+ */
+public final class MeshSimplifier {
+
+    public static final int DEFAULT_LEVEL_COUNT = 4;
+    public static final float DEFAULT_REDUCTION = 0.5f;
+    public static final float DEFAULT_ERROR = 0.01f;
+
+    private static final float MIN_LEVEL_REDUCTION = 0.9f;
+    private static final int MIN_TRIANGLES = 16;
+    private static final int QUADRIC_SIZE = 10;
+
+    private final int levelCount;
+    private final float reduction;
+    private final float relativeError;
+
+    private float[] positions;
+    private double[] quadrics;
+    private boolean[] locked;
+    private int vertexCount;
+    private final float[] normalBefore = new float[3];
+    private final float[] normalAfter = new float[3];
+
+    public MeshSimplifier() {
+        this(DEFAULT_LEVEL_COUNT, DEFAULT_REDUCTION, DEFAULT_ERROR);
+    }
+
+    /**
+     * @param levelError error budget of the first coarser level, relative to the bounding radius of the mesh
+     */
+    public MeshSimplifier(int levels, float levelReduction, float levelError) {
+        if (levels < 1) throw new IllegalStateException("At least one level of detail is required!");
+        levelCount = levels;
+        reduction = levelReduction;
+        relativeError = levelError;
+    }
+
+    /**
+     * Positions are expected in the first three floats of every vertex. Safe to call from several threads, the
+     * scratch state lives in a private instance per call.
+     */
+    public LodChain simplify(FloatBuffer vertices, IntBuffer indices, int vertexStride) {
+        return new MeshSimplifier(levelCount, reduction, relativeError).run(vertices, indices, vertexStride);
+    }
+
+    private LodChain run(FloatBuffer vertices, IntBuffer indices, int vertexStride) {
+        vertexCount = vertices.remaining() / vertexStride;
+        positions = new float[vertexCount * 3];
+        for (int v = 0; v < vertexCount; v++) {
+            for (int i = 0; i < 3; i++) positions[v * 3 + i] = vertices.get(vertices.position() + v * vertexStride + i);
+        }
+
+        int[] current = new int[indices.remaining()];
+        indices.duplicate().get(current);
+        int currentCount = current.length - current.length % 3;
+
+        lockSeamsAndBorders(current, currentCount);
+        computeQuadrics(current, currentCount);
+
+        final IntArray chain = new IntArray(currentCount * 2);
+        final int[] offsets = new int[levelCount];
+        final int[] counts = new int[levelCount];
+        final float[] errors = new float[levelCount];
+        chain.addAll(current, currentCount);
+        counts[0] = currentCount;
+
+        int levels = 1;
+        float error = 0f;
+        float errorLimit = relativeError * computeRadius();
+        for (; levels < levelCount; levels++, errorLimit *= 2f) {
+            final int target = (int) (currentCount / 3 * reduction);
+            if (target < MIN_TRIANGLES) break;
+
+            final int[] next = Arrays.copyOf(current, currentCount);
+            final float[] maxCost = {0f};
+            final int nextCount = collapse(next, currentCount, target, errorLimit * errorLimit, maxCost);
+            if (nextCount > currentCount * MIN_LEVEL_REDUCTION) break;
+
+            error = Math.max(error, (float) Math.sqrt(maxCost[0]));
+            offsets[levels] = chain.size();
+            counts[levels] = nextCount;
+            errors[levels] = error;
+            chain.addAll(next, nextCount);
+
+            current = next;
+            currentCount = nextCount;
+        }
+
+        return new LodChain(chain.toBuffer(), Arrays.copyOf(offsets, levels), Arrays.copyOf(counts, levels),
+                Arrays.copyOf(errors, levels));
+    }
+
+    private int collapse(int[] indices, int indexCount, int targetTriangles, float costLimit, float[] maxCost) {
+        int triangleCount = indexCount / 3;
+        final int[] remap = new int[vertexCount];
+        final boolean[] touched = new boolean[vertexCount];
+
+        while (triangleCount > targetTriangles) {
+            final int[] offsets = new int[vertexCount + 1];
+            final int[] adjacency = buildAdjacency(indices, triangleCount * 3, offsets);
+
+            final long[] candidates = new long[triangleCount * 6];
+            final int[] edgeFrom = new int[triangleCount * 6];
+            final int[] edgeTo = new int[triangleCount * 6];
+            int candidateCount = 0;
+            for (int t = 0; t < triangleCount; t++) {
+                for (int e = 0; e < 3; e++) {
+                    final int a = indices[t * 3 + e];
+                    final int b = indices[t * 3 + (e + 1) % 3];
+                    for (int d = 0; d < 2; d++) {
+                        final int u = d == 0 ? a : b;
+                        final int v = d == 0 ? b : a;
+                        if (locked[u]) continue;
+
+                        final float cost = Math.max(0f, (float) evaluate(u, v));
+                        if (cost > costLimit) continue;
+                        edgeFrom[candidateCount] = u;
+                        edgeTo[candidateCount] = v;
+                        candidates[candidateCount] = (long) Float.floatToIntBits(cost) << 32 | candidateCount;
+                        candidateCount++;
+                    }
+                }
+            }
+            if (candidateCount == 0) break;
+            Arrays.sort(candidates, 0, candidateCount);
+
+            for (int v = 0; v < vertexCount; v++) remap[v] = v;
+            Arrays.fill(touched, false);
+
+            int removed = 0;
+            int collapses = 0;
+            for (int c = 0; c < candidateCount && triangleCount - removed > targetTriangles; c++) {
+                final int candidate = (int) candidates[c];
+                final int u = edgeFrom[candidate];
+                final int v = edgeTo[candidate];
+                if (touched[u] || touched[v] || flips(u, v, indices, adjacency, offsets)) continue;
+
+                for (int a = offsets[u]; a < offsets[u + 1]; a++) {
+                    final int t = adjacency[a];
+                    if (indices[t * 3] == v || indices[t * 3 + 1] == v || indices[t * 3 + 2] == v) removed++;
+                    for (int i = 0; i < 3; i++) touched[indices[t * 3 + i]] = true;
+                }
+
+                remap[u] = v;
+                for (int i = 0; i < QUADRIC_SIZE; i++) quadrics[v * QUADRIC_SIZE + i] += quadrics[u * QUADRIC_SIZE + i];
+                maxCost[0] = Math.max(maxCost[0], Float.intBitsToFloat((int) (candidates[c] >>> 32)));
+                collapses++;
+            }
+            if (collapses == 0) break;
+
+            int written = 0;
+            for (int t = 0; t < triangleCount; t++) {
+                final int a = remap[indices[t * 3]];
+                final int b = remap[indices[t * 3 + 1]];
+                final int c = remap[indices[t * 3 + 2]];
+                if (a == b || b == c || c == a) continue;
+                indices[written++] = a;
+                indices[written++] = b;
+                indices[written++] = c;
+            }
+            triangleCount = written / 3;
+        }
+        return triangleCount * 3;
+    }
+
+    private float computeRadius() {
+        final float[] bounds = new float[6];
+        BatchMath.bounds(positions, 0, 3, vertexCount, bounds);
+
+        float radius = 0f;
+        for (int i = 0; i < 3; i++) {
+            final float extent = bounds[BatchMath.MAX_X + i] - bounds[BatchMath.MIN_X + i];
+            radius += extent * extent;
+        }
+        return (float) Math.sqrt(radius) * 0.5f;
+    }
+
+    private boolean flips(int u, int v, int[] indices, int[] adjacency, int[] offsets) {
+        for (int a = offsets[u]; a < offsets[u + 1]; a++) {
+            final int t = adjacency[a] * 3;
+            final int i0 = indices[t];
+            final int i1 = indices[t + 1];
+            final int i2 = indices[t + 2];
+            if (i0 == v || i1 == v || i2 == v) continue;
+
+            normal(i0, i1, i2, -1, -1, normalBefore);
+            normal(i0, i1, i2, u, v, normalAfter);
+            if (normalBefore[0] * normalAfter[0] + normalBefore[1] * normalAfter[1]
+                    + normalBefore[2] * normalAfter[2] <= 0f) return true;
+        }
+        return false;
+    }
+
+    private void normal(int i0, int i1, int i2, int from, int to, float[] dest) {
+        final int a = (i0 == from ? to : i0) * 3;
+        final int b = (i1 == from ? to : i1) * 3;
+        final int c = (i2 == from ? to : i2) * 3;
+
+        final float e1x = positions[b] - positions[a];
+        final float e1y = positions[b + 1] - positions[a + 1];
+        final float e1z = positions[b + 2] - positions[a + 2];
+        final float e2x = positions[c] - positions[a];
+        final float e2y = positions[c + 1] - positions[a + 1];
+        final float e2z = positions[c + 2] - positions[a + 2];
+
+        dest[0] = e1y * e2z - e1z * e2y;
+        dest[1] = e1z * e2x - e1x * e2z;
+        dest[2] = e1x * e2y - e1y * e2x;
+    }
+
+    private int[] buildAdjacency(int[] indices, int indexCount, int[] offsets) {
+        Arrays.fill(offsets, 0);
+        for (int i = 0; i < indexCount; i++) offsets[indices[i] + 1]++;
+        for (int v = 0; v < vertexCount; v++) offsets[v + 1] += offsets[v];
+
+        final int[] fill = Arrays.copyOf(offsets, vertexCount);
+        final int[] adjacency = new int[indexCount];
+        for (int i = 0; i < indexCount; i++) adjacency[fill[indices[i]]++] = i / 3;
+        return adjacency;
+    }
+
+    private void computeQuadrics(int[] indices, int indexCount) {
+        quadrics = new double[vertexCount * QUADRIC_SIZE];
+
+        for (int t = 0; t < indexCount; t += 3) {
+            final float[] n = normalBefore;
+            normal(indices[t], indices[t + 1], indices[t + 2], -1, -1, n);
+            final double length = Math.sqrt(n[0] * n[0] + n[1] * n[1] + n[2] * n[2]);
+            if (length == 0.0) continue;
+
+            final double a = n[0] / length;
+            final double b = n[1] / length;
+            final double c = n[2] / length;
+            final int p = indices[t] * 3;
+            final double d = -(a * positions[p] + b * positions[p + 1] + c * positions[p + 2]);
+
+            for (int i = 0; i < 3; i++) {
+                final int q = indices[t + i] * QUADRIC_SIZE;
+                quadrics[q] += a * a;
+                quadrics[q + 1] += a * b;
+                quadrics[q + 2] += a * c;
+                quadrics[q + 3] += a * d;
+                quadrics[q + 4] += b * b;
+                quadrics[q + 5] += b * c;
+                quadrics[q + 6] += b * d;
+                quadrics[q + 7] += c * c;
+                quadrics[q + 8] += c * d;
+                quadrics[q + 9] += d * d;
+            }
+        }
+    }
+
+    private double evaluate(int u, int v) {
+        final int q = u * QUADRIC_SIZE;
+        final double x = positions[v * 3];
+        final double y = positions[v * 3 + 1];
+        final double z = positions[v * 3 + 2];
+
+        return quadrics[q] * x * x + 2 * quadrics[q + 1] * x * y + 2 * quadrics[q + 2] * x * z + 2 * quadrics[q + 3] * x
+                + quadrics[q + 4] * y * y + 2 * quadrics[q + 5] * y * z + 2 * quadrics[q + 6] * y
+                + quadrics[q + 7] * z * z + 2 * quadrics[q + 8] * z + quadrics[q + 9];
+    }
+
+    /**
+     * Locks vertices that share their position with another vertex (attribute seams) and vertices on edges that
+     * belong to a single triangle (open borders).
+     */
+    private void lockSeamsAndBorders(int[] indices, int indexCount) {
+        locked = new boolean[vertexCount];
+
+        final int[] canonical = new int[vertexCount];
+        final int capacity = Integer.highestOneBit(Math.max(vertexCount, 1) * 2 - 1) << 1;
+        final int[] table = new int[capacity];
+        Arrays.fill(table, -1);
+        for (int v = 0; v < vertexCount; v++) {
+            int slot = hashPosition(v) & (capacity - 1);
+            while (table[slot] >= 0 && !samePosition(table[slot], v)) slot = (slot + 1) & (capacity - 1);
+
+            if (table[slot] < 0) {
+                table[slot] = v;
+                canonical[v] = v;
+            } else {
+                canonical[v] = table[slot];
+                locked[v] = true;
+                locked[table[slot]] = true;
+            }
+        }
+        for (int v = 0; v < vertexCount; v++) {
+            if (locked[canonical[v]]) locked[v] = true;
+        }
+
+        final int edgeCapacity = Integer.highestOneBit(Math.max(indexCount, 1) * 2 - 1) << 1;
+        final long[] edges = new long[edgeCapacity];
+        final int[] edgeCounts = new int[edgeCapacity];
+        Arrays.fill(edges, -1L);
+        for (int t = 0; t < indexCount; t += 3) {
+            for (int e = 0; e < 3; e++) {
+                final long key = edgeKey(canonical[indices[t + e]], canonical[indices[t + (e + 1) % 3]]);
+                int slot = (int) (key * 0x9E3779B97F4A7C15L >>> 40) & (edgeCapacity - 1);
+                while (edges[slot] != -1L && edges[slot] != key) slot = (slot + 1) & (edgeCapacity - 1);
+                edges[slot] = key;
+                edgeCounts[slot]++;
+            }
+        }
+        for (int t = 0; t < indexCount; t += 3) {
+            for (int e = 0; e < 3; e++) {
+                final int a = canonical[indices[t + e]];
+                final int b = canonical[indices[t + (e + 1) % 3]];
+                final long key = edgeKey(a, b);
+                int slot = (int) (key * 0x9E3779B97F4A7C15L >>> 40) & (edgeCapacity - 1);
+                while (edges[slot] != key) slot = (slot + 1) & (edgeCapacity - 1);
+                if (edgeCounts[slot] == 1) {
+                    locked[indices[t + e]] = true;
+                    locked[indices[t + (e + 1) % 3]] = true;
+                }
+            }
+        }
+    }
+
+    private int hashPosition(int v) {
+        int h = Float.floatToIntBits(positions[v * 3]) * 0x9E3779B1;
+        h ^= Float.floatToIntBits(positions[v * 3 + 1]) * 0x85EBCA77;
+        h ^= Float.floatToIntBits(positions[v * 3 + 2]) * 0xC2B2AE3D;
+        return h ^ (h >>> 16);
+    }
+
+    private boolean samePosition(int a, int b) {
+        return positions[a * 3] == positions[b * 3] && positions[a * 3 + 1] == positions[b * 3 + 1]
+                && positions[a * 3 + 2] == positions[b * 3 + 2];
+    }
+
+    private static long edgeKey(int a, int b) {
+        return a < b ? (long) a << 32 | b : (long) b << 32 | a;
+    }
+}
@@ -0,0 +1,92 @@
+package geometry;
+
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Meshes prepared on loader threads waiting for their GL upload. The render thread drains the queue once per frame
+ * and stops as soon as either the time or the byte budget of the frame is used up. At least one mesh is uploaded
+ * per drain, so a mesh larger than the byte budget still gets through.
+ */
+public final class MeshUploadQueue {
+
+    public static final long DEFAULT_TIME_BUDGET = 2_000_000L;
+    public static final long DEFAULT_BYTE_BUDGET = 4L << 20;
+
+    private final Queue<PendingUpload> pending = new ConcurrentLinkedQueue<>();
+
+    private long timeBudget = DEFAULT_TIME_BUDGET;
+    private long byteBudget = DEFAULT_BYTE_BUDGET;
+
+    private long lastUploadTime;
+    private long lastUploadBytes;
+
+    /**
+     * @param nanos upload time per drain
+     * @param bytes upload size per drain
+     */
+    public void setBudget(long nanos, long bytes) {
+        timeBudget = nanos;
+        byteBudget = bytes;
+    }
+
+    public CompletableFuture<Mesh> submit(Mesh mesh) {
+        final CompletableFuture<Mesh> future = new CompletableFuture<>();
+        pending.add(new PendingUpload(mesh, future));
+        return future;
+    }
+
+    /**
+     * Uploads pending meshes within the budget, has to be called from the thread owning the GL context. Returns
+     * the number of meshes uploaded.
+     */
+    public int drain() {
+        final long start = System.nanoTime();
+        long bytes = 0L;
+        int uploaded = 0;
+
+        PendingUpload upload;
+        while ((upload = pending.peek()) != null) {
+            final long size = upload.mesh.getUploadSize();
+            if (uploaded > 0 && (bytes + size > byteBudget || System.nanoTime() - start >= timeBudget)) break;
+            pending.poll();
+
+            try {
+                upload.mesh.upload();
+                upload.future.complete(upload.mesh);
+            } catch (RuntimeException ex) {
+                upload.future.completeExceptionally(ex);
+            }
+            bytes += size;
+            uploaded++;
+        }
+
+        lastUploadTime = System.nanoTime() - start;
+        lastUploadBytes = bytes;
+        return uploaded;
+    }
+
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    public long getLastUploadTime() {
+        return lastUploadTime;
+    }
+
+    public long getLastUploadBytes() {
+        return lastUploadBytes;
+    }
+
+    private static final class PendingUpload {
+
+        private final Mesh mesh;
+        private final CompletableFuture<Mesh> future;
+
+        private PendingUpload(Mesh m, CompletableFuture<Mesh> f) {
+            mesh = m;
+            future = f;
+        }
+    }
+}
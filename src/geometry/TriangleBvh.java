@@ -0,0 +1,574 @@
+package geometry;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounding volume hierarchy over the triangles of a mesh for ray picking. The tree lives in flat arrays: six bounds
+ * floats and two ints per node, the ints holding the first child and zero for an inner node, whose children are
+ * stored next to each other, or the first triangle and the triangle count for a leaf. Triangles are copied in leaf
+ * order as a vertex and two edges, so a leaf is tested without going through the index buffer. It is built top down
+ * with a binned surface area heuristic along the axis of the largest centroid extent, large subtrees are built in
+ * parallel on a fork join pool.
+ */
+public final class TriangleBvh {
+
+    public static final int NONE = -1;
+
+    private static final int BOUNDS_SIZE = 6;
+    private static final int NODE_SIZE = 2;
+    private static final int TRIANGLE_SIZE = 9;
+    private static final int BINS = 12;
+    private static final int MIN_LEAF_TRIANGLES = 4;
+    private static final int MAX_LEAF_TRIANGLES = 16;
+    private static final int MAX_DEPTH = 64;
+    private static final int PARALLEL_THRESHOLD = 1 << 14;
+    private static final float TRAVERSAL_COST = 1f;
+
+    private final float[] bounds;
+    private final int[] nodes;
+    private final int[] triangleIds;
+    private final float[] triangles;
+
+    private TriangleBvh(float[] b, int[] n, int[] ids, float[] t) {
+        bounds = b;
+        nodes = n;
+        triangleIds = ids;
+        triangles = t;
+    }
+
+    public static TriangleBvh build(FloatBuffer vertices, int stride, IntBuffer indices, int first, int count) {
+        return build(vertices, stride, indices, first, count, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Builds the tree over {@code count / 3} triangles of the index buffer starting at {@code first}, positions
+     * are the first three floats of every {@code stride} floats of the vertex buffer. Buffer positions are the base
+     * of both and are left unchanged.
+     */
+    public static TriangleBvh build(FloatBuffer vertices, int stride, IntBuffer indices, int first, int count,
+                                    ForkJoinPool pool) {
+        final int triangleCount = count / 3;
+        final int[] order = new int[triangleCount];
+        final float[] triangleBounds = new float[triangleCount * BOUNDS_SIZE];
+        final float[] centroids = new float[triangleCount * 3];
+        final int vertexBase = vertices.position();
+        final int indexBase = indices.position() + first;
+
+        for (int t = 0; t < triangleCount; t++) {
+            order[t] = t;
+            final int b = t * BOUNDS_SIZE;
+            for (int axis = 0; axis < 3; axis++) {
+                final float a = vertices.get(vertexBase + indices.get(indexBase + t * 3) * stride + axis);
+                final float c = vertices.get(vertexBase + indices.get(indexBase + t * 3 + 1) * stride + axis);
+                final float d = vertices.get(vertexBase + indices.get(indexBase + t * 3 + 2) * stride + axis);
+                triangleBounds[b + axis] = Math.min(a, Math.min(c, d));
+                triangleBounds[b + 3 + axis] = Math.max(a, Math.max(c, d));
+                centroids[t * 3 + axis] = (triangleBounds[b + axis] + triangleBounds[b + 3 + axis]) * 0.5f;
+            }
+        }
+
+        final int maxNodes = Math.max(1, triangleCount * 2 - 1);
+        final Builder builder = new Builder(order, triangleBounds, centroids, maxNodes);
+        pool.invoke(new BuildTask(builder, 0, 0, triangleCount, 0));
+
+        final int nodeCount = builder.nextNode.get();
+        return new TriangleBvh(Arrays.copyOf(builder.bounds, nodeCount * BOUNDS_SIZE),
+                Arrays.copyOf(builder.nodes, nodeCount * NODE_SIZE), order,
+                copyTriangles(order, vertices, stride, indices, first));
+    }
+
+    /**
+     * Restores a tree from its {@link #getBounds() bounds}, {@link #getNodes() nodes} and
+     * {@link #getTriangleIds() triangle ids}, taking the triangles from the buffers it was built from.
+     */
+    public static TriangleBvh of(float[] bounds, int[] nodes, int[] triangleIds, FloatBuffer vertices, int stride,
+                                 IntBuffer indices, int first) {
+        return new TriangleBvh(bounds, nodes, triangleIds,
+                copyTriangles(triangleIds, vertices, stride, indices, first));
+    }
+
+    private static float[] copyTriangles(int[] triangleIds, FloatBuffer vertices, int stride, IntBuffer indices,
+                                         int first) {
+        final int vertexBase = vertices.position();
+        final int indexBase = indices.position() + first;
+        final float[] triangles = new float[triangleIds.length * TRIANGLE_SIZE];
+        for (int slot = 0; slot < triangleIds.length; slot++) {
+            final int t = triangleIds[slot];
+            final int v0 = vertexBase + indices.get(indexBase + t * 3) * stride;
+            final int v1 = vertexBase + indices.get(indexBase + t * 3 + 1) * stride;
+            final int v2 = vertexBase + indices.get(indexBase + t * 3 + 2) * stride;
+            final int s = slot * TRIANGLE_SIZE;
+            for (int axis = 0; axis < 3; axis++) {
+                final float p0 = vertices.get(v0 + axis);
+                triangles[s + axis] = p0;
+                triangles[s + 3 + axis] = vertices.get(v1 + axis) - p0;
+                triangles[s + 6 + axis] = vertices.get(v2 + axis) - p0;
+            }
+        }
+        return triangles;
+    }
+
+    /**
+     * Closest triangle hit by the ray within {@code maxDistance}, distances in multiples of the direction. Fills
+     * the hit and returns true if there is one, the hit is left untouched otherwise.
+     */
+    public boolean intersect(float ox, float oy, float oz, float dx, float dy, float dz, float maxDistance,
+                             Hit hit) {
+        return traverse(ox, oy, oz, dx, dy, dz, maxDistance, hit, false);
+    }
+
+    /**
+     * Whether any triangle is hit within {@code maxDistance}, stops at the first one found and fills the hit with
+     * it. Cheaper than {@link #intersect} for visibility tests.
+     */
+    public boolean occluded(float ox, float oy, float oz, float dx, float dy, float dz, float maxDistance, Hit hit) {
+        return traverse(ox, oy, oz, dx, dy, dz, maxDistance, hit, true);
+    }
+
+    private boolean traverse(float ox, float oy, float oz, float dx, float dy, float dz, float maxDistance, Hit hit,
+                             boolean anyHit) {
+        if (triangleIds.length == 0) return false;
+
+        final float ix = 1f / dx;
+        final float iy = 1f / dy;
+        final float iz = 1f / dz;
+        final int[] stack = hit.stack;
+        float limit = maxDistance;
+        boolean found = false;
+
+        int top = 0;
+        int node = 0;
+        if (intersectBox(0, ox, oy, oz, ix, iy, iz, limit) < 0f) return false;
+        while (true) {
+            final int count = nodes[node * NODE_SIZE + 1];
+            if (count > 0) {
+                final int end = nodes[node * NODE_SIZE] + count;
+                for (int slot = nodes[node * NODE_SIZE]; slot < end; slot++) {
+                    final float t = intersectTriangle(slot, ox, oy, oz, dx, dy, dz, limit, hit);
+                    if (t < 0f) continue;
+                    limit = t;
+                    hit.distance = t;
+                    hit.triangle = triangleIds[slot];
+                    found = true;
+                    if (anyHit) return true;
+                }
+            } else {
+                final int left = nodes[node * NODE_SIZE];
+                final float leftDistance = intersectBox(left, ox, oy, oz, ix, iy, iz, limit);
+                final float rightDistance = intersectBox(left + 1, ox, oy, oz, ix, iy, iz, limit);
+                if (leftDistance >= 0f && rightDistance >= 0f) {
+                    final boolean rightFirst = rightDistance < leftDistance;
+                    stack[top++] = rightFirst ? left : left + 1;
+                    stack[top++] = Float.floatToRawIntBits(rightFirst ? leftDistance : rightDistance);
+                    node = rightFirst ? left + 1 : left;
+                    continue;
+                }
+                if (leftDistance >= 0f) {
+                    node = left;
+                    continue;
+                }
+                if (rightDistance >= 0f) {
+                    node = left + 1;
+                    continue;
+                }
+            }
+
+            node = -1;
+            while (top > 0) {
+                final float entry = Float.intBitsToFloat(stack[--top]);
+                final int pending = stack[--top];
+                if (entry <= limit) {
+                    node = pending;
+                    break;
+                }
+            }
+            if (node < 0) return found;
+        }
+    }
+
+    /**
+     * Moeller-Trumbore test against both faces, distance of the hit or -1. Stores the barycentric coordinates of a
+     * hit in front of {@code maxDistance} in the hit.
+     */
+    private float intersectTriangle(int slot, float ox, float oy, float oz, float dx, float dy, float dz,
+                                    float maxDistance, Hit hit) {
+        final int s = slot * TRIANGLE_SIZE;
+        final float e1x = triangles[s + 3], e1y = triangles[s + 4], e1z = triangles[s + 5];
+        final float e2x = triangles[s + 6], e2y = triangles[s + 7], e2z = triangles[s + 8];
+
+        final float px = dy * e2z - dz * e2y;
+        final float py = dz * e2x - dx * e2z;
+        final float pz = dx * e2y - dy * e2x;
+        final float determinant = e1x * px + e1y * py + e1z * pz;
+        if (determinant == 0f) return -1f;
+        final float inverse = 1f / determinant;
+
+        final float tx = ox - triangles[s];
+        final float ty = oy - triangles[s + 1];
+        final float tz = oz - triangles[s + 2];
+        final float u = (tx * px + ty * py + tz * pz) * inverse;
+        if (u < 0f || u > 1f) return -1f;
+
+        final float qx = ty * e1z - tz * e1y;
+        final float qy = tz * e1x - tx * e1z;
+        final float qz = tx * e1y - ty * e1x;
+        final float v = (dx * qx + dy * qy + dz * qz) * inverse;
+        if (v < 0f || u + v > 1f) return -1f;
+
+        final float t = (e2x * qx + e2y * qy + e2z * qz) * inverse;
+        if (t < 0f || t > maxDistance) return -1f;
+        hit.u = u;
+        hit.v = v;
+        return t;
+    }
+
+    private float intersectBox(int node, float ox, float oy, float oz, float ix, float iy, float iz,
+                               float maxDistance) {
+        final int b = node * BOUNDS_SIZE;
+        final float tx0 = (bounds[b] - ox) * ix;
+        final float tx1 = (bounds[b + 3] - ox) * ix;
+        final float ty0 = (bounds[b + 1] - oy) * iy;
+        final float ty1 = (bounds[b + 4] - oy) * iy;
+        final float tz0 = (bounds[b + 2] - oz) * iz;
+        final float tz1 = (bounds[b + 5] - oz) * iz;
+
+        final float near = Math.max(Math.max(Math.min(tx0, tx1), Math.min(ty0, ty1)),
+                Math.max(Math.min(tz0, tz1), 0f));
+        final float far = Math.min(Math.min(Math.max(tx0, tx1), Math.max(ty0, ty1)),
+                Math.min(Math.max(tz0, tz1), maxDistance));
+        return near <= far ? near : -1f;
+    }
+
+    public int getNodeCount() {
+        return nodes.length / NODE_SIZE;
+    }
+
+    public int getTriangleCount() {
+        return triangleIds.length;
+    }
+
+    /**
+     * Node bounds, min xyz followed by max xyz from {@code node * 6}, the root being node 0.
+     */
+    public float[] getBounds() {
+        return bounds;
+    }
+
+    /**
+     * Two ints per node, first child and zero for inner nodes, first triangle slot and count for leaves.
+     */
+    public int[] getNodes() {
+        return nodes;
+    }
+
+    /**
+     * Index of the source triangle in every slot, triangle {@code t} being indices {@code 3t} to {@code 3t + 2}.
+     */
+    public int[] getTriangleIds() {
+        return triangleIds;
+    }
+
+    /**
+     * Result of a ray query along with the traversal stack, one per thread querying.
+     */
+    public static final class Hit {
+
+        private final int[] stack = new int[MAX_DEPTH * 2 + 2];
+
+        private float distance;
+        private int triangle = NONE;
+        private float u;
+        private float v;
+
+        public float getDistance() {
+            return distance;
+        }
+
+        /**
+         * Source triangle hit, see {@link #getTriangleIds()}.
+         */
+        public int getTriangle() {
+            return triangle;
+        }
+
+        /**
+         * Barycentric weight of the second vertex.
+         */
+        public float getU() {
+            return u;
+        }
+
+        /**
+         * Barycentric weight of the third vertex.
+         */
+        public float getV() {
+            return v;
+        }
+    }
+
+    /**
+     * Shared state of a build, tasks own disjoint node and triangle ranges. Triangle bounds and centroids are kept
+     * per slot of the order and move along with it.
+     */
+    private static final class Builder {
+
+        private final int[] order;
+        private final float[] triangleBounds;
+        private final float[] centroids;
+        private final float[] bounds;
+        private final int[] nodes;
+        private final AtomicInteger nextNode = new AtomicInteger(1);
+
+        private Builder(int[] o, float[] tb, float[] c, int maxNodes) {
+            order = o;
+            triangleBounds = tb;
+            centroids = c;
+            bounds = new float[maxNodes * BOUNDS_SIZE];
+            nodes = new int[maxNodes * NODE_SIZE];
+        }
+    }
+
+    private static final class BuildTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Builder builder;
+        private final int node;
+        private final int first;
+        private final int count;
+        private final int depth;
+
+        private final float[] binBounds = new float[BINS * BOUNDS_SIZE];
+        private final int[] binCounts = new int[BINS];
+        private final float[] sweepAreas = new float[BINS];
+        private final float[] scratch = new float[BOUNDS_SIZE];
+        private final float[] binOrigins = new float[3];
+        private final float[] binScales = new float[3];
+        private final float[] binExtents = new float[3];
+
+        private BuildTask(Builder b, int n, int f, int c, int d) {
+            builder = b;
+            node = n;
+            first = f;
+            count = c;
+            depth = d;
+        }
+
+        @Override
+        protected void compute() {
+            build(node, first, count, depth);
+        }
+
+        private void build(int node, int first, int count, int depth) {
+            computeBounds(node, first, count);
+
+            if (count <= MIN_LEAF_TRIANGLES || depth >= MAX_DEPTH) {
+                makeLeaf(node, first, count);
+                return;
+            }
+
+            int axis = binExtents[0] >= binExtents[1] ? 0 : 1;
+            if (binExtents[2] > binExtents[axis]) axis = 2;
+            int bestSplit = 0;
+            float bestCost = Float.MAX_VALUE;
+            if (binExtents[axis] > 0f) {
+                binTriangles(first, count, axis);
+                resetScratch();
+                for (int i = BINS - 1, right = 0; i > 0; i--) {
+                    right += binCounts[i];
+                    growScratch(i);
+                    sweepAreas[i] = right == 0 ? 0f : halfArea(scratch, 0) * right;
+                }
+                resetScratch();
+                for (int i = 0, left = 0; i < BINS - 1; i++) {
+                    left += binCounts[i];
+                    growScratch(i);
+                    if (left == 0 || left == count) continue;
+                    final float cost = halfArea(scratch, 0) * left + sweepAreas[i + 1];
+                    if (cost < bestCost) {
+                        bestCost = cost;
+                        bestSplit = i + 1;
+                    }
+                }
+            }
+            final int bestAxis = bestSplit == 0 ? -1 : axis;
+
+            final float area = halfArea(builder.bounds, node * BOUNDS_SIZE);
+            if (count <= MAX_LEAF_TRIANGLES && (bestAxis < 0 || TRAVERSAL_COST * area + bestCost >= area * count)) {
+                makeLeaf(node, first, count);
+                return;
+            }
+
+            final int middle = bestAxis < 0 ? first + count / 2 : partition(first, count, bestAxis, bestSplit);
+            final int children = builder.nextNode.getAndAdd(2);
+            builder.nodes[node * NODE_SIZE] = children;
+            builder.nodes[node * NODE_SIZE + 1] = 0;
+            final int leftCount = middle - first;
+            final int rightCount = count - leftCount;
+
+            if (count >= PARALLEL_THRESHOLD) {
+                invokeAll(new BuildTask(builder, children, first, leftCount, depth + 1),
+                        new BuildTask(builder, children + 1, middle, rightCount, depth + 1));
+            } else {
+                build(children, first, leftCount, depth + 1);
+                build(children + 1, middle, rightCount, depth + 1);
+            }
+        }
+
+        /**
+         * Writes the bounds of the triangles into the node and the bin mapping of their centroids, an axis without
+         * centroid extent gets a scale of zero.
+         */
+        private void computeBounds(int node, int first, int count) {
+            final float[] triangleBounds = builder.triangleBounds;
+            final float[] centroids = builder.centroids;
+            float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE, minZ = Float.MAX_VALUE;
+            float maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE, maxZ = -Float.MAX_VALUE;
+            float cMinX = Float.MAX_VALUE, cMinY = Float.MAX_VALUE, cMinZ = Float.MAX_VALUE;
+            float cMaxX = -Float.MAX_VALUE, cMaxY = -Float.MAX_VALUE, cMaxZ = -Float.MAX_VALUE;
+            for (int i = first, end = first + count; i < end; i++) {
+                final int b = i * BOUNDS_SIZE;
+                final int c = i * 3;
+                minX = min(minX, triangleBounds[b]);
+                minY = min(minY, triangleBounds[b + 1]);
+                minZ = min(minZ, triangleBounds[b + 2]);
+                maxX = max(maxX, triangleBounds[b + 3]);
+                maxY = max(maxY, triangleBounds[b + 4]);
+                maxZ = max(maxZ, triangleBounds[b + 5]);
+                cMinX = min(cMinX, centroids[c]);
+                cMinY = min(cMinY, centroids[c + 1]);
+                cMinZ = min(cMinZ, centroids[c + 2]);
+                cMaxX = max(cMaxX, centroids[c]);
+                cMaxY = max(cMaxY, centroids[c + 1]);
+                cMaxZ = max(cMaxZ, centroids[c + 2]);
+            }
+            final int b = node * BOUNDS_SIZE;
+            final float[] bounds = builder.bounds;
+            bounds[b] = minX;
+            bounds[b + 1] = minY;
+            bounds[b + 2] = minZ;
+            bounds[b + 3] = maxX;
+            bounds[b + 4] = maxY;
+            bounds[b + 5] = maxZ;
+            setBinMapping(0, cMinX, cMaxX);
+            setBinMapping(1, cMinY, cMaxY);
+            setBinMapping(2, cMinZ, cMaxZ);
+        }
+
+        private void setBinMapping(int axis, float min, float max) {
+            binOrigins[axis] = min;
+            binExtents[axis] = max - min;
+            binScales[axis] = max > min ? BINS / (max - min) : 0f;
+        }
+
+        private void binTriangles(int first, int count, int axis) {
+            Arrays.fill(binCounts, 0);
+            for (int i = 0; i < binBounds.length; i += BOUNDS_SIZE) setEmpty(binBounds, i);
+
+            final float[] triangleBounds = builder.triangleBounds;
+            final float[] centroids = builder.centroids;
+            final float origin = binOrigins[axis];
+            final float scale = binScales[axis];
+            for (int i = first, end = first + count; i < end; i++) {
+                final int bin = Math.min(BINS - 1, (int) ((centroids[i * 3 + axis] - origin) * scale));
+                binCounts[bin]++;
+                final int b = bin * BOUNDS_SIZE;
+                final int s = i * BOUNDS_SIZE;
+                binBounds[b] = min(binBounds[b], triangleBounds[s]);
+                binBounds[b + 1] = min(binBounds[b + 1], triangleBounds[s + 1]);
+                binBounds[b + 2] = min(binBounds[b + 2], triangleBounds[s + 2]);
+                binBounds[b + 3] = max(binBounds[b + 3], triangleBounds[s + 3]);
+                binBounds[b + 4] = max(binBounds[b + 4], triangleBounds[s + 4]);
+                binBounds[b + 5] = max(binBounds[b + 5], triangleBounds[s + 5]);
+            }
+        }
+
+        /**
+         * Moves the triangles of the bins below {@code split} to the front of the range, returns the first one
+         * behind them. Order, bounds and centroids are swapped together so every pass reads them sequentially.
+         */
+        private int partition(int first, int count, int axis, int split) {
+            final int[] order = builder.order;
+            final float[] triangleBounds = builder.triangleBounds;
+            final float[] centroids = builder.centroids;
+            int i = first;
+            int j = first + count - 1;
+            while (i <= j) {
+                if (bin(centroids[i * 3 + axis], axis) < split) {
+                    i++;
+                    continue;
+                }
+                final int swap = order[i];
+                order[i] = order[j];
+                order[j] = swap;
+                swap(triangleBounds, i * BOUNDS_SIZE, j * BOUNDS_SIZE, BOUNDS_SIZE);
+                swap(centroids, i * 3, j * 3, 3);
+                j--;
+            }
+            return i;
+        }
+
+        private int bin(float centroid, int axis) {
+            return Math.min(BINS - 1, (int) ((centroid - binOrigins[axis]) * binScales[axis]));
+        }
+
+        private void makeLeaf(int node, int first, int count) {
+            builder.nodes[node * NODE_SIZE] = first;
+            builder.nodes[node * NODE_SIZE + 1] = count;
+        }
+
+        private void resetScratch() {
+            setEmpty(scratch, 0);
+        }
+
+        private void growScratch(int bin) {
+            final int b = bin * BOUNDS_SIZE;
+            if (binCounts[bin] == 0) return;
+            for (int k = 0; k < 3; k++) {
+                scratch[k] = Math.min(scratch[k], binBounds[b + k]);
+                scratch[k + 3] = Math.max(scratch[k + 3], binBounds[b + 3 + k]);
+            }
+        }
+
+        /**
+         * Plain comparisons, without the NaN and signed zero handling of {@link Math#min(float, float)} that keeps
+         * the binning loops from being compiled into straight min and max instructions.
+         */
+        private static float min(float a, float b) {
+            return a < b ? a : b;
+        }
+
+        private static float max(float a, float b) {
+            return a > b ? a : b;
+        }
+
+        private static void swap(float[] values, int a, int b, int length) {
+            for (int k = 0; k < length; k++) {
+                final float swap = values[a + k];
+                values[a + k] = values[b + k];
+                values[b + k] = swap;
+            }
+        }
+
+        private static void setEmpty(float[] box, int offset) {
+            box[offset] = Float.MAX_VALUE;
+            box[offset + 1] = Float.MAX_VALUE;
+            box[offset + 2] = Float.MAX_VALUE;
+            box[offset + 3] = -Float.MAX_VALUE;
+            box[offset + 4] = -Float.MAX_VALUE;
+            box[offset + 5] = -Float.MAX_VALUE;
+        }
+
+        private static float halfArea(float[] box, int offset) {
+            final float x = box[offset + 3] - box[offset];
+            final float y = box[offset + 4] - box[offset + 1];
+            final float z = box[offset + 5] - box[offset + 2];
+            return x * y + y * z + z * x;
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package geometry;
+
+public enum VertexFormat {
+
+    /**
+     * Position, texture coordinates and normal as 32 bit floats.
+     */
+    FLOAT(32),
+
+    /**
+     * Positions as normalized shorts relative to the mesh bounds, half float texture coordinates and octahedral
+     * encoded normals as two normalized shorts.
+     */
+    COMPACT(16);
+
+    private final int stride;
+
+    VertexFormat(int s) {
+        stride = s;
+    }
+
+    public int getStride() {
+        return stride;
+    }
+}
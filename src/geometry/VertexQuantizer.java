@@ -0,0 +1,130 @@
+package geometry;
+
+import org.lwjgl.BufferUtils;
+import utils.BatchMath;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+
+/**
+ * Converts the interleaved float layout produced by the loaders into {@link VertexFormat#COMPACT} vertices
+ * and 16 bit indices.
+ */
+public final class VertexQuantizer {
+
+    public static final int SOURCE_STRIDE = 8;
+    public static final int MAX_SHORT_INDEXED_VERTICES = 65536;
+
+    private static final int POSITION_OFFSET = 0;
+    private static final int TEXTURE_COORDS_OFFSET = 3;
+    private static final int NORMAL_OFFSET = 5;
+
+    private static final float SNORM16_MAX = 32767f;
+
+    /**
+     * Quantizes the remaining vertices. Decoded positions are {@code position * scale + offset}, both arrays are
+     * filled with the values the shader needs.
+     */
+    public static ByteBuffer quantize(FloatBuffer vertices, float[] positionOffset, float[] positionScale) {
+        final int base = vertices.position();
+        final int vertexCount = vertices.remaining() / SOURCE_STRIDE;
+
+        final float[] bounds = new float[6];
+        BatchMath.bounds(vertices, base + POSITION_OFFSET, SOURCE_STRIDE, vertexCount, bounds);
+        for (int i = 0; i < 3; i++) {
+            if (vertexCount == 0) {
+                positionOffset[i] = 0f;
+                positionScale[i] = 1f;
+                continue;
+            }
+            final float min = bounds[BatchMath.MIN_X + i];
+            final float max = bounds[BatchMath.MAX_X + i];
+            final float extent = (max - min) * 0.5f;
+            positionOffset[i] = (max + min) * 0.5f;
+            positionScale[i] = extent > 0f ? extent : 1f;
+        }
+
+        final ByteBuffer buffer = BufferUtils.createByteBuffer(vertexCount * VertexFormat.COMPACT.getStride());
+        for (int v = 0; v < vertexCount; v++) {
+            final int source = base + v * SOURCE_STRIDE;
+
+            final int position = source + POSITION_OFFSET;
+            buffer.putShort(toSnorm16((vertices.get(position) - positionOffset[0]) / positionScale[0]));
+            buffer.putShort(toSnorm16((vertices.get(position + 1) - positionOffset[1]) / positionScale[1]));
+            buffer.putShort(toSnorm16((vertices.get(position + 2) - positionOffset[2]) / positionScale[2]));
+            buffer.putShort((short) 0);
+
+            buffer.putShort(toHalf(vertices.get(source + TEXTURE_COORDS_OFFSET)));
+            buffer.putShort(toHalf(vertices.get(source + TEXTURE_COORDS_OFFSET + 1)));
+
+            putOctahedral(buffer, vertices.get(source + NORMAL_OFFSET), vertices.get(source + NORMAL_OFFSET + 1),
+                    vertices.get(source + NORMAL_OFFSET + 2));
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    public static ShortBuffer toShortIndices(IntBuffer indices) {
+        final ShortBuffer buffer = BufferUtils.createShortBuffer(indices.remaining());
+        for (int i = indices.position(); i < indices.limit(); i++) {
+            buffer.put((short) indices.get(i));
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    public static short toSnorm16(float f) {
+        return (short) Math.round(Math.max(-1f, Math.min(1f, f)) * SNORM16_MAX);
+    }
+
+    /**
+     * IEEE 754 binary16 conversion with round to nearest even.
+     */
+    public static short toHalf(float f) {
+        final int bits = Float.floatToIntBits(f);
+        final int sign = bits >>> 16 & 0x8000;
+        final int exponent = bits >>> 23 & 0xff;
+        int mantissa = bits & 0x7fffff;
+
+        if (exponent == 0xff) return (short) (sign | 0x7c00 | (mantissa != 0 ? 0x200 : 0));
+
+        final int halfExponent = exponent - 127 + 15;
+        if (halfExponent >= 0x1f) return (short) (sign | 0x7c00);
+
+        if (halfExponent <= 0) {
+            if (halfExponent < -10) return (short) sign;
+            mantissa |= 0x800000;
+            final int shift = 14 - halfExponent;
+            int half = mantissa >> shift;
+            final int remainder = mantissa & ((1 << shift) - 1);
+            final int halfway = 1 << (shift - 1);
+            if (remainder > halfway || remainder == halfway && (half & 1) != 0) half++;
+            return (short) (sign | half);
+        }
+
+        int half = halfExponent << 10 | mantissa >> 13;
+        final int remainder = mantissa & 0x1fff;
+        if (remainder > 0x1000 || remainder == 0x1000 && (half & 1) != 0) half++;
+        return (short) (sign | half);
+    }
+
+    private static void putOctahedral(ByteBuffer buffer, float x, float y, float z) {
+        final float length = Math.abs(x) + Math.abs(y) + Math.abs(z);
+        if (length == 0f) {
+            buffer.putShort((short) 0).putShort((short) 0);
+            return;
+        }
+
+        float u = x / length;
+        float v = y / length;
+        if (z < 0f) {
+            final float ou = (1f - Math.abs(v)) * (u >= 0f ? 1f : -1f);
+            final float ov = (1f - Math.abs(u)) * (v >= 0f ? 1f : -1f);
+            u = ou;
+            v = ov;
+        }
+        buffer.putShort(toSnorm16(u)).putShort(toSnorm16(v));
+    }
+}
@@ -0,0 +1,193 @@
+package geometry.loaders;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Line oriented cursor over ASCII encoded bytes. Numbers are parsed in place, so reading
+ * vertex and face records does not create any intermediate strings or boxed values.
+ */
+final class AsciiTokenizer {
+
+    private static final int MAX_MANTISSA_DIGITS = 18;
+    private static final int KEYWORD_LENGTH = 8;
+
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+            1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    private ByteBuffer source;
+    private int position;
+    private int limit;
+
+    static long keyword(String word) {
+        long code = 0L;
+        for (int i = 0; i < word.length() && i < KEYWORD_LENGTH; i++) {
+            code |= (long) (word.charAt(i) & 0xff) << (i * 8);
+        }
+        return code;
+    }
+
+    AsciiTokenizer reset(ByteBuffer src, int start, int end) {
+        source = src;
+        position = start;
+        limit = end;
+        return this;
+    }
+
+    boolean hasRemaining() {
+        return position < limit;
+    }
+
+    int position() {
+        return position;
+    }
+
+    /**
+     * Skips spaces and tabs, returns whether another token follows on the current line.
+     */
+    boolean skipBlanks() {
+        while (position < limit) {
+            int b = source.get(position);
+            if (b != ' ' && b != '\t') return !isLineEnd(b);
+            position++;
+        }
+        return false;
+    }
+
+    void nextLine() {
+        while (position < limit && source.get(position) != '\n') position++;
+        if (position < limit) position++;
+    }
+
+    boolean skip(char c) {
+        if (position < limit && source.get(position) == c) {
+            position++;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Packs the first bytes of the next token into a long, so it can be compared against {@link #keyword(String)}.
+     */
+    long readKeyword() {
+        if (!skipBlanks()) return 0L;
+
+        long code = 0L;
+        int length = 0;
+        while (position < limit) {
+            int b = source.get(position);
+            if (b <= ' ') break;
+            if (length < KEYWORD_LENGTH) code |= (long) (b & 0xff) << (length * 8);
+            length++;
+            position++;
+        }
+        return code;
+    }
+
+    int readInt() throws IllegalArgumentException {
+        skipBlanks();
+
+        boolean negative = skip('-');
+        if (!negative) skip('+');
+
+        int value = 0;
+        int digits = 0;
+        while (position < limit) {
+            int b = source.get(position);
+            if (b < '0' || b > '9') break;
+            final int digit = b - '0';
+            if (value > (Integer.MAX_VALUE - digit) / 10) {
+                throw new IllegalArgumentException("Integer out of range at " + position);
+            }
+            value = value * 10 + digit;
+            digits++;
+            position++;
+        }
+        if (digits == 0) throw new IllegalArgumentException("Expected integer at " + position);
+        return negative ? -value : value;
+    }
+
+    float readFloat() throws IllegalArgumentException {
+        skipBlanks();
+        final int start = position;
+
+        boolean negative = skip('-');
+        if (!negative) skip('+');
+
+        long mantissa = 0L;
+        int digits = 0;
+        int exponent = 0;
+        boolean any = false;
+        int b = 0;
+
+        while (position < limit && (b = source.get(position)) >= '0' && b <= '9') {
+            if (digits < MAX_MANTISSA_DIGITS) {
+                mantissa = mantissa * 10 + (b - '0');
+                if (mantissa != 0) digits++;
+            } else exponent++;
+            any = true;
+            position++;
+        }
+        if (position < limit && b == '.') {
+            position++;
+            while (position < limit && (b = source.get(position)) >= '0' && b <= '9') {
+                if (digits < MAX_MANTISSA_DIGITS) {
+                    mantissa = mantissa * 10 + (b - '0');
+                    if (mantissa != 0) digits++;
+                    exponent--;
+                }
+                any = true;
+                position++;
+            }
+        }
+        if (!any) return readFloatSlow(start);
+
+        if (position < limit && ((b = source.get(position)) == 'e' || b == 'E')) {
+            position++;
+            exponent += readInt();
+        }
+
+        double value = mantissa;
+        if (exponent < 0) {
+            value = -exponent < POWERS_OF_TEN.length ? value / POWERS_OF_TEN[-exponent] : value / Math.pow(10, -exponent);
+        } else if (exponent > 0) {
+            value = exponent < POWERS_OF_TEN.length ? value * POWERS_OF_TEN[exponent] : value * Math.pow(10, exponent);
+        }
+        return (float) (negative ? -value : value);
+    }
+
+    /**
+     * Returns the rest of the current line without surrounding blanks.
+     */
+    String readRest() {
+        skipBlanks();
+        final int start = position;
+        int end = start;
+        while (position < limit) {
+            int b = source.get(position);
+            if (b == '\n' || b == '\r') break;
+            position++;
+            if (b != ' ' && b != '\t') end = position;
+        }
+        return decode(start, end);
+    }
+
+    private float readFloatSlow(int start) {
+        position = start;
+        while (position < limit && source.get(position) > ' ') position++;
+        return Float.parseFloat(decode(start, position));
+    }
+
+    private String decode(int start, int end) {
+        byte[] bytes = new byte[end - start];
+        for (int i = 0; i < bytes.length; i++) bytes[i] = source.get(start + i);
+        return new String(bytes, StandardCharsets.US_ASCII);
+    }
+
+    private static boolean isLineEnd(int b) {
+        return b == '\n' || b == '\r' || b == '#';
+    }
+}
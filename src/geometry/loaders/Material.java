@@ -1,28 +1,37 @@
 package geometry.loaders;
 
-import org.lwjgl.BufferUtils;
 import org.lwjgl.util.vector.Vector3f;
 import utils.TextureUtils;
-import utils.VectorUtils;
 
 import java.nio.FloatBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * Surface properties of a mesh. Materials are created on loader threads, so textures are only referenced by path
+ * there and created on first use from the render thread. The colours and factors live in a slot of the shared
+ * material buffer, every setter marks the slot for an upload before the next draw.
+ */
 public class Material {
 
-    private static final Vector3f whiteSolid = VectorUtils.create(1f, 1f, 1f);
-    private static final Vector3f blackSolid = VectorUtils.create(0f, 0f, 0f);
+    private static final AtomicInteger nextId = new AtomicInteger();
 
     private final String name;
+    private final int id;
 
-    private final FloatBuffer materialBuffer;
+    private int bufferIndex = -1;
+    private boolean dirty = true;
 
     private float specularFactor;
     private float dissolveFactor;
 
-    private Vector3f ambientColor;
-    private Vector3f diffuseColor;
-    private Vector3f specularColor;
-    private Vector3f emissiveColor;
+    private final Vector3f ambientColor = new Vector3f(1f, 1f, 1f);
+    private final Vector3f diffuseColor = new Vector3f(1f, 1f, 1f);
+    private final Vector3f specularColor = new Vector3f();
+    private final Vector3f emissiveColor = new Vector3f();
+
+    private String ambientTexturePath;
+    private String diffuseTexturePath;
+    private String specularTexturePath;
 
     private int ambientTextureMap;
     private int diffuseTextureMap;
@@ -30,81 +39,155 @@ public class Material {
 
     public Material(String n) {
         name = n;
-
-        materialBuffer = BufferUtils.createFloatBuffer(16);
+        id = nextId.getAndIncrement();
 
         specularFactor = 1f;
-        ambientColor = whiteSolid;
-        diffuseColor = whiteSolid;
-        specularColor = blackSolid;
-        emissiveColor = blackSolid;
-
-        ambientTextureMap = TextureUtils.getMissingTexture();
-        diffuseTextureMap = TextureUtils.getMissingTexture();
-        specularTextureMap = TextureUtils.getMissingTexture();
+        dissolveFactor = 1f;
     }
 
     public void setSpecularFactor(float f) {
         specularFactor = f;
+        dirty = true;
     }
 
     public void setDissolveFactor(float f) {
         dissolveFactor = f;
+        dirty = true;
     }
 
     public void setAmbientColor(Vector3f ambient) {
-        ambientColor = ambient;
+        setAmbientColor(ambient.x, ambient.y, ambient.z);
+    }
+
+    public void setAmbientColor(float r, float g, float b) {
+        ambientColor.set(r, g, b);
+        dirty = true;
     }
 
     public void setDiffuseColor(Vector3f diffuse) {
-        diffuseColor = diffuse;
+        setDiffuseColor(diffuse.x, diffuse.y, diffuse.z);
+    }
+
+    public void setDiffuseColor(float r, float g, float b) {
+        diffuseColor.set(r, g, b);
+        dirty = true;
     }
 
     public void setSpecularColor(Vector3f specular) {
-        specularColor = specular;
+        setSpecularColor(specular.x, specular.y, specular.z);
+    }
+
+    public void setSpecularColor(float r, float g, float b) {
+        specularColor.set(r, g, b);
+        dirty = true;
     }
 
     public void setEmissiveColor(Vector3f emissive) {
-        emissiveColor = emissive;
+        setEmissiveColor(emissive.x, emissive.y, emissive.z);
+    }
+
+    public void setEmissiveColor(float r, float g, float b) {
+        emissiveColor.set(r, g, b);
+        dirty = true;
     }
 
     public void setAmbientTextureMap(String path) {
-        ambientTextureMap = TextureUtils.loadTexture(path);
+        ambientTexturePath = path;
+        ambientTextureMap = 0;
     }
 
     public void setDiffuseTextureMap(String path) {
-        diffuseTextureMap = TextureUtils.loadTexture(path);
+        diffuseTexturePath = path;
+        diffuseTextureMap = 0;
     }
 
     public void setSpecularTextureMap(String path) {
-        specularTextureMap = TextureUtils.loadTexture(path);
+        specularTexturePath = path;
+        specularTextureMap = 0;
+    }
+
+    /**
+     * Uses textures that are already loaded instead of loading them from the texture paths on first use.
+     */
+    public void setTextureMaps(int ambient, int diffuse, int specular) {
+        ambientTextureMap = ambient;
+        diffuseTextureMap = diffuse;
+        specularTextureMap = specular;
+    }
+
+    /**
+     * Writes the std140 layout of the material, four vec4 for ambient, diffuse, specular and emissive colour.
+     */
+    public void write(FloatBuffer target) {
+        target.put(ambientColor.x).put(ambientColor.y).put(ambientColor.z).put(dissolveFactor);
+        target.put(diffuseColor.x).put(diffuseColor.y).put(diffuseColor.z).put(1f);
+        target.put(specularColor.x).put(specularColor.y).put(specularColor.z).put(specularFactor);
+        target.put(emissiveColor.x).put(emissiveColor.y).put(emissiveColor.z).put(1f);
     }
 
-    public FloatBuffer getMaterialAsBuffer() {
-        materialBuffer.clear();
-        float[] materialTable = new float[]{
-                ambientColor.x, ambientColor.y, ambientColor.z, dissolveFactor,
-                diffuseColor.x, diffuseColor.y, diffuseColor.z, 1.0f,
-                specularColor.x, specularColor.y, specularColor.z, specularFactor,
-                emissiveColor.x, emissiveColor.y, emissiveColor.z, 1.0f
-        };
-        materialBuffer.put(materialTable);
-        materialBuffer.flip();
-        return materialBuffer;
+    /**
+     * Whether a setter ran since the material was last written to its buffer slot.
+     */
+    public boolean isDirty() {
+        return dirty;
+    }
+
+    public void clearDirty() {
+        dirty = false;
+    }
+
+    public void markDirty() {
+        dirty = true;
+    }
+
+    /**
+     * Slot of the material in the material buffer, -1 while unassigned.
+     */
+    public int getBufferIndex() {
+        return bufferIndex;
+    }
+
+    public void setBufferIndex(int index) {
+        bufferIndex = index;
     }
 
     public int getAmbientTextureMap() {
+        if (ambientTextureMap == 0) ambientTextureMap = loadTexture(ambientTexturePath);
         return ambientTextureMap;
     }
 
     public int getDiffuseTextureMap() {
+        if (diffuseTextureMap == 0) diffuseTextureMap = loadTexture(diffuseTexturePath);
         return diffuseTextureMap;
     }
 
     public int getSpecularTextureMap() {
+        if (specularTextureMap == 0) specularTextureMap = loadTexture(specularTexturePath);
         return specularTextureMap;
     }
 
+    private static int loadTexture(String path) {
+        return path == null ? TextureUtils.getMissingTexture() : TextureUtils.loadTexture(path);
+    }
+
+    /**
+     * Materials with a dissolve factor below one are blended and drawn back to front.
+     */
+    public boolean isTransparent() {
+        return dissolveFactor < 1f;
+    }
+
+    public float getDissolveFactor() {
+        return dissolveFactor;
+    }
+
+    /**
+     * Small unique number, usable as a sort key.
+     */
+    public int getId() {
+        return id;
+    }
+
     public String getName() {
         return name;
     }
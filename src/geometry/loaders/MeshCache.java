@@ -0,0 +1,315 @@
+package geometry.loaders;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32C;
+
+/**
+ * Precompiled meshes stored in a cache directory, one file per source mesh. A cache file holds a header, the material
+ * libraries and level of detail table of the mesh, the interleaved vertex block and the index block of all levels,
+ * all in native byte order so the blocks can be mapped and handed to GL without conversion. A triangle hierarchy for
+ * picking may follow as node bounds, node and triangle id blocks. Entries are invalidated by a hash of the object and
+ * material files.
+ */
+public final class MeshCache {
+
+    private static final int MAGIC = 0x4853454D;
+    private static final int VERSION = 6;
+    private static final int HEADER_SIZE = 48;
+    private static final int BLOCK_ALIGNMENT = 16;
+    private static final int BVH_BOUNDS_SIZE = 6;
+    private static final int BVH_NODE_SIZE = 2;
+    private static final String FILE_EXTENSION = ".mesh";
+
+    private final Path directory;
+
+    public MeshCache(Path dir) {
+        directory = dir;
+    }
+
+    /**
+     * Returns the cached mesh if it is still valid for the current sources and was built with the same flags,
+     * null otherwise.
+     */
+    public Entry find(String name, MeshLoader loader, int flags) {
+        final Path file = getCacheFile(name);
+        if (!Files.isRegularFile(file)) return null;
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0L, channel.size());
+            map.order(ByteOrder.nativeOrder());
+
+            if (map.remaining() < HEADER_SIZE || map.getInt() != MAGIC || map.getInt() != VERSION) return null;
+            if (map.getInt() != flags) return null;
+
+            final long sourceHash = map.getLong();
+            final int vertexStride = map.getInt();
+            final int vertexFloatCount = map.getInt();
+            final int indexCount = map.getInt();
+            final int libraryCount = map.getInt();
+            final int levelCount = map.getInt();
+            final int bvhNodeCount = map.getInt();
+            final int bvhTriangleCount = map.getInt();
+            if (vertexFloatCount < 0 || indexCount < 0 || bvhNodeCount < 0 || bvhTriangleCount < 0) return null;
+            if (libraryCount < 0 || (long) libraryCount * Short.BYTES > map.remaining()) return null;
+
+            final List<String> libraries = new ArrayList<>(libraryCount);
+            for (int i = 0; i < libraryCount; i++) {
+                final int length = map.remaining() < Short.BYTES ? -1 : map.getShort() & 0xffff;
+                if (length < 0 || length > map.remaining()) return null;
+                byte[] bytes = new byte[length];
+                map.get(bytes);
+                libraries.add(new String(bytes, StandardCharsets.UTF_8));
+            }
+            if (levelCount < 0 || (long) levelCount * (Integer.BYTES * 2 + Float.BYTES) > map.remaining()) return null;
+            final int[] levelOffsets = new int[levelCount];
+            final int[] levelCounts = new int[levelCount];
+            final float[] levelErrors = new float[levelCount];
+            for (int l = 0; l < levelCount; l++) {
+                levelOffsets[l] = map.getInt();
+                levelCounts[l] = map.getInt();
+                levelErrors[l] = map.getFloat();
+                if (levelOffsets[l] < 0 || levelCounts[l] < 0
+                        || (long) levelOffsets[l] + levelCounts[l] > indexCount) return null;
+            }
+            if (levelCount == 0 || vertexStride != loader.getVertexStride()) return null;
+            if (sourceHash != computeSourceHash(name, libraries, loader)) return null;
+
+            final long vertexOffset = align((long) map.position());
+            final long indexOffset = align(vertexOffset + (long) vertexFloatCount * Float.BYTES);
+            final long bvhBoundsOffset = align(indexOffset + (long) indexCount * Integer.BYTES);
+            final long bvhNodesOffset = align(bvhBoundsOffset + (long) bvhNodeCount * BVH_BOUNDS_SIZE * Float.BYTES);
+            final long bvhTrianglesOffset = align(bvhNodesOffset + (long) bvhNodeCount * BVH_NODE_SIZE * Integer.BYTES);
+            if (bvhTrianglesOffset + (long) bvhTriangleCount * Integer.BYTES > map.capacity()) return null;
+
+            FloatBuffer vertices = slice(map, (int) vertexOffset, vertexFloatCount * Float.BYTES).asFloatBuffer();
+            IntBuffer indices = slice(map, (int) indexOffset, indexCount * Integer.BYTES).asIntBuffer();
+
+            final Entry entry = new Entry(vertexStride, vertices, indices, libraries, levelOffsets, levelCounts,
+                    levelErrors);
+            if (bvhNodeCount > 0) {
+                entry.bvhBounds = new float[bvhNodeCount * BVH_BOUNDS_SIZE];
+                entry.bvhNodes = new int[bvhNodeCount * BVH_NODE_SIZE];
+                entry.bvhTriangleIds = new int[bvhTriangleCount];
+                slice(map, (int) bvhBoundsOffset, entry.bvhBounds.length * Float.BYTES).asFloatBuffer()
+                        .get(entry.bvhBounds);
+                slice(map, (int) bvhNodesOffset, entry.bvhNodes.length * Integer.BYTES).asIntBuffer()
+                        .get(entry.bvhNodes);
+                slice(map, (int) bvhTrianglesOffset, bvhTriangleCount * Integer.BYTES).asIntBuffer()
+                        .get(entry.bvhTriangleIds);
+            }
+            return entry;
+        } catch (IOException | RuntimeException ex) {
+            ex.printStackTrace();
+            return null;
+        }
+    }
+
+    public void store(String name, MeshLoader loader, int flags, FloatBuffer vertices, IntBuffer indices) {
+        store(name, loader, flags, vertices, indices, new int[]{0}, new int[]{indices.remaining()}, new float[]{0f});
+    }
+
+    /**
+     * Stores a mesh whose index block holds several levels of detail, described by index offset, index count and
+     * object space error per level.
+     */
+    public void store(String name, MeshLoader loader, int flags, FloatBuffer vertices, IntBuffer indices,
+                      int[] levelOffsets, int[] levelCounts, float[] levelErrors) {
+        store(name, loader, flags, vertices, indices, levelOffsets, levelCounts, levelErrors, null, null, null);
+    }
+
+    /**
+     * Stores a mesh along with the flat arrays of its triangle hierarchy, six bounds floats and two ints per node
+     * and one triangle id per triangle. The arrays are null for a mesh without one.
+     */
+    public void store(String name, MeshLoader loader, int flags, FloatBuffer vertices, IntBuffer indices,
+                      int[] levelOffsets, int[] levelCounts, float[] levelErrors, float[] bvhBounds, int[] bvhNodes,
+                      int[] bvhTriangleIds) {
+        final int vertexStride = loader.getVertexStride();
+        final List<String> libraries = loader.getMaterialLibraries();
+        final Path file = getCacheFile(name);
+        Path temporary = null;
+
+        try {
+            final long sourceHash = computeSourceHash(name, libraries, loader);
+
+            int headerSize = HEADER_SIZE;
+            final List<byte[]> encodedLibraries = new ArrayList<>(libraries.size());
+            for (String library : libraries) {
+                byte[] bytes = library.getBytes(StandardCharsets.UTF_8);
+                encodedLibraries.add(bytes);
+                headerSize += Short.BYTES + bytes.length;
+            }
+            headerSize += levelOffsets.length * (Integer.BYTES * 2 + Float.BYTES);
+            final int vertexOffset = align(headerSize);
+            final int indexOffset = align(vertexOffset + vertices.remaining() * Float.BYTES);
+            final int bvhNodeCount = bvhNodes == null ? 0 : bvhNodes.length / BVH_NODE_SIZE;
+            final int bvhTriangleCount = bvhTriangleIds == null ? 0 : bvhTriangleIds.length;
+            final int bvhBoundsOffset = align(indexOffset + indices.remaining() * Integer.BYTES);
+            final int bvhNodesOffset = align(bvhBoundsOffset + bvhNodeCount * BVH_BOUNDS_SIZE * Float.BYTES);
+            final int bvhTrianglesOffset = align(bvhNodesOffset + bvhNodeCount * BVH_NODE_SIZE * Integer.BYTES);
+            final int size = bvhTrianglesOffset + bvhTriangleCount * Integer.BYTES;
+
+            Files.createDirectories(directory);
+            temporary = Files.createTempFile(directory, "mesh", ".tmp");
+
+            try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_WRITE, 0L, size);
+                map.order(ByteOrder.nativeOrder());
+
+                map.putInt(MAGIC).putInt(VERSION).putInt(flags).putLong(sourceHash);
+                map.putInt(vertexStride).putInt(vertices.remaining()).putInt(indices.remaining())
+                        .putInt(libraries.size());
+                map.putInt(levelOffsets.length).putInt(bvhNodeCount).putInt(bvhTriangleCount);
+                for (byte[] bytes : encodedLibraries) {
+                    map.putShort((short) bytes.length).put(bytes);
+                }
+                for (int l = 0; l < levelOffsets.length; l++) {
+                    map.putInt(levelOffsets[l]).putInt(levelCounts[l]).putFloat(levelErrors[l]);
+                }
+                slice(map, vertexOffset, vertices.remaining() * Float.BYTES).asFloatBuffer().put(vertices.duplicate());
+                slice(map, indexOffset, indices.remaining() * Integer.BYTES).asIntBuffer().put(indices.duplicate());
+                if (bvhNodeCount > 0) {
+                    slice(map, bvhBoundsOffset, bvhBounds.length * Float.BYTES).asFloatBuffer().put(bvhBounds);
+                    slice(map, bvhNodesOffset, bvhNodes.length * Integer.BYTES).asIntBuffer().put(bvhNodes);
+                    slice(map, bvhTrianglesOffset, bvhTriangleCount * Integer.BYTES).asIntBuffer()
+                            .put(bvhTriangleIds);
+                }
+                map.force();
+            }
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            temporary = null;
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        } finally {
+            if (temporary != null) delete(temporary);
+        }
+    }
+
+    private static void delete(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    private Path getCacheFile(String name) {
+        return directory.resolve(name + FILE_EXTENSION);
+    }
+
+    private static long computeSourceHash(String name, List<String> libraries, MeshLoader loader) throws IOException {
+        final CRC32C crc = new CRC32C();
+        long length = 0L;
+
+        ByteBuffer source = loader.openSource(MeshLoader.sourceFolder + name);
+        if (source == null) throw new IOException("Unable to find object file " + name);
+        length += source.remaining();
+        crc.update(source);
+
+        for (String library : libraries) {
+            crc.update(library.getBytes(StandardCharsets.UTF_8));
+            ByteBuffer material = loader.openSource(MeshLoader.sourceFolder + library);
+            if (material == null) continue;
+            length += material.remaining();
+            crc.update(material);
+        }
+        return crc.getValue() << 32 | length & 0xffffffffL;
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int offset, int length) {
+        ByteBuffer view = buffer.duplicate();
+        view.position(offset);
+        view.limit(offset + length);
+        return view.slice().order(ByteOrder.nativeOrder());
+    }
+
+    private static int align(int offset) {
+        return (offset + BLOCK_ALIGNMENT - 1) & -BLOCK_ALIGNMENT;
+    }
+
+    private static long align(long offset) {
+        return (offset + BLOCK_ALIGNMENT - 1) & -BLOCK_ALIGNMENT;
+    }
+
+    public static final class Entry {
+
+        private final int vertexStride;
+        private final FloatBuffer vertices;
+        private final IntBuffer indices;
+        private final List<String> materialLibraries;
+        private final int[] levelOffsets;
+        private final int[] levelCounts;
+        private final float[] levelErrors;
+        private float[] bvhBounds;
+        private int[] bvhNodes;
+        private int[] bvhTriangleIds;
+
+        private Entry(int stride, FloatBuffer v, IntBuffer i, List<String> libraries, int[] offsets, int[] counts,
+                      float[] errors) {
+            vertexStride = stride;
+            vertices = v;
+            indices = i;
+            materialLibraries = Collections.unmodifiableList(libraries);
+            levelOffsets = offsets;
+            levelCounts = counts;
+            levelErrors = errors;
+        }
+
+        public int getVertexStride() {
+            return vertexStride;
+        }
+
+        public FloatBuffer getVertices() {
+            return vertices;
+        }
+
+        public IntBuffer getIndices() {
+            return indices;
+        }
+
+        public List<String> getMaterialLibraries() {
+            return materialLibraries;
+        }
+
+        public int[] getLevelOffsets() {
+            return levelOffsets;
+        }
+
+        public int[] getLevelCounts() {
+            return levelCounts;
+        }
+
+        public float[] getLevelErrors() {
+            return levelErrors;
+        }
+
+        /**
+         * Node bounds of the stored triangle hierarchy, null if the mesh was stored without one.
+         */
+        public float[] getBvhBounds() {
+            return bvhBounds;
+        }
+
+        public int[] getBvhNodes() {
+            return bvhNodes;
+        }
+
+        public int[] getBvhTriangleIds() {
+            return bvhTriangleIds;
+        }
+    }
+}
@@ -1,20 +1,20 @@
 package geometry.loaders;
 
-import org.lwjgl.BufferUtils;
-import org.lwjgl.util.vector.Vector;
-import org.lwjgl.util.vector.Vector2f;
-import org.lwjgl.util.vector.Vector3f;
-import utils.VectorUtils;
+import utils.FloatArray;
+import utils.IntArray;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
 import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
-import java.util.*;
-import java.util.function.Consumer;
-import java.util.stream.Stream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 public abstract class MeshLoader {
 
@@ -25,6 +25,10 @@ public abstract class MeshLoader {
     private static final int TEXTURE_COORDS_INDEX_OFFSET = 1;
     private static final int NORMAL_INDEX_OFFSET = 2;
 
+    protected static final int CORNER_STRIDE = 3;
+    protected static final int MISSING_INDEX = -1;
+    protected static final int RETAINED_SCRATCH_CAPACITY = 1 << 18;
+
     private static final int BUFFER_STRIDE = 8;
     private static final int VERTEX_BUFFER_OFFSET = 0;
     private static final int TEXTURE_COORDS_BUFFER_OFFSET = 3;
@@ -34,37 +38,72 @@ public abstract class MeshLoader {
     private boolean excludeNormals;
 
     protected static final String sourceFolder = "meshes/";
-    protected static final Queue<Material> materials = new ArrayDeque<>();
 
-    final List<Vector3f> processedVertices = new ArrayList<>();
-    final List<Vector2f> processedTextureCoords = new ArrayList<>();
-    final List<Vector3f> processedNormals = new ArrayList<>();
-    final List<Integer> processedIndices = new ArrayList<>();
+    protected final List<Material> materials = new ArrayList<>();
+
+    final FloatArray processedVertices = new FloatArray();
+    final FloatArray processedTextureCoords = new FloatArray();
+    final FloatArray processedNormals = new FloatArray();
+    final IntArray processedIndices = new IntArray();
+    final IntArray processedFaces = new IntArray();
+
+    private final FloatArray vertexBuffer = new FloatArray();
+    private final IntArray indices = new IntArray();
+
+    private final List<String> materialLibraries = new ArrayList<>();
 
-    private final Queue<Integer> indices = new ArrayDeque<>();
+    private final VertexWeldMap weldMap = new VertexWeldMap();
+    private final PolygonTriangulator triangulator = new PolygonTriangulator();
+    private final IntArray triangles = new IntArray();
 
-    private float[] vertexBufferArray;
+    private Path assetRoot;
 
-    protected abstract void processObjectLine(String line) throws IllegalArgumentException;
+    protected abstract void processObject(ByteBuffer source) throws IllegalArgumentException;
 
-    protected abstract void processMaterialLine(String line) throws IllegalArgumentException;
+    protected abstract void processMaterial(ByteBuffer source) throws IllegalArgumentException;
 
+    public int getVertexStride() {
+        return BUFFER_STRIDE;
+    }
+
+    /**
+     * First material of the last loaded mesh, null if its material files define none.
+     */
     public Material getMaterial() {
-        return materials.peek();
+        return materials.isEmpty() ? null : materials.get(0);
+    }
+
+    /**
+     * Files found under the asset root are memory mapped instead of read from the classpath.
+     */
+    public void setAssetRoot(Path root) {
+        assetRoot = root;
+    }
+
+    /**
+     * Material files referenced by the last loaded mesh, in the order they were loaded.
+     */
+    public List<String> getMaterialLibraries() {
+        return Collections.unmodifiableList(materialLibraries);
+    }
+
+    public void loadMaterialLibraries(List<String> libraries) throws RuntimeException {
+        materialLibraries.clear();
+        materials.clear();
+        libraries.forEach(this::loadMaterial);
     }
 
     public void loadMesh(String path) throws RuntimeException {
         final String sourcePath = sourceFolder + path;
-        InputStream stream = MeshLoader.class.getResourceAsStream(sourcePath);
-        if (stream == null) throw new IllegalStateException("Unable to find object file " + sourcePath);
-        try (BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(stream, "UTF-8"))) {
-            String line;
-            while ((line = bufferedReader.readLine()) != null)
-                try {
-                    processObjectLine(line);
-                } catch (IllegalArgumentException illegalArgumentEx) {
-                    throw new IllegalStateException("Unable to load object file " + sourcePath);
-                }
+        materialLibraries.clear();
+        materials.clear();
+        try {
+            ByteBuffer source = openSource(sourcePath);
+            if (source == null) throw new IllegalStateException("Unable to find object file " + sourcePath);
+
+            processObject(source);
+        } catch (IllegalArgumentException illegalArgumentEx) {
+            throw new IllegalStateException("Unable to load object file " + sourcePath, illegalArgumentEx);
         } catch (IOException ex) {
             ex.printStackTrace();
         }
@@ -78,136 +117,162 @@ public abstract class MeshLoader {
 
     protected void loadMaterial(String path) throws RuntimeException {
         final String sourcePath = sourceFolder + path;
+        materialLibraries.add(path);
 
-        InputStream stream = MeshLoader.class.getResourceAsStream(sourcePath);
-        if (stream == null) return;
-        try (BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(stream, "UTF-8"))) {
-            String line;
-
-            while ((line = bufferedReader.readLine()) != null) {
-                processMaterialLine(line);
-            }
+        try {
+            ByteBuffer source = openSource(sourcePath);
+            if (source == null) return;
 
+            processMaterial(source);
         } catch (IllegalArgumentException illegalArgumentEx) {
-            throw new IllegalStateException("Unable to load material file" + sourcePath);
+            throw new IllegalStateException("Unable to load material file " + sourcePath, illegalArgumentEx);
         } catch (IOException ex) {
             ex.printStackTrace();
         }
     }
 
     private void loadProcessedData() {
-        final int stride = 1 + (excludeTextureCoords ? 0 : 1) + (excludeNormals ? 0 : 1);
-
-        vertexBufferArray = new float[processedVertices.size() * BUFFER_STRIDE];
-
-        Stream.iterate(0, i -> i < processedIndices.size(), i -> i += stride).forEach(i -> {
-            int vertexIndex = processedIndices.get(i + VERTEX_INDEX_OFFSET);
-            if (vertexIndex > processedVertices.size()) vertexIndex -= processedVertices.size();
-
-            addIndex(vertexIndex);
-
-            if (isVertexUnused(vertexIndex)) {
+        final int cornerTotal = processedIndices.size() / CORNER_STRIDE;
 
-                addVertex(vertexIndex);
+        vertexBuffer.clear();
+        vertexBuffer.ensureCapacity(cornerTotal * BUFFER_STRIDE);
+        indices.clear();
+        indices.ensureCapacity(cornerTotal);
+        weldMap.reset(cornerTotal);
 
-                int texCoordIndex = processedIndices.get(i + TEXTURE_COORDS_INDEX_OFFSET);
-                if (texCoordIndex > processedTextureCoords.size()) texCoordIndex -= processedTextureCoords.size();
-                addTexCoord(vertexIndex, texCoordIndex);
+        int firstCorner = 0;
+        for (int face = 0; face < processedFaces.size(); face++) {
+            final int cornerCount = processedFaces.get(face);
 
-                int normalIndex = processedIndices.get(i + NORMAL_INDEX_OFFSET);
-                if (normalIndex > processedNormals.size()) normalIndex -= processedNormals.size();
-                addNormal(vertexIndex, normalIndex);
+            if (cornerCount > 3) triangulatePolygon(firstCorner, cornerCount);
+            else if (cornerCount == 3) {
+                for (int corner = firstCorner; corner < firstCorner + cornerCount; corner++) {
+                    addCorner(corner);
+                }
             }
-        });
+            firstCorner += cornerCount;
+        }
     }
 
+    /**
+     * Number of unique (vertex, texcoord, normal) combinations in the last loaded mesh.
+     */
+    public int getVertexCount() {
+        return vertexBuffer.size() / BUFFER_STRIDE;
+    }
+
+    /**
+     * Hands out the indices of the last loaded mesh and releases the loader's copy.
+     */
     public IntBuffer getIndicesBuffer() {
-        IntBuffer indicesBuffer = BufferUtils.createIntBuffer(indices.size());
-        indices.forEach(indicesBuffer::put);
-        indicesBuffer.flip();
-        indices.clear();
+        IntBuffer indicesBuffer = indices.toBuffer();
+        indices.release(RETAINED_SCRATCH_CAPACITY);
         return indicesBuffer;
     }
 
+    /**
+     * Hands out the vertices of the last loaded mesh and releases the loader's copy, the vertex count reads zero
+     * afterwards.
+     */
     public FloatBuffer getVerticesBuffer() {
-        FloatBuffer floatBuffer = BufferUtils.createFloatBuffer(vertexBufferArray.length);
-        floatBuffer.put(vertexBufferArray);
-        floatBuffer.flip();
-        return floatBuffer;
+        FloatBuffer verticesBuffer = vertexBuffer.toBuffer();
+        vertexBuffer.release(RETAINED_SCRATCH_CAPACITY);
+        return verticesBuffer;
     }
 
-    protected void process(String line, String prefix, Consumer<String> action) {
-        try {
-            if (line.startsWith(prefix)) action.accept(line);
+    protected ByteBuffer openSource(String sourcePath) throws IOException {
+        if (assetRoot != null) {
+            Path file = assetRoot.resolve(sourcePath);
+            if (Files.isRegularFile(file)) {
+                try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                    return channel.map(FileChannel.MapMode.READ_ONLY, 0L, channel.size());
+                }
+            }
+        }
 
-        } catch (Exception ex) {
-            ex.printStackTrace();
+        InputStream stream = MeshLoader.class.getResourceAsStream(sourcePath);
+        if (stream == null) return null;
+        try (InputStream inputStream = stream) {
+            return ByteBuffer.wrap(inputStream.readAllBytes());
         }
     }
 
-    protected Vector toVector(String meshDataFragment) {
-        try {
-            var vecData = Arrays.stream(meshDataFragment.trim().split(" ")).map(Float::parseFloat).toArray();
-            if (vecData.length == VECTOR2F_COORDS) {
-                return VectorUtils.create((float) vecData[0], (float) vecData[1]);
-            }
-            if (vecData.length == VECTOR3F_COORDS) {
-                return VectorUtils.create((float) vecData[0], (float) vecData[1], (float) vecData[2]);
-            }
-        } catch (ArrayIndexOutOfBoundsException arrayIndexOutOfBoundsEx) {
-            arrayIndexOutOfBoundsEx.printStackTrace();
+    protected void triangulatePolygon(int firstCorner, int cornerCount) {
+        triangles.clear();
+        triangulator.triangulate(processedVertices, processedIndices, firstCorner, cornerCount, triangles);
+
+        for (int i = 0; i < triangles.size(); i++) {
+            addCorner(firstCorner + triangles.get(i));
         }
-        return VectorUtils.create(0f, 0f, 0f);
     }
 
-    protected void triangulatePolygon(List<String> face) {
-        //TODO have to triangulate n polygons even with gaps
+    protected static int resolveIndex(int objIndex, int count) throws IllegalArgumentException {
+        if (objIndex > 0) return objIndex - 1;
+        if (objIndex < 0) return count + objIndex;
+        throw new IllegalArgumentException("Zero index is not allowed");
     }
 
-    private boolean isVertexUnused(int i) {
-        return processedVertices.get(i) != null;
+    private void addCorner(int corner) {
+        final int i = corner * CORNER_STRIDE;
+        final int vertexIndex = processedIndices.get(i + VERTEX_INDEX_OFFSET);
+        final int texCoordIndex = excludeTextureCoords ? MISSING_INDEX : processedIndices.get(i + TEXTURE_COORDS_INDEX_OFFSET);
+        final int normalIndex = excludeNormals ? MISSING_INDEX : processedIndices.get(i + NORMAL_INDEX_OFFSET);
+
+        final int nextIndex = getVertexCount();
+        final int index = weldMap.getOrAdd(vertexIndex, texCoordIndex, normalIndex, nextIndex);
+
+        if (index == nextIndex) {
+            vertexBuffer.resize(vertexBuffer.size() + BUFFER_STRIDE);
+            addVertex(index, vertexIndex);
+            addTexCoord(index, texCoordIndex);
+            addNormal(index, normalIndex);
+        }
+        addIndex(index);
     }
 
     private void addIndex(int i) {
         indices.add(i);
     }
 
-    private void addVertex(int vertexIndex) {
-        Vector3f vertex = processedVertices.get(vertexIndex);
-        vertexBufferArray[vertexIndex * BUFFER_STRIDE + VERTEX_BUFFER_OFFSET] = vertex.x;
-        vertexBufferArray[vertexIndex * BUFFER_STRIDE + VERTEX_BUFFER_OFFSET + 1] = vertex.y;
-        vertexBufferArray[vertexIndex * BUFFER_STRIDE + VERTEX_BUFFER_OFFSET + 2] = vertex.z;
-        processedVertices.set(vertexIndex, null);
+    private void addVertex(int index, int vertexIndex) {
+        final float[] vertexBufferArray = vertexBuffer.array();
+        final int offset = index * BUFFER_STRIDE + VERTEX_BUFFER_OFFSET;
+        for (int i = 0; i < VECTOR3F_COORDS; i++) {
+            vertexBufferArray[offset + i] = processedVertices.get(vertexIndex * VECTOR3F_COORDS + i);
+        }
     }
 
-    private void addTexCoord(int vertexIndex, int textureCoordIndex) {
-        if (excludeTextureCoords) {
-            for (int i = 0; i < 2; i++) {
-                vertexBufferArray[vertexIndex * BUFFER_STRIDE + TEXTURE_COORDS_BUFFER_OFFSET + i] = 0.0f;
-            }
+    private void addTexCoord(int index, int textureCoordIndex) {
+        if (textureCoordIndex == MISSING_INDEX) return;
+
+        final float[] vertexBufferArray = vertexBuffer.array();
+        final int offset = index * BUFFER_STRIDE + TEXTURE_COORDS_BUFFER_OFFSET;
+        for (int i = 0; i < VECTOR2F_COORDS; i++) {
+            vertexBufferArray[offset + i] = processedTextureCoords.get(textureCoordIndex * VECTOR2F_COORDS + i);
         }
-        Vector2f texCoord = processedTextureCoords.get(textureCoordIndex);
-        vertexBufferArray[vertexIndex * BUFFER_STRIDE + TEXTURE_COORDS_BUFFER_OFFSET] = texCoord.x;
-        vertexBufferArray[vertexIndex * BUFFER_STRIDE + TEXTURE_COORDS_BUFFER_OFFSET + 1] = texCoord.y;
     }
 
-    private void addNormal(int vertexIndex, int normalIndex) {
-        if (excludeNormals) {
-            for (int i = 0; i < 3; i++) {
-                vertexBufferArray[vertexIndex * BUFFER_STRIDE + NORMAL_BUFFER_OFFSET + i] = 0.0f;
-            }
+    private void addNormal(int index, int normalIndex) {
+        if (normalIndex == MISSING_INDEX) return;
+
+        final float[] vertexBufferArray = vertexBuffer.array();
+        final int offset = index * BUFFER_STRIDE + NORMAL_BUFFER_OFFSET;
+        for (int i = 0; i < VECTOR3F_COORDS; i++) {
+            vertexBufferArray[offset + i] = processedNormals.get(normalIndex * VECTOR3F_COORDS + i);
         }
-        Vector3f normal = processedNormals.get(normalIndex);
-        vertexBufferArray[vertexIndex * BUFFER_STRIDE + NORMAL_BUFFER_OFFSET] = normal.x;
-        vertexBufferArray[vertexIndex * BUFFER_STRIDE + NORMAL_BUFFER_OFFSET + 1] = normal.y;
-        vertexBufferArray[vertexIndex * BUFFER_STRIDE + NORMAL_BUFFER_OFFSET + 2] = normal.z;
     }
 
+    /**
+     * Loaders live on as long as their thread, so scratch grown by a large mesh is dropped once the mesh is done.
+     */
     private void clear() {
-        processedVertices.clear();
-        processedTextureCoords.clear();
-        processedNormals.clear();
-        processedIndices.clear();
+        processedVertices.release(RETAINED_SCRATCH_CAPACITY);
+        processedTextureCoords.release(RETAINED_SCRATCH_CAPACITY);
+        processedNormals.release(RETAINED_SCRATCH_CAPACITY);
+        processedIndices.release(RETAINED_SCRATCH_CAPACITY);
+        processedFaces.release(RETAINED_SCRATCH_CAPACITY);
+        weldMap.release(RETAINED_SCRATCH_CAPACITY);
+        triangles.release(RETAINED_SCRATCH_CAPACITY);
     }
 
 }
@@ -1,82 +1,213 @@
 package geometry.loaders;
 
-import org.lwjgl.util.vector.Vector3f;
-import org.lwjgl.util.vector.Vector2f;
-
-import java.util.Arrays;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 public class MeshLoaderWaveFront extends MeshLoader {
 
-    private static final String VERTEX_PREFIX = "v ";
-    private static final String TEXCOORDS_PREFIX = "vt ";
-    private static final String NORMAL_PREFIX = "vn ";
-    private static final String FACE_PREFIX = "f ";
-    private static final String NEW_MATERIAL_PREFIX = "newmtl ";
-    private static final String MATERIAL_PREFIX = "mtllib ";
-
-    private static final String DISSOLVE_FACTOR_PREFIX = "d ";
-    private static final String SPECULAR_FACTOR_PREFIX = "Ns ";
-    private static final String COLOR_AMBIENT_PREFIX = "Ka ";
-    private static final String COLOR_DIFFUSE_PREFIX = "Kd ";
-    private static final String COLOR_SPECULAR_PREFIX = "Ks ";
-    private static final String COLOR_EMISSIVE_PREFIX = "Ke ";
+    private static final int DEFAULT_PARALLEL_THRESHOLD = 8 << 20;
+    private static final int DEFAULT_MIN_CHUNK_SIZE = 1 << 20;
+    private static final int CHUNKS_PER_THREAD = 4;
+
+    private static final long VERTEX_KEYWORD = AsciiTokenizer.keyword("v");
+    private static final long TEXCOORDS_KEYWORD = AsciiTokenizer.keyword("vt");
+    private static final long NORMAL_KEYWORD = AsciiTokenizer.keyword("vn");
+    private static final long FACE_KEYWORD = AsciiTokenizer.keyword("f");
+    private static final long MATERIAL_KEYWORD = AsciiTokenizer.keyword("mtllib");
+
+    private static final long NEW_MATERIAL_KEYWORD = AsciiTokenizer.keyword("newmtl");
+    private static final long DISSOLVE_FACTOR_KEYWORD = AsciiTokenizer.keyword("d");
+    private static final long SPECULAR_FACTOR_KEYWORD = AsciiTokenizer.keyword("Ns");
+    private static final long COLOR_AMBIENT_KEYWORD = AsciiTokenizer.keyword("Ka");
+    private static final long COLOR_DIFFUSE_KEYWORD = AsciiTokenizer.keyword("Kd");
+    private static final long COLOR_SPECULAR_KEYWORD = AsciiTokenizer.keyword("Ks");
+    private static final long COLOR_EMISSIVE_KEYWORD = AsciiTokenizer.keyword("Ke");
+
+    private static final long MAP_AMBIENT_KEYWORD = AsciiTokenizer.keyword("map_Ka");
+    private static final long MAP_DIFFUSE_KEYWORD = AsciiTokenizer.keyword("map_Kd");
+    private static final long MAP_SPECULAR_KEYWORD = AsciiTokenizer.keyword("map_Ks");
+
+    private final AsciiTokenizer tokenizer = new AsciiTokenizer();
+    private final AsciiTokenizer materialTokenizer = new AsciiTokenizer();
+
+    private final WaveFrontChunk sequentialChunk = new WaveFrontChunk(processedVertices, processedTextureCoords,
+            processedNormals, processedIndices, processedFaces);
+    private final List<WaveFrontChunk> chunks = new ArrayList<>();
+
+    private int parallelThreshold = DEFAULT_PARALLEL_THRESHOLD;
+    private int minChunkSize = DEFAULT_MIN_CHUNK_SIZE;
+
+    /**
+     * Object files of at least this many bytes are split at line boundaries and parsed on the common fork-join pool.
+     */
+    public void setParallelThreshold(int bytes) {
+        parallelThreshold = bytes;
+    }
 
-    private static final String MAP_AMBIENT_PREFIX = "map_Ka ";
-    private static final String MAP_DIFFUSE_PREFIX = "map_Kd ";
-    private static final String MAP_SPECULAR_PREFIX = "map_Ks ";
+    /**
+     * Smallest part of a split object file parsed by one task.
+     */
+    public void setMinChunkSize(int bytes) {
+        if (bytes <= 0) throw new IllegalStateException("Invalid chunk size of " + bytes + " bytes!");
+        minChunkSize = bytes;
+    }
 
     @Override
-    protected void processObjectLine(String line) throws IllegalArgumentException {
-        process(line, VERTEX_PREFIX, mdf -> {
-            Vector3f vertex = (Vector3f) toVector(mdf.substring(2).trim());
-            processedVertices.add(vertex);
-        });
-
-        process(line, TEXCOORDS_PREFIX, mdf -> {
-            Vector2f texCoord = (Vector2f) toVector(mdf.substring(3).trim());
-            processedTextureCoords.add(texCoord);
-        });
-
-        process(line, NORMAL_PREFIX, mdf -> {
-            Vector3f normal = (Vector3f) toVector(mdf.substring(3).trim());
-            processedNormals.add(normal);
-        });
-
-        process(line, FACE_PREFIX, mdf -> {
-            List<String> face = Arrays.stream(mdf.substring(2).trim().split(" ")).collect(Collectors.toList());
-            if (face.size() > 3) triangulatePolygon(face);
-            face.forEach(f -> {
-                if (!f.contains("/")) processedIndices.add(Integer.parseInt(f) - 1);
-                else Arrays.stream(f.split("/")).mapToInt(i -> Integer.parseInt(i) - 1).forEach(processedIndices::add);
-            });
-        });
-
-        process(line, MATERIAL_PREFIX, mdf -> loadMaterial(mdf.substring(7).trim()));
+    protected void processObject(ByteBuffer source) throws IllegalArgumentException {
+        final int start = source.position();
+        final int end = source.limit();
+        final int chunkCount = getChunkCount(end - start);
+
+        if (chunkCount <= 1) {
+            sequentialChunk.relativeCorners.clear();
+            sequentialChunk.materialLibraries.clear();
+
+            parse(tokenizer.reset(source, start, end), sequentialChunk);
+            sequentialChunk.materialLibraries.forEach(this::loadMaterial);
+            return;
+        }
+
+        final List<ForkJoinTask<?>> tasks = new ArrayList<>(chunkCount);
+        int chunkStart = start;
+        for (int i = 0; i < chunkCount; i++) {
+            int chunkEnd = i == chunkCount - 1 ? end : start + (int) ((long) (end - start) * (i + 1) / chunkCount);
+            chunkEnd = Math.max(chunkEnd, chunkStart);
+            while (chunkEnd < end && source.get(chunkEnd - 1) != '\n') chunkEnd++;
+
+            final WaveFrontChunk chunk = getChunk(i);
+            chunk.clear();
+            chunk.start = chunkStart;
+            chunk.end = chunkEnd;
+            tasks.add(ForkJoinTask.adapt(() -> parse(new AsciiTokenizer().reset(source, chunk.start, chunk.end), chunk)));
+
+            chunkStart = chunkEnd;
+        }
+        ForkJoinTask.invokeAll(tasks);
+
+        for (int i = 0; i < chunkCount; i++) mergeChunk(chunks.get(i));
+        for (int i = 0; i < chunkCount; i++) chunks.get(i).materialLibraries.forEach(this::loadMaterial);
+        for (int i = 0; i < chunkCount; i++) chunks.get(i).release(RETAINED_SCRATCH_CAPACITY);
     }
 
-    @Override
-    protected void processMaterialLine(String line) throws IllegalArgumentException {
-        process(line, SPECULAR_FACTOR_PREFIX, mdf -> getMaterial().setSpecularFactor(Float.parseFloat(mdf.substring(3).trim())));
+    private int getChunkCount(int length) {
+        if (length < parallelThreshold) return 1;
+        final int maxChunks = ForkJoinPool.getCommonPoolParallelism() * CHUNKS_PER_THREAD;
+        return Math.max(1, Math.min(maxChunks, length / minChunkSize));
+    }
 
-        process(line, DISSOLVE_FACTOR_PREFIX, mdf -> getMaterial().setDissolveFactor(Float.parseFloat(mdf.substring(2).trim())));
+    private WaveFrontChunk getChunk(int i) {
+        while (chunks.size() <= i) chunks.add(new WaveFrontChunk());
+        return chunks.get(i);
+    }
 
-        process(line, COLOR_AMBIENT_PREFIX, mdf -> getMaterial().setAmbientColor((Vector3f) toVector(mdf.substring(3).trim())));
+    private void mergeChunk(WaveFrontChunk chunk) {
+        final int[] bases = {
+                processedVertices.size() / 3,
+                processedTextureCoords.size() / 2,
+                processedNormals.size() / 3
+        };
+        final int cornerBase = processedIndices.size();
+
+        processedVertices.addAll(chunk.vertices);
+        processedTextureCoords.addAll(chunk.textureCoords);
+        processedNormals.addAll(chunk.normals);
+        processedIndices.addAll(chunk.corners);
+        processedFaces.addAll(chunk.faces);
+
+        for (int i = 0; i < chunk.relativeCorners.size(); i++) {
+            final int slot = chunk.relativeCorners.get(i);
+            processedIndices.set(cornerBase + slot, processedIndices.get(cornerBase + slot) + bases[slot % CORNER_STRIDE]);
+        }
+    }
+
+    private static void parse(AsciiTokenizer tokenizer, WaveFrontChunk chunk) throws IllegalArgumentException {
+        while (tokenizer.hasRemaining()) {
+            final long keyword = tokenizer.readKeyword();
+
+            if (keyword == VERTEX_KEYWORD) {
+                chunk.vertices.add(tokenizer.readFloat(), tokenizer.readFloat(), tokenizer.readFloat());
+            } else if (keyword == TEXCOORDS_KEYWORD) {
+                chunk.textureCoords.add(tokenizer.readFloat(), tokenizer.readFloat());
+            } else if (keyword == NORMAL_KEYWORD) {
+                chunk.normals.add(tokenizer.readFloat(), tokenizer.readFloat(), tokenizer.readFloat());
+            } else if (keyword == FACE_KEYWORD) {
+                parseFace(tokenizer, chunk);
+            } else if (keyword == MATERIAL_KEYWORD) {
+                chunk.materialLibraries.add(tokenizer.readRest());
+            }
+            tokenizer.nextLine();
+        }
+    }
 
-        process(line, COLOR_DIFFUSE_PREFIX, mdf -> getMaterial().setDiffuseColor((Vector3f) toVector(mdf.substring(3).trim())));
+    private static void parseFace(AsciiTokenizer tokenizer, WaveFrontChunk chunk) throws IllegalArgumentException {
+        int cornerCount = 0;
 
-        process(line, COLOR_SPECULAR_PREFIX, mdf -> getMaterial().setSpecularColor((Vector3f) toVector(mdf.substring(3).trim())));
+        while (tokenizer.skipBlanks()) {
+            final int slot = chunk.corners.size();
+            int vertexIndex = resolveCorner(tokenizer.readInt(), chunk.vertices.size() / 3, chunk, slot);
+            int texCoordIndex = MISSING_INDEX;
+            int normalIndex = MISSING_INDEX;
 
-        process(line, COLOR_EMISSIVE_PREFIX, mdf -> getMaterial().setEmissiveColor((Vector3f) toVector(mdf.substring(3).trim())));
+            if (tokenizer.skip('/')) {
+                if (!tokenizer.skip('/')) {
+                    texCoordIndex = resolveCorner(tokenizer.readInt(), chunk.textureCoords.size() / 2, chunk, slot + 1);
+                    if (tokenizer.skip('/')) normalIndex = resolveCorner(tokenizer.readInt(), chunk.normals.size() / 3, chunk, slot + 2);
+                } else normalIndex = resolveCorner(tokenizer.readInt(), chunk.normals.size() / 3, chunk, slot + 2);
+            }
 
-        process(line, MAP_AMBIENT_PREFIX, mdf -> getMaterial().setAmbientTextureMap(mdf.substring(7).trim()));
+            chunk.corners.add(vertexIndex, texCoordIndex, normalIndex);
+            cornerCount++;
+        }
 
-        process(line, MAP_DIFFUSE_PREFIX, mdf -> getMaterial().setDiffuseTextureMap(mdf.substring(7).trim()));
+        chunk.faces.add(cornerCount);
+    }
 
-        process(line, MAP_SPECULAR_PREFIX, mdf -> getMaterial().setSpecularTextureMap(mdf.substring(7).trim()));
+    private static int resolveCorner(int objIndex, int count, WaveFrontChunk chunk, int slot) throws IllegalArgumentException {
+        if (objIndex < 0) chunk.relativeCorners.add(slot);
+        return resolveIndex(objIndex, count);
+    }
 
-        process(line, NEW_MATERIAL_PREFIX, mdf -> materials.add(new Material(mdf.substring(7).trim())));
+    @Override
+    protected void processMaterial(ByteBuffer source) throws IllegalArgumentException {
+        materialTokenizer.reset(source, source.position(), source.limit());
+        Material material = null;
+
+        while (materialTokenizer.hasRemaining()) {
+            final long keyword = materialTokenizer.readKeyword();
+
+            if (keyword == NEW_MATERIAL_KEYWORD) {
+                material = new Material(materialTokenizer.readRest());
+                materials.add(material);
+            } else if (material != null) {
+                if (keyword == SPECULAR_FACTOR_KEYWORD) {
+                    material.setSpecularFactor(materialTokenizer.readFloat());
+                } else if (keyword == DISSOLVE_FACTOR_KEYWORD) {
+                    material.setDissolveFactor(materialTokenizer.readFloat());
+                } else if (keyword == COLOR_AMBIENT_KEYWORD) {
+                    material.setAmbientColor(materialTokenizer.readFloat(), materialTokenizer.readFloat(),
+                            materialTokenizer.readFloat());
+                } else if (keyword == COLOR_DIFFUSE_KEYWORD) {
+                    material.setDiffuseColor(materialTokenizer.readFloat(), materialTokenizer.readFloat(),
+                            materialTokenizer.readFloat());
+                } else if (keyword == COLOR_SPECULAR_KEYWORD) {
+                    material.setSpecularColor(materialTokenizer.readFloat(), materialTokenizer.readFloat(),
+                            materialTokenizer.readFloat());
+                } else if (keyword == COLOR_EMISSIVE_KEYWORD) {
+                    material.setEmissiveColor(materialTokenizer.readFloat(), materialTokenizer.readFloat(),
+                            materialTokenizer.readFloat());
+                } else if (keyword == MAP_AMBIENT_KEYWORD) {
+                    material.setAmbientTextureMap(materialTokenizer.readRest());
+                } else if (keyword == MAP_DIFFUSE_KEYWORD) {
+                    material.setDiffuseTextureMap(materialTokenizer.readRest());
+                } else if (keyword == MAP_SPECULAR_KEYWORD) {
+                    material.setSpecularTextureMap(materialTokenizer.readRest());
+                }
+            }
+            materialTokenizer.nextLine();
+        }
     }
 
 }
@@ -0,0 +1,149 @@
+package geometry.loaders;
+
+import utils.FloatArray;
+import utils.IntArray;
+
+/**
+ * Splits polygon faces into triangles. Convex faces become a fan, concave ones are ear clipped after being
+ * projected onto their best-fit plane. All scratch storage is kept between calls.
+ */
+final class PolygonTriangulator {
+
+    private static final float EPSILON = 1e-12f;
+
+    private float[] projected = new float[16];
+    private int[] previous = new int[8];
+    private int[] next = new int[8];
+
+    /**
+     * Appends triangles as corner offsets relative to {@code firstCorner} and returns how many were written.
+     */
+    int triangulate(FloatArray positions, IntArray corners, int firstCorner, int cornerCount, IntArray triangles) {
+        if (cornerCount < 3) return 0;
+        ensureCapacity(cornerCount);
+        project(positions, corners, firstCorner, cornerCount);
+
+        if (isConvex(cornerCount)) {
+            for (int i = 1; i < cornerCount - 1; i++) triangles.add(0, i, i + 1);
+            return cornerCount - 2;
+        }
+        return clipEars(cornerCount, triangles);
+    }
+
+    private void project(FloatArray positions, IntArray corners, int firstCorner, int cornerCount) {
+        final float[] p = positions.array();
+
+        float nx = 0f;
+        float ny = 0f;
+        float nz = 0f;
+        for (int i = 0; i < cornerCount; i++) {
+            final int a = getPosition(corners, firstCorner + i);
+            final int b = getPosition(corners, firstCorner + (i + 1) % cornerCount);
+            nx += (p[a + 1] - p[b + 1]) * (p[a + 2] + p[b + 2]);
+            ny += (p[a + 2] - p[b + 2]) * (p[a] + p[b]);
+            nz += (p[a] - p[b]) * (p[a + 1] + p[b + 1]);
+        }
+
+        final float ax = Math.abs(nx);
+        final float ay = Math.abs(ny);
+        final float az = Math.abs(nz);
+
+        int u;
+        int v;
+        float sign;
+        if (ax >= ay && ax >= az) {
+            u = 1;
+            v = 2;
+            sign = nx;
+        } else if (ay >= az) {
+            u = 2;
+            v = 0;
+            sign = ny;
+        } else {
+            u = 0;
+            v = 1;
+            sign = nz;
+        }
+        final float flip = sign < 0f ? -1f : 1f;
+
+        for (int i = 0; i < cornerCount; i++) {
+            final int position = getPosition(corners, firstCorner + i);
+            projected[i * 2] = p[position + u];
+            projected[i * 2 + 1] = p[position + v] * flip;
+        }
+    }
+
+    private boolean isConvex(int cornerCount) {
+        for (int i = 0; i < cornerCount; i++) {
+            if (cross(i, (i + 1) % cornerCount, (i + 2) % cornerCount) < 0f) return false;
+        }
+        return true;
+    }
+
+    private int clipEars(int cornerCount, IntArray triangles) {
+        for (int i = 0; i < cornerCount; i++) {
+            previous[i] = (i + cornerCount - 1) % cornerCount;
+            next[i] = (i + 1) % cornerCount;
+        }
+
+        int remaining = cornerCount;
+        int current = 0;
+        int attempts = 0;
+        int written = 0;
+
+        while (remaining > 3) {
+            final int a = previous[current];
+            final int c = next[current];
+
+            if (isEar(a, current, c) || attempts >= remaining) {
+                triangles.add(a, current, c);
+                written++;
+
+                next[a] = c;
+                previous[c] = a;
+                remaining--;
+                attempts = 0;
+                current = c;
+            } else {
+                attempts++;
+                current = c;
+            }
+        }
+
+        triangles.add(previous[current], current, next[current]);
+        return written + 1;
+    }
+
+    private boolean isEar(int a, int b, int c) {
+        if (cross(a, b, c) <= EPSILON) return false;
+
+        for (int i = next[c]; i != a; i = next[i]) {
+            if (cross(previous[i], i, next[i]) > 0f) continue;
+            if (contains(a, b, c, i)) return false;
+        }
+        return true;
+    }
+
+    private boolean contains(int a, int b, int c, int point) {
+        return cross(a, b, point) >= 0f && cross(b, c, point) >= 0f && cross(c, a, point) >= 0f;
+    }
+
+    private float cross(int a, int b, int c) {
+        final float abx = projected[b * 2] - projected[a * 2];
+        final float aby = projected[b * 2 + 1] - projected[a * 2 + 1];
+        final float acx = projected[c * 2] - projected[a * 2];
+        final float acy = projected[c * 2 + 1] - projected[a * 2 + 1];
+        return abx * acy - aby * acx;
+    }
+
+    private void ensureCapacity(int cornerCount) {
+        if (next.length >= cornerCount) return;
+        projected = new float[cornerCount * 2];
+        previous = new int[cornerCount];
+        next = new int[cornerCount];
+    }
+
+    private static int getPosition(IntArray corners, int corner) {
+        return corners.get(corner * MeshLoader.CORNER_STRIDE) * 3;
+    }
+}
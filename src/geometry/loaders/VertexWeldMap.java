@@ -0,0 +1,99 @@
+package geometry.loaders;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing map from (vertex, texcoord, normal) index triples to output vertex indices.
+ * Keys and values live in flat int arrays that are reused between loads.
+ */
+final class VertexWeldMap {
+
+    private static final int EMPTY = -1;
+    private static final int MIN_CAPACITY = 16;
+
+    private int[] keys = new int[MIN_CAPACITY * 3];
+    private int[] values = new int[MIN_CAPACITY];
+    private int mask;
+    private int size;
+
+    void reset(int expectedSize) {
+        final int capacity = Math.max(MIN_CAPACITY, Integer.highestOneBit(Math.max(1, expectedSize) * 2 - 1) << 1);
+        if (values.length < capacity) {
+            keys = new int[capacity * 3];
+            values = new int[capacity];
+        }
+        Arrays.fill(values, 0, capacity, EMPTY);
+        mask = capacity - 1;
+        size = 0;
+    }
+
+    /**
+     * Empties the map and drops tables of more than {@code maxCapacity} slots.
+     */
+    void release(int maxCapacity) {
+        if (values.length > maxCapacity) {
+            keys = new int[MIN_CAPACITY * 3];
+            values = new int[MIN_CAPACITY];
+        }
+        Arrays.fill(values, EMPTY);
+        mask = values.length - 1;
+        size = 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Returns the value stored for the triple, or stores and returns {@code value} if there is none yet.
+     */
+    int getOrAdd(int v, int vt, int vn, int value) {
+        if ((size + 1) * 2 > mask + 1) grow();
+
+        int slot = hash(v, vt, vn) & mask;
+        while (values[slot] != EMPTY) {
+            final int key = slot * 3;
+            if (keys[key] == v && keys[key + 1] == vt && keys[key + 2] == vn) return values[slot];
+            slot = (slot + 1) & mask;
+        }
+
+        final int key = slot * 3;
+        keys[key] = v;
+        keys[key + 1] = vt;
+        keys[key + 2] = vn;
+        values[slot] = value;
+        size++;
+        return value;
+    }
+
+    private void grow() {
+        final int[] oldKeys = keys;
+        final int[] oldValues = values;
+        final int oldCapacity = mask + 1;
+        final int capacity = oldCapacity << 1;
+
+        keys = new int[capacity * 3];
+        values = new int[capacity];
+        Arrays.fill(values, EMPTY);
+        mask = capacity - 1;
+
+        for (int i = 0; i < oldCapacity; i++) {
+            if (oldValues[i] == EMPTY) continue;
+            final int v = oldKeys[i * 3];
+            final int vt = oldKeys[i * 3 + 1];
+            final int vn = oldKeys[i * 3 + 2];
+
+            int slot = hash(v, vt, vn) & mask;
+            while (values[slot] != EMPTY) slot = (slot + 1) & mask;
+            keys[slot * 3] = v;
+            keys[slot * 3 + 1] = vt;
+            keys[slot * 3 + 2] = vn;
+            values[slot] = oldValues[i];
+        }
+    }
+
+    private static int hash(int v, int vt, int vn) {
+        int h = v * 0x9E3779B1 ^ vt * 0x85EBCA77 ^ vn * 0xC2B2AE3D;
+        return h ^ (h >>> 16);
+    }
+}
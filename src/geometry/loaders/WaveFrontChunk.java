@@ -0,0 +1,59 @@
+package geometry.loaders;
+
+import utils.FloatArray;
+import utils.IntArray;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Raw records parsed from one line aligned range of an object file. Positive indices are stored
+ * as absolute, negative ones are resolved against the chunk's own counts and listed in
+ * {@link #relativeCorners}, so they can be rebased once the preceding chunks are known.
+ */
+final class WaveFrontChunk {
+
+    final FloatArray vertices;
+    final FloatArray textureCoords;
+    final FloatArray normals;
+    final IntArray corners;
+    final IntArray faces;
+
+    final IntArray relativeCorners = new IntArray();
+    final List<String> materialLibraries = new ArrayList<>();
+
+    int start;
+    int end;
+
+    WaveFrontChunk() {
+        this(new FloatArray(), new FloatArray(), new FloatArray(), new IntArray(), new IntArray());
+    }
+
+    WaveFrontChunk(FloatArray v, FloatArray vt, FloatArray vn, IntArray c, IntArray f) {
+        vertices = v;
+        textureCoords = vt;
+        normals = vn;
+        corners = c;
+        faces = f;
+    }
+
+    void clear() {
+        vertices.clear();
+        textureCoords.clear();
+        normals.clear();
+        corners.clear();
+        faces.clear();
+        relativeCorners.clear();
+        materialLibraries.clear();
+    }
+
+    void release(int maxCapacity) {
+        vertices.release(maxCapacity);
+        textureCoords.release(maxCapacity);
+        normals.release(maxCapacity);
+        corners.release(maxCapacity);
+        faces.release(maxCapacity);
+        relativeCorners.release(maxCapacity);
+        materialLibraries.clear();
+    }
+}
@@ -1,14 +1,22 @@
 package main;
 
 import geometry.IMeshFactory;
-import geometry.Mesh;
 import geometry.MeshFactory;
+import geometry.MeshOptimizer;
+import geometry.MeshSimplifier;
+import geometry.VertexFormat;
 import org.lwjgl.LWJGLException;
 import org.lwjgl.opengl.Display;
 import org.lwjgl.opengl.DisplayMode;
 import org.lwjgl.opengl.GL11;
 import org.lwjgl.opengl.PixelFormat;
+import renderers.MaterialBuffer;
+import renderers.MeshArena;
+import renderers.RenderQueue;
+import scene.SceneGraph;
+import utils.GLStateCache;
 import utils.MatrixUtils;
+import utils.OcclusionCuller;
 import utils.ShaderUtils;
 
 import java.awt.Frame;
@@ -17,6 +25,8 @@ import java.awt.Dimension;
 import java.awt.BorderLayout;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 
 public class Application implements Runnable {
 
@@ -31,8 +41,11 @@ public class Application implements Runnable {
     private Timer timer;
 
     private IMeshFactory meshFactory;
-    private Mesh stalkerModel;
-    private Mesh lingerieModel;
+    private final RenderQueue renderQueue = new RenderQueue();
+    private final SceneGraph scene = new SceneGraph();
+    private final OcclusionCuller occlusionCuller = new OcclusionCuller(256, 128);
+    private int stalkerNode;
+    private int lingerieNode;
     private float angle;
 
     public Application(Frame f, Canvas c, int w, int h, boolean isFullscreen) {
@@ -43,7 +56,15 @@ public class Application implements Runnable {
         displayHeight = h;
 
         timer = new Timer(60);
-        meshFactory = new MeshFactory();
+        final Path assetRoot = Paths.get(System.getProperty("user.dir"));
+        MeshFactory factory = new MeshFactory(assetRoot);
+        factory.setCacheDirectory(assetRoot.resolve("cache"));
+        factory.setOptimizer(new MeshOptimizer());
+        factory.setSimplifier(new MeshSimplifier());
+        factory.setVertexFormat(VertexFormat.COMPACT);
+        factory.setArena(new MeshArena());
+        factory.setOccludersEnabled(true);
+        meshFactory = factory;
     }
 
     private void initializeGLContext() throws LWJGLException {
@@ -60,16 +81,19 @@ public class Application implements Runnable {
         Display.create(pixelFormat);
 
         GL11.glClearColor(0f, 0.8f, 0.85f, 1f);
-        GL11.glEnable(GL11.GL_TEXTURE_2D);
-        GL11.glEnable(GL11.GL_DEPTH_TEST);
+        GLStateCache.get().setCapability(GL11.GL_TEXTURE_2D, true);
+        GLStateCache.get().setCapability(GL11.GL_DEPTH_TEST, true);
 
         ShaderUtils.initializeShaderProgram();
         MatrixUtils.setPerspective(60f, (float) displayWidth / (float) displayHeight, 0.1f, 256f);
+        renderQueue.setDepthRange(0.1f, 256f);
+        MatrixUtils.setOcclusionCuller(occlusionCuller);
     }
 
     private void initializeScene() {
-        lingerieModel = meshFactory.create("SentinelLingerie.obj");
-        stalkerModel = meshFactory.create("Stalker.obj");
+        lingerieNode = createNode("SentinelLingerie.obj", -2f, -2f, -8f);
+        stalkerNode = createNode("Stalker.obj", 1f, -0.9f, -3.5f);
+        scene.setOccluder(stalkerNode, true);
         //rawModel = meshFactory.create("Cobble.obj");
         //rawModel = meshFactory.create("Turret.obj");
     }
@@ -90,19 +114,19 @@ public class Application implements Runnable {
                 Display.sync(60);
 
                 GL11.glClear(0x4100);
+                meshFactory.processUploads();
+                MatrixUtils.getFrustum().resetCounters();
+                occlusionCuller.resetCounters();
 
-                MatrixUtils.pushMatrix();
-                MatrixUtils.translate(-2f, -2f, -8f);
                 angle = Math.min(angle + 5f * timer.getDeltaTime(), 360f);
-                MatrixUtils.rotate(angle, 0f, 1f, 0f);
-                lingerieModel.getRenderer().render();
-                MatrixUtils.popMatrix();
 
-                MatrixUtils.pushMatrix();
-                MatrixUtils.translate(1f, -0.9f, -3.5f);
-                MatrixUtils.rotate(angle, 0f, 1f, 0f);
-                stalkerModel.getRenderer().render();
-                MatrixUtils.popMatrix();
+                scene.setRotation(lingerieNode, angle, 0f, 1f, 0f);
+                scene.setRotation(stalkerNode, angle, 0f, 1f, 0f);
+                occlusionCuller.begin();
+                scene.renderOccluders(occlusionCuller);
+                occlusionCuller.end();
+                scene.submit(renderQueue, RenderQueue.PASS_MAIN);
+                renderQueue.flush();
 
                 timer.update();
                 updateDisplayDimension();
@@ -110,6 +134,9 @@ public class Application implements Runnable {
         } catch (RuntimeException runtimeEx) {
             runtimeEx.printStackTrace();
         } finally {
+            renderQueue.destroy();
+            MaterialBuffer.get().destroy();
+            occlusionCuller.destroy();
             Display.destroy();
             shutdown();
         }
@@ -117,6 +144,19 @@ public class Application implements Runnable {
 
     }
 
+    /**
+     * Adds a top level node whose mesh is attached once it is loaded and uploaded, failed loads leave it empty.
+     */
+    private int createNode(String path, float x, float y, float z) {
+        final int node = scene.createNode(SceneGraph.ROOT);
+        scene.setTranslation(node, x, y, z);
+        meshFactory.createAsync(path).whenComplete((mesh, ex) -> {
+            if (ex != null) ex.printStackTrace();
+            else scene.setMesh(node, mesh);
+        });
+        return node;
+    }
+
     private void updateDisplayDimension() {
         if (canvas == null || Display.getWidth() == canvas.getWidth() || Display.getHeight() == canvas.getHeight())
             return;
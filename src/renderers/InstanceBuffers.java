@@ -0,0 +1,114 @@
+package renderers;
+
+import org.lwjgl.BufferUtils;
+import org.lwjgl.opengl.GL11;
+import org.lwjgl.opengl.GL15;
+import org.lwjgl.opengl.GL20;
+import org.lwjgl.opengl.GL33;
+import utils.GLStateCache;
+import utils.ShaderUtils;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+/**
+ * One stream buffer holding the per-instance data of every instanced draw of a flush. The instances of all groups
+ * are collected first and uploaded with a single call, each draw then points the instance attributes of its vertex
+ * array at its own range. An instance is a column major model view matrix followed by an RGBA colour multiplied into
+ * the diffuse colour of the material.
+ */
+final class InstanceBuffers {
+
+    static final int INSTANCE_FLOATS = 20;
+    static final int INSTANCE_ATTRIBUTES = 0xF << ShaderUtils.INSTANCE_MATRIX_ATTRIBUTE
+            | 1 << ShaderUtils.INSTANCE_COLOR_ATTRIBUTE;
+
+    private static final int INSTANCE_STRIDE = INSTANCE_FLOATS * Float.BYTES;
+    private static final int COLUMN_SIZE = 4;
+    private static final int MATRIX_SIZE = COLUMN_SIZE * COLUMN_SIZE;
+    private static final long UNATTACHED = -1L;
+
+    private FloatBuffer instances = BufferUtils.createFloatBuffer(64 * INSTANCE_FLOATS);
+    private int instanceCount;
+    private int buffer;
+
+    private long[] attachedOffsets = new long[16];
+
+    InstanceBuffers() {
+        Arrays.fill(attachedOffsets, UNATTACHED);
+    }
+
+    /**
+     * Starts collecting the instances of a new flush, the ranges handed out before are no longer valid.
+     */
+    void clear() {
+        instances.clear();
+        instanceCount = 0;
+    }
+
+    /**
+     * Appends an instance and returns its index, consecutive calls build the range of one draw.
+     */
+    int add(float[] modelViews, int modelViewOffset, float[] colors, int colorOffset) {
+        if (instances.remaining() < INSTANCE_FLOATS) {
+            final FloatBuffer grown = BufferUtils.createFloatBuffer(instances.capacity() * 2);
+            instances.flip();
+            grown.put(instances);
+            instances = grown;
+        }
+        instances.put(modelViews, modelViewOffset, MATRIX_SIZE);
+        instances.put(colors, colorOffset, COLUMN_SIZE);
+        return instanceCount++;
+    }
+
+    /**
+     * Streams all collected instances with one call, has to run before the first draw of the flush.
+     */
+    void upload(GLStateCache gl) {
+        if (instanceCount == 0) return;
+        if (buffer == 0) buffer = GL15.glGenBuffers();
+
+        instances.flip();
+        gl.bindBuffer(GL15.GL_ARRAY_BUFFER, buffer);
+        GL15.glBufferData(GL15.GL_ARRAY_BUFFER, instances, GL15.GL_STREAM_DRAW);
+        instances.limit(instances.capacity());
+        instances.position(instanceCount * INSTANCE_FLOATS);
+    }
+
+    /**
+     * Points the instance attributes of the vertex array, which has to be bound through the state cache, at the
+     * range starting with the given instance. Divisors are set once per vertex array and pointers only when the
+     * range moved.
+     */
+    void bind(GLStateCache gl, int vertexArray, int firstInstance) {
+        if (vertexArray >= attachedOffsets.length) {
+            final int length = attachedOffsets.length;
+            attachedOffsets = Arrays.copyOf(attachedOffsets, Math.max(vertexArray + 1, length * 2));
+            Arrays.fill(attachedOffsets, length, attachedOffsets.length, UNATTACHED);
+        }
+
+        final long offset = (long) firstInstance * INSTANCE_STRIDE;
+        final long attached = attachedOffsets[vertexArray];
+        if (attached == offset) return;
+
+        gl.bindBuffer(GL15.GL_ARRAY_BUFFER, buffer);
+        for (int column = 0; column < COLUMN_SIZE; column++) {
+            final int attribute = ShaderUtils.INSTANCE_MATRIX_ATTRIBUTE + column;
+            GL20.glVertexAttribPointer(attribute, COLUMN_SIZE, GL11.GL_FLOAT, false, INSTANCE_STRIDE,
+                    offset + (long) column * COLUMN_SIZE * Float.BYTES);
+            if (attached == UNATTACHED) GL33.glVertexAttribDivisor(attribute, 1);
+        }
+        GL20.glVertexAttribPointer(ShaderUtils.INSTANCE_COLOR_ATTRIBUTE, COLUMN_SIZE, GL11.GL_FLOAT, false,
+                INSTANCE_STRIDE, offset + (long) MATRIX_SIZE * Float.BYTES);
+        if (attached == UNATTACHED) GL33.glVertexAttribDivisor(ShaderUtils.INSTANCE_COLOR_ATTRIBUTE, 1);
+        attachedOffsets[vertexArray] = offset;
+    }
+
+    void destroy() {
+        if (buffer == 0) return;
+        GLStateCache.get().bindBuffer(GL15.GL_ARRAY_BUFFER, 0);
+        GL15.glDeleteBuffers(buffer);
+        buffer = 0;
+        Arrays.fill(attachedOffsets, UNATTACHED);
+    }
+}
@@ -0,0 +1,169 @@
+package renderers;
+
+import geometry.loaders.Material;
+import org.lwjgl.BufferUtils;
+import org.lwjgl.opengl.GL15;
+import org.lwjgl.opengl.GL31;
+import utils.GLStateCache;
+import utils.IntArray;
+import utils.ShaderUtils;
+
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Uniform buffer holding the std140 block of every registered material. The shader sees one page of
+ * {@link #PAGE_MATERIALS} materials at a time, draws bind the page of their material and select it inside the page
+ * through the material index uniform. A material is written when it gets its slot and again only after one of its
+ * setters ran. The buffer grows by whole pages, slots of unregistered materials are handed out again.
+ */
+public final class MaterialBuffer {
+
+    /**
+     * Materials visible to the shader at once, has to match MAX_MATERIALS of the fragment shader.
+     */
+    public static final int PAGE_MATERIALS = 256;
+
+    private static final int MATERIAL_FLOATS = 16;
+    private static final int MATERIAL_BYTES = MATERIAL_FLOATS * Float.BYTES;
+    private static final long PAGE_BYTES = (long) PAGE_MATERIALS * MATERIAL_BYTES;
+
+    private static final MaterialBuffer instance = new MaterialBuffer();
+
+    private final List<Material> materials = new ArrayList<>();
+    private final IntArray freeSlots = new IntArray();
+    private FloatBuffer staging = BufferUtils.createFloatBuffer(PAGE_MATERIALS * MATERIAL_FLOATS);
+
+    private int buffer;
+    private int bufferPages;
+    private int uploads;
+
+    public static MaterialBuffer get() {
+        return instance;
+    }
+
+    /**
+     * Assigns the material a slot if it has none yet, reusing slots of unregistered materials first. Does not touch
+     * GL, the slot is filled by the next {@link #upload()}.
+     */
+    public int register(Material material) {
+        if (material.getBufferIndex() >= 0) return material.getBufferIndex();
+
+        final int slot;
+        if (freeSlots.isEmpty()) {
+            slot = materials.size();
+            materials.add(material);
+        } else {
+            slot = freeSlots.get(freeSlots.size() - 1);
+            freeSlots.resize(freeSlots.size() - 1);
+            materials.set(slot, material);
+        }
+        material.setBufferIndex(slot);
+        material.markDirty();
+        return slot;
+    }
+
+    /**
+     * Frees the slot of the material for the next registered one. Registering the material again gives it a new slot.
+     */
+    public void unregister(Material material) {
+        final int slot = material.getBufferIndex();
+        if (slot < 0) return;
+        if (slot >= materials.size() || materials.get(slot) != material) {
+            throw new IllegalStateException("Material " + material.getName() + " is not registered in this buffer!");
+        }
+        materials.set(slot, null);
+        freeSlots.add(slot);
+        material.setBufferIndex(-1);
+    }
+
+    /**
+     * Writes the dirty materials with one sub data call spanning them, has to run on the GL thread before drawing.
+     * Grows the buffer first if the registered materials no longer fit, which writes all of them again.
+     */
+    public void upload() {
+        final int pages = getPageCount();
+        final boolean created = buffer == 0 || pages > bufferPages;
+        if (created) create(Math.max(pages, bufferPages * 2));
+
+        int first = -1;
+        int last = -1;
+        for (int i = 0; i < materials.size(); i++) {
+            final Material material = materials.get(i);
+            if (material == null || !created && !material.isDirty()) continue;
+
+            staging.limit(staging.capacity());
+            staging.position(i * MATERIAL_FLOATS);
+            material.write(staging);
+            material.clearDirty();
+            if (first < 0) first = i;
+            last = i;
+        }
+        if (first < 0) return;
+
+        staging.limit((last + 1) * MATERIAL_FLOATS);
+        staging.position(first * MATERIAL_FLOATS);
+        GLStateCache.get().bindBuffer(GL31.GL_UNIFORM_BUFFER, buffer);
+        GL15.glBufferSubData(GL31.GL_UNIFORM_BUFFER, (long) first * MATERIAL_BYTES, staging);
+        GLStateCache.get().bindBuffer(GL31.GL_UNIFORM_BUFFER, 0);
+        uploads++;
+    }
+
+    /**
+     * Binds the page holding the material and returns the index of the material inside it, the value of the material
+     * index uniform. Nothing is bound before the first upload.
+     */
+    public int bind(GLStateCache gl, Material material) {
+        final int slot = material.getBufferIndex();
+        if (slot < 0 || buffer == 0) return slot;
+
+        final int page = slot / PAGE_MATERIALS;
+        gl.bindBufferRange(GL31.GL_UNIFORM_BUFFER, ShaderUtils.MATERIAL_BLOCK_BINDING, buffer, page * PAGE_BYTES,
+                PAGE_BYTES);
+        return slot - page * PAGE_MATERIALS;
+    }
+
+    /**
+     * Deletes the buffer, the materials keep their slots and are all written again by the next upload. Deleting
+     * unbinds the pages behind the back of the state cache, so it is invalidated.
+     */
+    public void destroy() {
+        if (buffer != 0) GL15.glDeleteBuffers(buffer);
+        buffer = 0;
+        bufferPages = 0;
+        GLStateCache.get().invalidate();
+    }
+
+    /**
+     * Registered materials, not counting freed slots.
+     */
+    public int getMaterialCount() {
+        return materials.size() - freeSlots.size();
+    }
+
+    /**
+     * Sub data calls issued so far, at most one per upload.
+     */
+    public int getUploads() {
+        return uploads;
+    }
+
+    private int getPageCount() {
+        return Math.max(1, (materials.size() + PAGE_MATERIALS - 1) / PAGE_MATERIALS);
+    }
+
+    /**
+     * Specifies the buffer with room for the pages, keeping its name so bound ranges stay valid.
+     */
+    private void create(int pages) {
+        if (buffer == 0) buffer = GL15.glGenBuffers();
+        bufferPages = pages;
+        if (staging.capacity() < pages * PAGE_MATERIALS * MATERIAL_FLOATS) {
+            staging = BufferUtils.createFloatBuffer(pages * PAGE_MATERIALS * MATERIAL_FLOATS);
+        }
+        GLStateCache.get().bindBuffer(GL31.GL_UNIFORM_BUFFER, buffer);
+        GL15.glBufferData(GL31.GL_UNIFORM_BUFFER, pages * PAGE_BYTES, GL15.GL_DYNAMIC_DRAW);
+        GLStateCache.get().bindBuffer(GL31.GL_UNIFORM_BUFFER, 0);
+    }
+}
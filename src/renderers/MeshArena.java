@@ -0,0 +1,252 @@
+package renderers;
+
+import geometry.VertexFormat;
+import org.lwjgl.opengl.GL15;
+import org.lwjgl.opengl.GL30;
+import org.lwjgl.opengl.GL31;
+import utils.BufferAllocator;
+import utils.GLStateCache;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Shared vertex and index buffers for static meshes. Every vertex format gets one vertex array with one vertex and
+ * one index buffer, meshes are sub allocated from them and drawn with a base vertex. When an allocation does not
+ * fit, the live ranges are copied packed into a new buffer, grown if compaction alone is not enough.
+ */
+public final class MeshArena {
+
+    public static final int DEFAULT_VERTEX_CAPACITY = 16 << 20;
+    public static final int DEFAULT_INDEX_CAPACITY = 8 << 20;
+
+    private final Map<VertexFormat, Region> regions = new EnumMap<>(VertexFormat.class);
+    private final int vertexCapacity;
+    private final int indexCapacity;
+
+    public MeshArena() {
+        this(DEFAULT_VERTEX_CAPACITY, DEFAULT_INDEX_CAPACITY);
+    }
+
+    public MeshArena(int vertexBytes, int indexBytes) {
+        vertexCapacity = vertexBytes;
+        indexCapacity = indexBytes;
+    }
+
+    /**
+     * Copies the mesh data into the arena, has to be called from the thread owning the GL context.
+     */
+    public Allocation allocate(VertexFormat format, Buffer vertices, Buffer indices) {
+        final Region region = getRegion(format);
+        final int vertexBytes = getByteSize(vertices);
+        final int indexBytes = getByteSize(indices);
+        final int indexAlignment = indices instanceof ShortBuffer ? Short.BYTES : Integer.BYTES;
+
+        BufferAllocator.Block vertexBlock = region.vertexAllocator.allocate(vertexBytes, format.getStride());
+        if (vertexBlock == null) {
+            region.relocateVertices(region.vertexAllocator.getCompactedSize(vertexBytes, format.getStride()));
+            vertexBlock = region.vertexAllocator.allocate(vertexBytes, format.getStride());
+            if (vertexBlock == null) {
+                throw new IllegalStateException("Unable to fit " + vertexBytes + " vertex bytes into the arena!");
+            }
+        }
+        BufferAllocator.Block indexBlock = region.indexAllocator.allocate(indexBytes, indexAlignment);
+        if (indexBlock == null) {
+            region.relocateIndices(region.indexAllocator.getCompactedSize(indexBytes, indexAlignment));
+            indexBlock = region.indexAllocator.allocate(indexBytes, indexAlignment);
+            if (indexBlock == null) {
+                throw new IllegalStateException("Unable to fit " + indexBytes + " index bytes into the arena!");
+            }
+        }
+
+        GLStateCache.get().bindBuffer(GL15.GL_ARRAY_BUFFER, region.vertexBuffer);
+        bufferSubData(GL15.GL_ARRAY_BUFFER, vertexBlock.getOffset(), vertices);
+        GLStateCache.get().bindBuffer(GL15.GL_ARRAY_BUFFER, 0);
+
+        GLStateCache.get().bindVertexArray(region.vertexArray);
+        bufferSubData(GL15.GL_ELEMENT_ARRAY_BUFFER, indexBlock.getOffset(), indices);
+        GLStateCache.get().bindVertexArray(0);
+
+        return new Allocation(region, vertexBlock, indexBlock);
+    }
+
+    public void free(Allocation allocation) {
+        allocation.region.vertexAllocator.free(allocation.vertices);
+        allocation.region.indexAllocator.free(allocation.indices);
+    }
+
+    /**
+     * Packs all regions into buffers of their current capacity, closing the gaps left by freed meshes.
+     */
+    public void compact() {
+        for (Region region : regions.values()) {
+            region.relocateVertices(region.vertexAllocator.getCapacity());
+            region.relocateIndices(region.indexAllocator.getCapacity());
+        }
+    }
+
+    public void destroy() {
+        for (Region region : regions.values()) {
+            GL30.glDeleteVertexArrays(region.vertexArray);
+            GL15.glDeleteBuffers(region.vertexBuffer);
+            GL15.glDeleteBuffers(region.indexBuffer);
+        }
+        regions.clear();
+        GLStateCache.get().invalidate();
+    }
+
+    /**
+     * Allocation accounting of the vertex buffer of a format, null if nothing was allocated for it yet.
+     */
+    public BufferAllocator getVertexAllocator(VertexFormat format) {
+        final Region region = regions.get(format);
+        return region == null ? null : region.vertexAllocator;
+    }
+
+    public BufferAllocator getIndexAllocator(VertexFormat format) {
+        final Region region = regions.get(format);
+        return region == null ? null : region.indexAllocator;
+    }
+
+    public long getUsedBytes() {
+        long used = 0L;
+        for (Region region : regions.values()) used += region.vertexAllocator.getUsed() + region.indexAllocator.getUsed();
+        return used;
+    }
+
+    public long getCapacityBytes() {
+        long capacity = 0L;
+        for (Region region : regions.values()) {
+            capacity += region.vertexAllocator.getCapacity() + region.indexAllocator.getCapacity();
+        }
+        return capacity;
+    }
+
+    private Region getRegion(VertexFormat format) {
+        Region region = regions.get(format);
+        if (region == null) {
+            region = new Region(format, vertexCapacity, indexCapacity);
+            regions.put(format, region);
+        }
+        return region;
+    }
+
+    private static int getByteSize(Buffer data) {
+        if (data instanceof FloatBuffer || data instanceof IntBuffer) return data.remaining() * 4;
+        if (data instanceof ShortBuffer) return data.remaining() * 2;
+        if (data instanceof ByteBuffer) return data.remaining();
+        throw new IllegalStateException("Unsupported buffer type " + data.getClass().getName());
+    }
+
+    private static void bufferSubData(int target, long offset, Buffer data) {
+        if (data instanceof FloatBuffer) GL15.glBufferSubData(target, offset, (FloatBuffer) data);
+        else if (data instanceof ByteBuffer) GL15.glBufferSubData(target, offset, (ByteBuffer) data);
+        else if (data instanceof IntBuffer) GL15.glBufferSubData(target, offset, (IntBuffer) data);
+        else if (data instanceof ShortBuffer) GL15.glBufferSubData(target, offset, (ShortBuffer) data);
+        else throw new IllegalStateException("Unsupported buffer type " + data.getClass().getName());
+    }
+
+    /**
+     * Copies the live ranges of {@code buffer} packed into a new buffer of at least {@code minimum} bytes.
+     */
+    private static int relocate(int buffer, BufferAllocator allocator, int minimum) {
+        int capacity = Math.max(allocator.getCapacity(), 1);
+        while (capacity < minimum) capacity *= 2;
+
+        final int relocated = GL15.glGenBuffers();
+        GL15.glBindBuffer(GL31.GL_COPY_WRITE_BUFFER, relocated);
+        GL15.glBufferData(GL31.GL_COPY_WRITE_BUFFER, capacity, GL15.GL_STATIC_DRAW);
+        GL15.glBindBuffer(GL31.GL_COPY_READ_BUFFER, buffer);
+
+        allocator.compact(capacity, (from, to, size) ->
+                GL31.glCopyBufferSubData(GL31.GL_COPY_READ_BUFFER, GL31.GL_COPY_WRITE_BUFFER, from, to, size));
+
+        GL15.glBindBuffer(GL31.GL_COPY_READ_BUFFER, 0);
+        GL15.glBindBuffer(GL31.GL_COPY_WRITE_BUFFER, 0);
+        GL15.glDeleteBuffers(buffer);
+        return relocated;
+    }
+
+    private static final class Region {
+
+        private final VertexFormat format;
+        private final int vertexArray;
+        private final BufferAllocator vertexAllocator;
+        private final BufferAllocator indexAllocator;
+
+        private int vertexBuffer;
+        private int indexBuffer;
+
+        private Region(VertexFormat f, int vertexBytes, int indexBytes) {
+            format = f;
+            vertexAllocator = new BufferAllocator(vertexBytes);
+            indexAllocator = new BufferAllocator(indexBytes);
+
+            vertexArray = GL30.glGenVertexArrays();
+            GLStateCache.get().bindVertexArray(vertexArray);
+
+            vertexBuffer = GL15.glGenBuffers();
+            GLStateCache.get().bindBuffer(GL15.GL_ARRAY_BUFFER, vertexBuffer);
+            GL15.glBufferData(GL15.GL_ARRAY_BUFFER, vertexBytes, GL15.GL_STATIC_DRAW);
+            MeshRenderer.setVertexAttributes(format);
+
+            indexBuffer = GL15.glGenBuffers();
+            GL15.glBindBuffer(GL15.GL_ELEMENT_ARRAY_BUFFER, indexBuffer);
+            GL15.glBufferData(GL15.GL_ELEMENT_ARRAY_BUFFER, indexBytes, GL15.GL_STATIC_DRAW);
+
+            GLStateCache.get().bindBuffer(GL15.GL_ARRAY_BUFFER, 0);
+            GLStateCache.get().bindVertexArray(0);
+        }
+
+        private void relocateVertices(int minimum) {
+            vertexBuffer = relocate(vertexBuffer, vertexAllocator, minimum);
+
+            GLStateCache.get().bindVertexArray(vertexArray);
+            GLStateCache.get().bindBuffer(GL15.GL_ARRAY_BUFFER, vertexBuffer);
+            MeshRenderer.setVertexAttributes(format);
+            GLStateCache.get().bindBuffer(GL15.GL_ARRAY_BUFFER, 0);
+            GLStateCache.get().bindVertexArray(0);
+        }
+
+        private void relocateIndices(int minimum) {
+            indexBuffer = relocate(indexBuffer, indexAllocator, minimum);
+
+            GLStateCache.get().bindVertexArray(vertexArray);
+            GL15.glBindBuffer(GL15.GL_ELEMENT_ARRAY_BUFFER, indexBuffer);
+            GLStateCache.get().bindVertexArray(0);
+        }
+    }
+
+    /**
+     * Location of one mesh in the arena. Offsets stay valid across compactions, the blocks are updated in place.
+     */
+    public static final class Allocation {
+
+        private final Region region;
+        private final BufferAllocator.Block vertices;
+        private final BufferAllocator.Block indices;
+
+        private Allocation(Region r, BufferAllocator.Block v, BufferAllocator.Block i) {
+            region = r;
+            vertices = v;
+            indices = i;
+        }
+
+        public int getVertexArray() {
+            return region.vertexArray;
+        }
+
+        public int getBaseVertex() {
+            return vertices.getOffset() / region.format.getStride();
+        }
+
+        public long getIndexOffset() {
+            return indices.getOffset();
+        }
+    }
+}
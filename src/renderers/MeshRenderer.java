@@ -1,85 +1,231 @@
 package renderers;
 
 import geometry.Mesh;
+import geometry.VertexFormat;
 import geometry.loaders.Material;
 import org.lwjgl.opengl.*;
+import utils.GLStateCache;
 import utils.MatrixUtils;
 import utils.ShaderUtils;
 
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
 import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class MeshRenderer implements IRenderer {
 
+    private static final float LOD_PIXEL_THRESHOLD = 1f;
+    private static final float LOD_HYSTERESIS = 1.5f;
+    private static final int VERTEX_ATTRIBUTES = 1 << ShaderUtils.POSITION_ATTRIBUTE
+            | 1 << ShaderUtils.TEXTURE_COORD_ATTRIBUTE | 1 << ShaderUtils.NORMAL_ATTRIBUTE;
+
+    private static final AtomicInteger nextId = new AtomicInteger();
+
     private final Mesh mesh;
+    private final int id;
+    private int levelOfDetail;
 
     public MeshRenderer(Mesh m) {
         if (m == null) throw new IllegalStateException("Unable to get mesh reference " + m.getName());
         mesh = m;
+        id = nextId.getAndIncrement();
     }
 
     @Override
     public void render() {
-        GL20.glUseProgram(ShaderUtils.getShaderProgram());
+        if (!isVisible()) return;
+        levelOfDetail = selectLevelOfDetail();
+        MaterialBuffer.get().register(mesh.getMaterial());
+        MaterialBuffer.get().upload();
+        draw(MatrixUtils.getModelViewMatrixAsBuffer(), levelOfDetail, 1f, 1f, 1f, 1f);
+    }
+
+    /**
+     * Queues the mesh with the current model view matrix instead of drawing it right away.
+     */
+    public void submit(RenderQueue queue, int pass) {
+        submit(queue, pass, 1f, 1f, 1f, 1f);
+    }
+
+    /**
+     * Queues the mesh with a colour multiplied into the diffuse colour of its material. Opaque submissions of the
+     * same mesh are merged into one instanced draw by the queue.
+     */
+    public void submit(RenderQueue queue, int pass, float r, float g, float b, float a) {
+        if (!isVisible()) return;
+        enqueue(queue, pass, r, g, b, a);
+    }
 
-        GL30.glBindVertexArray(mesh.getVertexArrayIndex());
+    /**
+     * Queues a mesh the caller already found inside the frustum, only the occlusion test is left.
+     */
+    public void submitInFrustum(RenderQueue queue, int pass) {
+        if (!MatrixUtils.isUnoccluded(mesh.getBounds())) return;
+        enqueue(queue, pass, 1f, 1f, 1f, 1f);
+    }
+
+    private void enqueue(RenderQueue queue, int pass, float r, float g, float b, float a) {
+        levelOfDetail = selectLevelOfDetail();
+
+        final Material material = mesh.getMaterial();
+        MaterialBuffer.get().register(material);
+        final int shader = ShaderUtils.getShaderProgram();
+        final int texture = material.getDiffuseTextureMap();
+        final float depth = MatrixUtils.getModelViewDepth();
+        final boolean transparent = material.isTransparent() || a < 1f;
+        final long key = transparent
+                ? queue.transparentKey(shader, material.getId(), texture, depth)
+                : queue.opaqueKey(shader, material.getId(), texture, depth);
+        queue.submit(this, pass, key, levelOfDetail, r, g, b, a);
+    }
+
+    void draw(FloatBuffer modelViewMatrix, int level, float r, float g, float b, float a) {
+        final GLStateCache gl = GLStateCache.get();
+        bindState(gl);
+
+        gl.uniformMatrix4(ShaderUtils.MODELVIEW_MATRIX_UNIFORM, modelViewMatrix);
+        gl.uniform1i(ShaderUtils.INSTANCED_UNIFORM, 0);
+        gl.setVertexAttribArrays(VERTEX_ATTRIBUTES);
+        gl.vertexAttrib4f(ShaderUtils.INSTANCE_COLOR_ATTRIBUTE, r, g, b, a);
+
+        if (mesh.isInArena()) {
+            gl.drawElementsBaseVertex(mesh.getRenderMode(), mesh.getIndicesCount(level), mesh.getIndexType(),
+                    mesh.getIndicesOffset(level), mesh.getBaseVertex());
+        } else {
+            gl.drawElements(mesh.getRenderMode(), mesh.getIndicesCount(level), mesh.getIndexType(),
+                    mesh.getIndicesOffset(level));
+        }
+    }
+
+    /**
+     * Draws {@code count} instances uploaded to {@link InstanceBuffers}, starting with {@code firstInstance}.
+     */
+    void drawInstanced(InstanceBuffers instanceBuffers, int firstInstance, int count, int level) {
+        final GLStateCache gl = GLStateCache.get();
+        bindState(gl);
+
+        instanceBuffers.bind(gl, mesh.getVertexArrayIndex(), firstInstance);
+        gl.uniform1i(ShaderUtils.INSTANCED_UNIFORM, 1);
+        gl.setVertexAttribArrays(VERTEX_ATTRIBUTES | InstanceBuffers.INSTANCE_ATTRIBUTES);
+
+        if (mesh.isInArena()) {
+            gl.drawElementsInstancedBaseVertex(mesh.getRenderMode(), mesh.getIndicesCount(level), mesh.getIndexType(),
+                    mesh.getIndicesOffset(level), count, mesh.getBaseVertex());
+        } else {
+            gl.drawElementsInstanced(mesh.getRenderMode(), mesh.getIndicesCount(level), mesh.getIndexType(),
+                    mesh.getIndicesOffset(level), count);
+        }
+    }
 
-        GL20.glUniformMatrix4(ShaderUtils.PROJECTION_MATRIX_UNIFORM, false, MatrixUtils.getProjectionMatrixAsBuffer());
-        GL20.glUniformMatrix4(ShaderUtils.MODELVIEW_MATRIX_UNIFORM, false, MatrixUtils.getModelViewMatrixAsBuffer());
+    /**
+     * Textures load lazily through unit 0, so the ids are resolved before any unit is bound.
+     */
+    private void bindState(GLStateCache gl) {
+        gl.useProgram(ShaderUtils.getShaderProgram());
+        gl.bindVertexArray(mesh.getVertexArrayIndex());
+
+        gl.uniformMatrix4(ShaderUtils.PROJECTION_MATRIX_UNIFORM, MatrixUtils.getProjectionMatrixAsBuffer());
+
+        final float[] offset = mesh.getPositionOffset();
+        final float[] scale = mesh.getPositionScale();
+        gl.uniform3f(ShaderUtils.POSITION_OFFSET_UNIFORM, offset[0], offset[1], offset[2]);
+        gl.uniform3f(ShaderUtils.POSITION_SCALE_UNIFORM, scale[0], scale[1], scale[2]);
+        gl.uniform1i(ShaderUtils.OCTAHEDRAL_NORMALS_UNIFORM, mesh.getVertexFormat() == VertexFormat.COMPACT ? 1 : 0);
 
         Material meshMaterial = mesh.getMaterial();
 
-        GL20.glUniformMatrix4(ShaderUtils.MATERIAL_TABLE_UNIFORM, false, meshMaterial.getMaterialAsBuffer());
+        gl.uniform1i(ShaderUtils.MATERIAL_INDEX_UNIFORM, MaterialBuffer.get().bind(gl, meshMaterial));
 
-        GL13.glActiveTexture(GL13.GL_TEXTURE0);
-        GL11.glBindTexture(GL11.GL_TEXTURE_2D, mesh.getMaterial().getAmbientTextureMap());
-        GL20.glUniform1i(ShaderUtils.SAMPLER_TEXTURE_AMBIENT_UNIFORM, 0);
+        final int ambientTexture = meshMaterial.getAmbientTextureMap();
+        final int diffuseTexture = meshMaterial.getDiffuseTextureMap();
+        final int specularTexture = meshMaterial.getSpecularTextureMap();
 
-        GL13.glActiveTexture(GL13.GL_TEXTURE1);
-        GL11.glBindTexture(GL11.GL_TEXTURE_2D, mesh.getMaterial().getDiffuseTextureMap());
-        GL20.glUniform1i(ShaderUtils.SAMPLER_TEXTURE_DIFFUSE_UNIFORM, 1);
+        gl.bindTexture(0, GL11.GL_TEXTURE_2D, ambientTexture);
+        gl.uniform1i(ShaderUtils.SAMPLER_TEXTURE_AMBIENT_UNIFORM, 0);
 
-        GL13.glActiveTexture(GL13.GL_TEXTURE2);
-        GL11.glBindTexture(GL11.GL_TEXTURE_2D, mesh.getMaterial().getSpecularTextureMap());
-        GL20.glUniform1i(ShaderUtils.SAMPLER_TEXTURE_SPECULAR_UNIFORM, 2);
+        gl.bindTexture(1, GL11.GL_TEXTURE_2D, diffuseTexture);
+        gl.uniform1i(ShaderUtils.SAMPLER_TEXTURE_DIFFUSE_UNIFORM, 1);
 
-        GL20.glEnableVertexAttribArray(ShaderUtils.POSITION_ATTRIBUTE);
-        GL20.glEnableVertexAttribArray(ShaderUtils.TEXTURE_COORD_ATTRIBUTE);
-        GL20.glEnableVertexAttribArray(ShaderUtils.NORMAL_ATTRIBUTE);
+        gl.bindTexture(2, GL11.GL_TEXTURE_2D, specularTexture);
+        gl.uniform1i(ShaderUtils.SAMPLER_TEXTURE_SPECULAR_UNIFORM, 2);
+    }
 
-        GL11.glDrawElements(mesh.getRenderMode(), mesh.getIndicesCount(), GL11.GL_UNSIGNED_INT, 0);
+    /**
+     * Unique number of the renderer, the render queue groups instances by it.
+     */
+    public int getId() {
+        return id;
+    }
 
-        GL20.glDisableVertexAttribArray(ShaderUtils.NORMAL_ATTRIBUTE);
-        GL20.glDisableVertexAttribArray(ShaderUtils.TEXTURE_COORD_ATTRIBUTE);
-        GL20.glDisableVertexAttribArray(ShaderUtils.POSITION_ATTRIBUTE);
+    public int getLevelOfDetail() {
+        return levelOfDetail;
+    }
 
-        GL30.glBindVertexArray(0);
+    private boolean isVisible() {
+        return MatrixUtils.isVisible(mesh.getBounds(), mesh.getBoundingSphere());
     }
 
-    public int initVertexArrayObject(FloatBuffer buffer, IntBuffer indices) {
+    private int selectLevelOfDetail() {
+        if (mesh.getLevelOfDetailCount() == 1) return 0;
+
+        final float distance = MatrixUtils.getModelViewDistance();
+        if (distance <= 0f) return 0;
+
+        final float pixelsPerUnit = MatrixUtils.getProjectionScale() * Display.getHeight() * 0.5f / distance;
+        return mesh.selectLevelOfDetail(levelOfDetail, pixelsPerUnit, LOD_PIXEL_THRESHOLD, LOD_HYSTERESIS);
+    }
+
+    public int initVertexArrayObject(Buffer buffer, Buffer indices, VertexFormat format) {
 
         int vertexArrayIndex = GL30.glGenVertexArrays();
-        GL30.glBindVertexArray(vertexArrayIndex);
+        GLStateCache.get().bindVertexArray(vertexArrayIndex);
 
         int vertexBuffer = GL15.glGenBuffers();
 
-        GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, vertexBuffer);
-        GL15.glBufferData(GL15.GL_ARRAY_BUFFER, buffer, GL15.GL_STATIC_DRAW);
+        GLStateCache.get().bindBuffer(GL15.GL_ARRAY_BUFFER, vertexBuffer);
+        bufferData(GL15.GL_ARRAY_BUFFER, buffer);
 
-        GL20.glVertexAttribPointer(ShaderUtils.POSITION_ATTRIBUTE, 3, GL11.GL_FLOAT, false, 32, 0L);
-        GL20.glVertexAttribPointer(ShaderUtils.TEXTURE_COORD_ATTRIBUTE, 2, GL11.GL_FLOAT, false, 32, 12L);
-        GL20.glVertexAttribPointer(ShaderUtils.NORMAL_ATTRIBUTE, 3, GL11.GL_FLOAT, false, 32, 20L);
+        setVertexAttributes(format);
 
         int indicesBuffer = GL15.glGenBuffers();
         GL15.glBindBuffer(GL15.GL_ELEMENT_ARRAY_BUFFER, indicesBuffer);
-        GL15.glBufferData(GL15.GL_ELEMENT_ARRAY_BUFFER, indices, GL15.GL_STATIC_DRAW);
+        bufferData(GL15.GL_ELEMENT_ARRAY_BUFFER, indices);
 
-        GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, 0);
-        GL30.glBindVertexArray(0);
+        GLStateCache.get().bindBuffer(GL15.GL_ARRAY_BUFFER, 0);
+        GLStateCache.get().bindVertexArray(0);
 
         buffer.clear();
         indices.clear();
 
         return vertexArrayIndex;
     }
+
+    /**
+     * Points the attributes of the bound vertex array at the bound array buffer.
+     */
+    public static void setVertexAttributes(VertexFormat format) {
+        final int stride = format.getStride();
+        switch (format) {
+            case COMPACT:
+                GL20.glVertexAttribPointer(ShaderUtils.POSITION_ATTRIBUTE, 3, GL11.GL_SHORT, true, stride, 0L);
+                GL20.glVertexAttribPointer(ShaderUtils.TEXTURE_COORD_ATTRIBUTE, 2, GL30.GL_HALF_FLOAT, false, stride, 8L);
+                GL20.glVertexAttribPointer(ShaderUtils.NORMAL_ATTRIBUTE, 2, GL11.GL_SHORT, true, stride, 12L);
+                break;
+            default:
+                GL20.glVertexAttribPointer(ShaderUtils.POSITION_ATTRIBUTE, 3, GL11.GL_FLOAT, false, stride, 0L);
+                GL20.glVertexAttribPointer(ShaderUtils.TEXTURE_COORD_ATTRIBUTE, 2, GL11.GL_FLOAT, false, stride, 12L);
+                GL20.glVertexAttribPointer(ShaderUtils.NORMAL_ATTRIBUTE, 3, GL11.GL_FLOAT, false, stride, 20L);
+        }
+    }
+
+    private static void bufferData(int target, Buffer data) {
+        if (data instanceof FloatBuffer) GL15.glBufferData(target, (FloatBuffer) data, GL15.GL_STATIC_DRAW);
+        else if (data instanceof ByteBuffer) GL15.glBufferData(target, (ByteBuffer) data, GL15.GL_STATIC_DRAW);
+        else if (data instanceof IntBuffer) GL15.glBufferData(target, (IntBuffer) data, GL15.GL_STATIC_DRAW);
+        else if (data instanceof ShortBuffer) GL15.glBufferData(target, (ShortBuffer) data, GL15.GL_STATIC_DRAW);
+        else throw new IllegalStateException("Unsupported buffer type " + data.getClass().getName());
+    }
 }
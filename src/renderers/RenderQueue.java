@@ -0,0 +1,288 @@
+package renderers;
+
+import org.lwjgl.BufferUtils;
+import org.lwjgl.opengl.GL11;
+import utils.GLStateCache;
+import utils.MatrixUtils;
+import utils.RadixSort;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+/**
+ * Collects draw packets during a frame and submits them sorted by a packed 64-bit key. From the most significant
+ * bit down an opaque key holds the pass, the transparency bit, shader, material, texture and front to back depth,
+ * so state changes are minimised and early depth rejection still works. Transparent keys put the inverted depth
+ * right after the transparency bit, which draws them back to front after all opaque packets of the pass.
+ * Opaque packets of the same mesh and level of detail within a pass are merged into one instanced draw, issued
+ * at the position of the first of them. The instances of all merged draws are uploaded together before drawing.
+ */
+public final class RenderQueue {
+
+    public static final int PASS_SHADOW = 0;
+    public static final int PASS_MAIN = 1;
+    public static final int PASS_OVERLAY = 2;
+
+    private static final int PASS_SHIFT = 62;
+    private static final int TRANSPARENT_SHIFT = 61;
+
+    private static final int SHADER_BITS = 8;
+    private static final int MATERIAL_BITS = 16;
+    private static final int TEXTURE_BITS = 13;
+    private static final int DEPTH_BITS = 24;
+
+    private static final int MATRIX_SIZE = 16;
+    private static final int COLOR_SIZE = 4;
+    private static final int MIN_INSTANCES = 2;
+
+    private final RadixSort sorter = new RadixSort();
+    private final FloatBuffer modelViewBuffer = BufferUtils.createFloatBuffer(MATRIX_SIZE);
+    private final InstanceBuffers instanceBuffers = new InstanceBuffers();
+
+    private long[] keys = new long[64];
+    private int[] order = new int[64];
+    private MeshRenderer[] renderers = new MeshRenderer[64];
+    private int[] levels = new int[64];
+    private float[] modelViews = new float[64 * MATRIX_SIZE];
+    private float[] colors = new float[64 * COLOR_SIZE];
+    private int count;
+
+    private int[] groups = new int[64];
+    private int[] groupFirst = new int[64];
+    private int[] groupSizes = new int[64];
+    private int[] groupInstanceStarts = new int[64];
+    private int[] nextInGroup = new int[64];
+    private int[] groupTails = new int[64];
+    private long[] groupKeys = new long[128];
+    private int[] groupSlots = new int[128];
+
+    private float nearDepth = 0.1f;
+    private float farDepth = 256f;
+
+    private int blendedDraws;
+    private int drawCalls;
+    private int instancedDraws;
+
+    /**
+     * View space depth range mapped onto the depth bits of the key.
+     */
+    public void setDepthRange(float near, float far) {
+        nearDepth = near;
+        farDepth = far;
+    }
+
+    /**
+     * Queues a draw of the renderer with the current model view matrix of {@link MatrixUtils}.
+     */
+    public void submit(MeshRenderer renderer, int pass, long key, int level, float r, float g, float b, float a) {
+        if (count == keys.length) grow();
+
+        MatrixUtils.getModelViewMatrix(modelViews, count * MATRIX_SIZE);
+        colors[count * COLOR_SIZE] = r;
+        colors[count * COLOR_SIZE + 1] = g;
+        colors[count * COLOR_SIZE + 2] = b;
+        colors[count * COLOR_SIZE + 3] = a;
+        keys[count] = (long) pass << PASS_SHIFT | key;
+        order[count] = count;
+        renderers[count] = renderer;
+        levels[count] = level;
+        count++;
+    }
+
+    /**
+     * Sorts and draws all queued packets, then empties the queue.
+     */
+    public void flush() {
+        sorter.sort(keys, order, count);
+        groupInstances();
+        collectInstances();
+        MaterialBuffer.get().upload();
+
+        boolean blending = false;
+        blendedDraws = 0;
+        drawCalls = 0;
+        instancedDraws = 0;
+        for (int i = 0; i < count; i++) {
+            final int group = groups[i];
+            if (group >= 0 && groupFirst[group] != i) continue;
+
+            final int packet = order[i];
+            final boolean transparent = isTransparent(keys[i]);
+            if (transparent != blending) {
+                setBlending(transparent);
+                blending = transparent;
+            }
+            if (transparent) blendedDraws++;
+            drawCalls++;
+
+            if (group >= 0 && groupSizes[group] >= MIN_INSTANCES) {
+                renderers[packet].drawInstanced(instanceBuffers, groupInstanceStarts[group], groupSizes[group],
+                        levels[packet]);
+                instancedDraws++;
+                continue;
+            }
+
+            modelViewBuffer.clear();
+            modelViewBuffer.put(modelViews, packet * MATRIX_SIZE, MATRIX_SIZE);
+            modelViewBuffer.flip();
+            final int color = packet * COLOR_SIZE;
+            renderers[packet].draw(modelViewBuffer, levels[packet], colors[color], colors[color + 1],
+                    colors[color + 2], colors[color + 3]);
+        }
+        if (blending) setBlending(false);
+
+        clear();
+    }
+
+    public void destroy() {
+        instanceBuffers.destroy();
+    }
+
+    public void clear() {
+        Arrays.fill(renderers, 0, count, null);
+        count = 0;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Key of the i-th packet, in sorted order after a sort.
+     */
+    public long getKey(int i) {
+        return keys[i];
+    }
+
+    public int getBlendedDraws() {
+        return blendedDraws;
+    }
+
+    /**
+     * Draw calls issued by the last flush, every instanced draw counting once.
+     */
+    public int getDrawCalls() {
+        return drawCalls;
+    }
+
+    public int getInstancedDraws() {
+        return instancedDraws;
+    }
+
+    /**
+     * Assigns every opaque packet, in sorted order, to the group of its pass, mesh and level of detail and links
+     * the members of a group in sorted order. Transparent packets stay ungrouped.
+     */
+    private void groupInstances() {
+        if (groupSlots.length < count * 2) {
+            groupKeys = new long[Integer.highestOneBit(count * 2 - 1) << 1];
+            groupSlots = new int[groupKeys.length];
+        }
+        Arrays.fill(groupSlots, -1);
+        final int mask = groupSlots.length - 1;
+
+        int groupCount = 0;
+        for (int i = 0; i < count; i++) {
+            if (isTransparent(keys[i])) {
+                groups[i] = -1;
+                continue;
+            }
+
+            final int packet = order[i];
+            final long groupKey = (long) renderers[packet].getId() << 32
+                    | (keys[i] >>> PASS_SHIFT) << 16 | levels[packet];
+            int slot = (int) (groupKey * 0x9E3779B97F4A7C15L >>> 40) & mask;
+            while (groupSlots[slot] >= 0 && groupKeys[slot] != groupKey) slot = (slot + 1) & mask;
+
+            int group = groupSlots[slot];
+            if (group < 0) {
+                group = groupCount++;
+                groupSlots[slot] = group;
+                groupKeys[slot] = groupKey;
+                groupFirst[group] = i;
+                groupSizes[group] = 0;
+            } else nextInGroup[groupTails[group]] = i;
+
+            groupTails[group] = i;
+            groupSizes[group]++;
+            nextInGroup[i] = -1;
+            groups[i] = group;
+        }
+    }
+
+    /**
+     * Writes the instances of every group large enough to be drawn instanced, each group as one range, and uploads
+     * them all at once.
+     */
+    private void collectInstances() {
+        instanceBuffers.clear();
+        for (int i = 0; i < count; i++) {
+            final int group = groups[i];
+            if (group < 0 || groupFirst[group] != i || groupSizes[group] < MIN_INSTANCES) continue;
+
+            groupInstanceStarts[group] = -1;
+            for (int member = i; member >= 0; member = nextInGroup[member]) {
+                final int packet = order[member];
+                final int instance = instanceBuffers.add(modelViews, packet * MATRIX_SIZE, colors,
+                        packet * COLOR_SIZE);
+                if (groupInstanceStarts[group] < 0) groupInstanceStarts[group] = instance;
+            }
+        }
+        instanceBuffers.upload(GLStateCache.get());
+    }
+
+    private static boolean isTransparent(long key) {
+        return (key >>> TRANSPARENT_SHIFT & 1L) != 0L;
+    }
+
+    public long opaqueKey(int shader, int material, int texture, float depth) {
+        long key = 0L;
+        key = key << SHADER_BITS | mask(shader, SHADER_BITS);
+        key = key << MATERIAL_BITS | mask(material, MATERIAL_BITS);
+        key = key << TEXTURE_BITS | mask(texture, TEXTURE_BITS);
+        key = key << DEPTH_BITS | quantizeDepth(depth);
+        return key;
+    }
+
+    public long transparentKey(int shader, int material, int texture, float depth) {
+        long key = 1L;
+        key = key << DEPTH_BITS | (quantizeDepth(depth) ^ (1L << DEPTH_BITS) - 1);
+        key = key << SHADER_BITS | mask(shader, SHADER_BITS);
+        key = key << MATERIAL_BITS | mask(material, MATERIAL_BITS);
+        key = key << TEXTURE_BITS | mask(texture, TEXTURE_BITS);
+        return key;
+    }
+
+    private long quantizeDepth(float depth) {
+        final float normalized = (depth - nearDepth) / (farDepth - nearDepth);
+        final float clamped = Math.max(0f, Math.min(1f, normalized));
+        return (long) (clamped * ((1 << DEPTH_BITS) - 1));
+    }
+
+    private static long mask(int value, int bits) {
+        return value & (1L << bits) - 1;
+    }
+
+    private static void setBlending(boolean enabled) {
+        final GLStateCache gl = GLStateCache.get();
+        gl.setCapability(GL11.GL_BLEND, enabled);
+        if (enabled) gl.blendFunc(GL11.GL_SRC_ALPHA, GL11.GL_ONE_MINUS_SRC_ALPHA);
+        gl.depthMask(!enabled);
+    }
+
+    private void grow() {
+        final int capacity = keys.length * 2;
+        keys = Arrays.copyOf(keys, capacity);
+        order = Arrays.copyOf(order, capacity);
+        renderers = Arrays.copyOf(renderers, capacity);
+        levels = Arrays.copyOf(levels, capacity);
+        modelViews = Arrays.copyOf(modelViews, capacity * MATRIX_SIZE);
+        colors = Arrays.copyOf(colors, capacity * COLOR_SIZE);
+        groups = new int[capacity];
+        groupFirst = new int[capacity];
+        groupSizes = new int[capacity];
+        groupInstanceStarts = new int[capacity];
+        nextInGroup = new int[capacity];
+        groupTails = new int[capacity];
+    }
+}
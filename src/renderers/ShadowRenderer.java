@@ -1,7 +1,7 @@
 package renderers;
 
-import org.lwjgl.opengl.GL20;
 import org.lwjgl.opengl.GL30;
+import utils.GLStateCache;
 import utils.ShaderUtils;
 
 public class ShadowRenderer implements IRenderer {
@@ -10,7 +10,7 @@ public class ShadowRenderer implements IRenderer {
 
     @Override
     public void render() {
-        GL20.glUseProgram(ShaderUtils.getShadowShaderProgram());
+        GLStateCache.get().useProgram(ShaderUtils.getShadowShaderProgram());
 
         //TODO render shadows
     }
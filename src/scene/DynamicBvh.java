@@ -0,0 +1,575 @@
+package scene;
+
+import java.util.Arrays;
+
+/**
+ * Incremental bounding volume hierarchy over object bounds. Leaves store fattened boxes, so objects moving a little
+ * do not touch the tree, inserts descend by surface area cost and ancestors are rebalanced by rotations on the way
+ * back up. {@link #rebuild()} builds the whole tree again top down with a binned surface area heuristic. Nodes live
+ * in flat arrays with a free list and queries walk an internal stack, nothing is allocated per operation once the
+ * arrays are large enough. Not thread safe, queries included.
+ */
+public final class DynamicBvh {
+
+    public static final float DEFAULT_MARGIN = 0.1f;
+
+    private static final int NULL = -1;
+    private static final int BOUNDS_SIZE = 6;
+    private static final int BIN_COUNT = 12;
+    private static final int MAX_BUILD_DEPTH = 64;
+
+    private final float margin;
+
+    private float[] bounds = new float[64 * BOUNDS_SIZE];
+    private int[] parents = new int[64];
+    private int[] left = new int[64];
+    private int[] right = new int[64];
+    private int[] heights = new int[64];
+    private int[] objects = new int[64];
+
+    private int root = NULL;
+    private int freeList = NULL;
+    private int allocated;
+    private int leafCount;
+
+    private int[] stack = new int[64];
+    private int[] leaves = new int[64];
+    private final float[] binBounds = new float[BIN_COUNT * BOUNDS_SIZE];
+    private final int[] binCounts = new int[BIN_COUNT];
+    private final float[] rightAreas = new float[BIN_COUNT];
+    private final float[] scratch = new float[BOUNDS_SIZE];
+
+    /**
+     * Receives the objects whose leaves pass a query.
+     */
+    public interface Visitor {
+        void visit(int object);
+    }
+
+    /**
+     * Receives the objects whose leaves the ray enters before {@code maxDistance}, returns the distance to clip the
+     * rest of the query to, {@code maxDistance} itself to keep searching everything.
+     */
+    public interface RayVisitor {
+        float visit(int object, float maxDistance);
+    }
+
+    public DynamicBvh() {
+        this(DEFAULT_MARGIN);
+    }
+
+    public DynamicBvh(float fatMargin) {
+        margin = fatMargin;
+    }
+
+    /**
+     * Adds an object with its bounds laid out as min xyz followed by max xyz, returns the proxy naming its leaf.
+     */
+    public int insert(int object, float[] minMax) {
+        final int leaf = allocateNode();
+        setFatBounds(leaf, minMax);
+        objects[leaf] = object;
+        heights[leaf] = 0;
+        insertLeaf(leaf);
+        leafCount++;
+        return leaf;
+    }
+
+    public void remove(int proxy) {
+        removeLeaf(proxy);
+        freeNode(proxy);
+        leafCount--;
+    }
+
+    /**
+     * Refits the leaf to new bounds. Returns false without touching the tree while the bounds stay inside the fat
+     * box of the leaf.
+     */
+    public boolean move(int proxy, float[] minMax) {
+        final int o = proxy * BOUNDS_SIZE;
+        if (bounds[o] <= minMax[0] && bounds[o + 1] <= minMax[1] && bounds[o + 2] <= minMax[2]
+                && bounds[o + 3] >= minMax[3] && bounds[o + 4] >= minMax[4] && bounds[o + 5] >= minMax[5]) {
+            return false;
+        }
+        removeLeaf(proxy);
+        setFatBounds(proxy, minMax);
+        insertLeaf(proxy);
+        return true;
+    }
+
+    public int getObject(int proxy) {
+        return objects[proxy];
+    }
+
+    public int getLeafCount() {
+        return leafCount;
+    }
+
+    public int getHeight() {
+        return root == NULL ? 0 : heights[root];
+    }
+
+    /**
+     * Sum of the surface areas of the internal nodes relative to the root, lower means cheaper queries.
+     */
+    public float getAreaRatio() {
+        if (root == NULL) return 0f;
+        float total = 0f;
+        for (int node = 0; node < allocated; node++) {
+            if (heights[node] > 0) total += area(node);
+        }
+        return total / area(root);
+    }
+
+    /**
+     * Rebuilds the tree over the current leaves with a binned surface area heuristic, the proxies stay valid.
+     */
+    public void rebuild() {
+        if (leafCount < 3) return;
+
+        if (leaves.length < leafCount) leaves = new int[leafCount];
+        int count = 0;
+        for (int node = 0; node < allocated; node++) {
+            if (heights[node] < 0) continue;
+            if (heights[node] == 0) leaves[count++] = node;
+            else freeNode(node);
+        }
+        root = build(0, count, NULL, 0);
+    }
+
+    /**
+     * Visits the objects whose fat bounds are not fully behind one of the planes. Planes are (a, b, c, d) with the
+     * inside where {@code ax + by + cz + d >= 0}, in the space of the object bounds.
+     */
+    public void queryFrustum(float[] planes, int planeCount, Visitor visitor) {
+        if (root == NULL) return;
+
+        int top = 0;
+        stack[top++] = root;
+        while (top > 0) {
+            int node = stack[--top];
+            boolean inside = node < 0;
+            if (inside) node = ~node;
+
+            if (!inside) {
+                inside = true;
+                final int o = node * BOUNDS_SIZE;
+                for (int p = 0; p < planeCount * 4; p += 4) {
+                    final float a = planes[p];
+                    final float b = planes[p + 1];
+                    final float c = planes[p + 2];
+                    final float d = planes[p + 3];
+                    final float far = a * bounds[o + (a >= 0f ? 3 : 0)] + b * bounds[o + (b >= 0f ? 4 : 1)]
+                            + c * bounds[o + (c >= 0f ? 5 : 2)] + d;
+                    if (far < 0f) {
+                        inside = false;
+                        node = NULL;
+                        break;
+                    }
+                    final float near = a * bounds[o + (a >= 0f ? 0 : 3)] + b * bounds[o + (b >= 0f ? 1 : 4)]
+                            + c * bounds[o + (c >= 0f ? 2 : 5)] + d;
+                    if (near < 0f) inside = false;
+                }
+                if (node == NULL) continue;
+            }
+
+            if (heights[node] == 0) {
+                visitor.visit(objects[node]);
+                continue;
+            }
+            top = push(top, inside ? ~left[node] : left[node]);
+            top = push(top, inside ? ~right[node] : right[node]);
+        }
+    }
+
+    public void querySphere(float x, float y, float z, float radius, Visitor visitor) {
+        if (root == NULL) return;
+
+        final float radiusSquared = radius * radius;
+        int top = 0;
+        stack[top++] = root;
+        while (top > 0) {
+            final int node = stack[--top];
+            final int o = node * BOUNDS_SIZE;
+            final float dx = Math.max(Math.max(bounds[o] - x, x - bounds[o + 3]), 0f);
+            final float dy = Math.max(Math.max(bounds[o + 1] - y, y - bounds[o + 4]), 0f);
+            final float dz = Math.max(Math.max(bounds[o + 2] - z, z - bounds[o + 5]), 0f);
+            if (dx * dx + dy * dy + dz * dz > radiusSquared) continue;
+
+            if (heights[node] == 0) {
+                visitor.visit(objects[node]);
+                continue;
+            }
+            top = push(top, left[node]);
+            top = push(top, right[node]);
+        }
+    }
+
+    /**
+     * Visits the leaves along the ray, nearer children first. The direction does not need to be normalised,
+     * distances are in multiples of it.
+     */
+    public void queryRay(float ox, float oy, float oz, float dx, float dy, float dz, float maxDistance,
+                         RayVisitor visitor) {
+        if (root == NULL) return;
+
+        final float ix = 1f / dx;
+        final float iy = 1f / dy;
+        final float iz = 1f / dz;
+        float limit = maxDistance;
+
+        int top = 0;
+        stack[top++] = root;
+        while (top > 0) {
+            final int node = stack[--top];
+            if (intersectRay(bounds, node * BOUNDS_SIZE, ox, oy, oz, ix, iy, iz, limit) < 0f) continue;
+
+            if (heights[node] == 0) {
+                limit = visitor.visit(objects[node], limit);
+                continue;
+            }
+            final float leftDistance = intersectRay(bounds, left[node] * BOUNDS_SIZE, ox, oy, oz, ix, iy, iz,
+                    limit);
+            final float rightDistance = intersectRay(bounds, right[node] * BOUNDS_SIZE, ox, oy, oz, ix, iy, iz,
+                    limit);
+            if (leftDistance <= rightDistance) {
+                if (rightDistance >= 0f) top = push(top, right[node]);
+                if (leftDistance >= 0f) top = push(top, left[node]);
+            } else {
+                if (leftDistance >= 0f) top = push(top, left[node]);
+                if (rightDistance >= 0f) top = push(top, right[node]);
+            }
+        }
+    }
+
+    /**
+     * Entry distance of a ray given by origin and inverse direction into the box at {@code offset}, zero when the
+     * origin is inside and -1 on a miss or when the box starts beyond {@code maxDistance}.
+     */
+    public static float intersectRay(float[] box, int offset, float ox, float oy, float oz, float ix, float iy,
+                                     float iz, float maxDistance) {
+        final float tx0 = (box[offset] - ox) * ix;
+        final float tx1 = (box[offset + 3] - ox) * ix;
+        final float ty0 = (box[offset + 1] - oy) * iy;
+        final float ty1 = (box[offset + 4] - oy) * iy;
+        final float tz0 = (box[offset + 2] - oz) * iz;
+        final float tz1 = (box[offset + 5] - oz) * iz;
+
+        final float near = Math.max(Math.max(Math.min(tx0, tx1), Math.min(ty0, ty1)),
+                Math.max(Math.min(tz0, tz1), 0f));
+        final float far = Math.min(Math.min(Math.max(tx0, tx1), Math.max(ty0, ty1)),
+                Math.min(Math.max(tz0, tz1), maxDistance));
+        return near <= far ? near : -1f;
+    }
+
+    private int push(int top, int node) {
+        if (top == stack.length) stack = Arrays.copyOf(stack, stack.length * 2);
+        stack[top] = node;
+        return top + 1;
+    }
+
+    private void insertLeaf(int leaf) {
+        if (root == NULL) {
+            root = leaf;
+            parents[leaf] = NULL;
+            return;
+        }
+
+        final int l = leaf * BOUNDS_SIZE;
+        int index = root;
+        while (heights[index] > 0) {
+            final float nodeArea = area(index);
+            final float combinedArea = unionArea(index, l);
+            final float cost = combinedArea;
+            final float inheritance = combinedArea - nodeArea;
+
+            final float leftCost = childCost(left[index], l) + inheritance;
+            final float rightCost = childCost(right[index], l) + inheritance;
+            if (cost < leftCost && cost < rightCost) break;
+            index = leftCost < rightCost ? left[index] : right[index];
+        }
+
+        final int sibling = index;
+        final int oldParent = parents[sibling];
+        final int newParent = allocateNode();
+        parents[newParent] = oldParent;
+        union(sibling * BOUNDS_SIZE, l, newParent * BOUNDS_SIZE);
+        heights[newParent] = heights[sibling] + 1;
+        left[newParent] = sibling;
+        right[newParent] = leaf;
+        parents[sibling] = newParent;
+        parents[leaf] = newParent;
+
+        if (oldParent == NULL) root = newParent;
+        else if (left[oldParent] == sibling) left[oldParent] = newParent;
+        else right[oldParent] = newParent;
+
+        refit(parents[leaf]);
+    }
+
+    private void removeLeaf(int leaf) {
+        if (leaf == root) {
+            root = NULL;
+            return;
+        }
+
+        final int parent = parents[leaf];
+        final int grandParent = parents[parent];
+        final int sibling = left[parent] == leaf ? right[parent] : left[parent];
+
+        if (grandParent == NULL) {
+            root = sibling;
+            parents[sibling] = NULL;
+            freeNode(parent);
+            return;
+        }
+        if (left[grandParent] == parent) left[grandParent] = sibling;
+        else right[grandParent] = sibling;
+        parents[sibling] = grandParent;
+        freeNode(parent);
+        refit(grandParent);
+    }
+
+    private void refit(int start) {
+        int index = start;
+        while (index != NULL) {
+            index = balance(index);
+            final int l = left[index];
+            final int r = right[index];
+            heights[index] = 1 + Math.max(heights[l], heights[r]);
+            union(l * BOUNDS_SIZE, r * BOUNDS_SIZE, index * BOUNDS_SIZE);
+            index = parents[index];
+        }
+    }
+
+    /**
+     * Rotates the taller grandchild up when the heights of the children differ by more than one, returns the node
+     * now in place of {@code a}.
+     */
+    private int balance(int a) {
+        if (heights[a] < 2) return a;
+
+        final int b = left[a];
+        final int c = right[a];
+        final int difference = heights[c] - heights[b];
+        if (difference > 1) return rotate(a, c, b, false);
+        if (difference < -1) return rotate(a, b, c, true);
+        return a;
+    }
+
+    /**
+     * Moves {@code up}, a child of {@code a}, into the place of {@code a}, which keeps {@code other} and takes the
+     * shorter child of {@code up}.
+     */
+    private int rotate(int a, int up, int other, boolean upIsLeft) {
+        final int f = left[up];
+        final int g = right[up];
+
+        left[up] = a;
+        parents[up] = parents[a];
+        parents[a] = up;
+        final int parent = parents[up];
+        if (parent == NULL) root = up;
+        else if (left[parent] == a) left[parent] = up;
+        else right[parent] = up;
+
+        final int taller = heights[f] > heights[g] ? f : g;
+        final int shorter = taller == f ? g : f;
+        right[up] = taller;
+        if (upIsLeft) left[a] = shorter;
+        else right[a] = shorter;
+        parents[shorter] = a;
+
+        union(other * BOUNDS_SIZE, shorter * BOUNDS_SIZE, a * BOUNDS_SIZE);
+        heights[a] = 1 + Math.max(heights[other], heights[shorter]);
+        union(a * BOUNDS_SIZE, taller * BOUNDS_SIZE, up * BOUNDS_SIZE);
+        heights[up] = 1 + Math.max(heights[a], heights[taller]);
+        return up;
+    }
+
+    /**
+     * Builds the subtree over {@code leaves[start, end)} and returns its root.
+     */
+    private int build(int start, int end, int parent, int depth) {
+        final int count = end - start;
+        if (count == 1) {
+            parents[leaves[start]] = parent;
+            return leaves[start];
+        }
+
+        float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE, minZ = Float.MAX_VALUE;
+        float maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE, maxZ = -Float.MAX_VALUE;
+        for (int i = start; i < end; i++) {
+            final int o = leaves[i] * BOUNDS_SIZE;
+            final float cx = bounds[o] + bounds[o + 3];
+            final float cy = bounds[o + 1] + bounds[o + 4];
+            final float cz = bounds[o + 2] + bounds[o + 5];
+            minX = Math.min(minX, cx);
+            minY = Math.min(minY, cy);
+            minZ = Math.min(minZ, cz);
+            maxX = Math.max(maxX, cx);
+            maxY = Math.max(maxY, cy);
+            maxZ = Math.max(maxZ, cz);
+        }
+        final float extentX = maxX - minX;
+        final float extentY = maxY - minY;
+        final float extentZ = maxZ - minZ;
+        final int axis = extentX >= extentY && extentX >= extentZ ? 0 : extentY >= extentZ ? 1 : 2;
+        final float axisMin = axis == 0 ? minX : axis == 1 ? minY : minZ;
+        final float axisExtent = axis == 0 ? extentX : axis == 1 ? extentY : extentZ;
+
+        int middle = start + count / 2;
+        if (axisExtent > 0f && depth < MAX_BUILD_DEPTH) {
+            final float binScale = BIN_COUNT / axisExtent * 0.9999f;
+            final int split = findSplit(start, end, axis, axisMin, binScale);
+            if (split > 0) middle = partition(start, end, axis, axisMin, binScale, split);
+        }
+
+        final int node = allocateNode();
+        parents[node] = parent;
+        left[node] = build(start, middle, node, depth + 1);
+        right[node] = build(middle, end, node, depth + 1);
+        heights[node] = 1 + Math.max(heights[left[node]], heights[right[node]]);
+        union(left[node] * BOUNDS_SIZE, right[node] * BOUNDS_SIZE, node * BOUNDS_SIZE);
+        return node;
+    }
+
+    /**
+     * Returns the first bin of the right side of the cheapest split, 0 if no split separates the leaves.
+     */
+    private int findSplit(int start, int end, int axis, float axisMin, float binScale) {
+        Arrays.fill(binCounts, 0);
+        for (int bin = 0; bin < BIN_COUNT; bin++) resetBounds(binBounds, bin * BOUNDS_SIZE);
+        for (int i = start; i < end; i++) {
+            final int o = leaves[i] * BOUNDS_SIZE;
+            final int bin = (int) ((bounds[o + axis] + bounds[o + 3 + axis] - axisMin) * binScale);
+            binCounts[bin]++;
+            union(binBounds, bin * BOUNDS_SIZE, bounds, o, binBounds, bin * BOUNDS_SIZE);
+        }
+
+        resetBounds(scratch, 0);
+        for (int bin = BIN_COUNT - 1; bin > 0; bin--) {
+            union(scratch, 0, binBounds, bin * BOUNDS_SIZE, scratch, 0);
+            rightAreas[bin] = area(scratch, 0);
+        }
+
+        resetBounds(scratch, 0);
+        int leftCount = 0;
+        int bestSplit = 0;
+        float bestCost = Float.MAX_VALUE;
+        for (int bin = 1; bin < BIN_COUNT; bin++) {
+            union(scratch, 0, binBounds, (bin - 1) * BOUNDS_SIZE, scratch, 0);
+            leftCount += binCounts[bin - 1];
+            final int rightCount = end - start - leftCount;
+            if (leftCount == 0 || rightCount == 0) continue;
+
+            final float cost = leftCount * area(scratch, 0) + rightCount * rightAreas[bin];
+            if (cost < bestCost) {
+                bestCost = cost;
+                bestSplit = bin;
+            }
+        }
+        return bestSplit;
+    }
+
+    private int partition(int start, int end, int axis, float axisMin, float binScale, int split) {
+        int i = start;
+        int j = end - 1;
+        while (i <= j) {
+            final int o = leaves[i] * BOUNDS_SIZE;
+            final int bin = (int) ((bounds[o + axis] + bounds[o + 3 + axis] - axisMin) * binScale);
+            if (bin < split) i++;
+            else {
+                final int swap = leaves[i];
+                leaves[i] = leaves[j];
+                leaves[j--] = swap;
+            }
+        }
+        return i;
+    }
+
+    private float childCost(int child, int leafOffset) {
+        if (heights[child] == 0) return unionArea(child, leafOffset);
+        return unionArea(child, leafOffset) - area(child);
+    }
+
+    private void setFatBounds(int node, float[] minMax) {
+        final int o = node * BOUNDS_SIZE;
+        for (int i = 0; i < 3; i++) {
+            bounds[o + i] = minMax[i] - margin;
+            bounds[o + 3 + i] = minMax[3 + i] + margin;
+        }
+    }
+
+    private float area(int node) {
+        return area(bounds, node * BOUNDS_SIZE);
+    }
+
+    private float unionArea(int node, int otherOffset) {
+        final int o = node * BOUNDS_SIZE;
+        final int b = otherOffset;
+        final float dx = Math.max(bounds[o + 3], bounds[b + 3]) - Math.min(bounds[o], bounds[b]);
+        final float dy = Math.max(bounds[o + 4], bounds[b + 4]) - Math.min(bounds[o + 1], bounds[b + 1]);
+        final float dz = Math.max(bounds[o + 5], bounds[b + 5]) - Math.min(bounds[o + 2], bounds[b + 2]);
+        return dx * dy + dy * dz + dz * dx;
+    }
+
+    private void union(int a, int b, int dest) {
+        union(bounds, a, bounds, b, bounds, dest);
+    }
+
+    /**
+     * Half the surface area, enough to compare costs.
+     */
+    private static float area(float[] box, int o) {
+        final float dx = box[o + 3] - box[o];
+        final float dy = box[o + 4] - box[o + 1];
+        final float dz = box[o + 5] - box[o + 2];
+        return dx * dy + dy * dz + dz * dx;
+    }
+
+    private static void union(float[] a, int ao, float[] b, int bo, float[] dest, int destOffset) {
+        for (int i = 0; i < 3; i++) {
+            dest[destOffset + i] = Math.min(a[ao + i], b[bo + i]);
+            dest[destOffset + 3 + i] = Math.max(a[ao + 3 + i], b[bo + 3 + i]);
+        }
+    }
+
+    private static void resetBounds(float[] box, int o) {
+        for (int i = 0; i < 3; i++) {
+            box[o + i] = Float.MAX_VALUE;
+            box[o + 3 + i] = -Float.MAX_VALUE;
+        }
+    }
+
+    private int allocateNode() {
+        if (freeList == NULL) {
+            if (allocated == parents.length) grow();
+            parents[allocated] = NULL;
+            freeList = allocated++;
+        }
+        final int node = freeList;
+        freeList = parents[node];
+        parents[node] = NULL;
+        left[node] = NULL;
+        right[node] = NULL;
+        heights[node] = 0;
+        return node;
+    }
+
+    private void freeNode(int node) {
+        parents[node] = freeList;
+        heights[node] = -1;
+        freeList = node;
+    }
+
+    private void grow() {
+        final int capacity = parents.length * 2;
+        bounds = Arrays.copyOf(bounds, capacity * BOUNDS_SIZE);
+        parents = Arrays.copyOf(parents, capacity);
+        left = Arrays.copyOf(left, capacity);
+        right = Arrays.copyOf(right, capacity);
+        heights = Arrays.copyOf(heights, capacity);
+        objects = Arrays.copyOf(objects, capacity);
+    }
+}
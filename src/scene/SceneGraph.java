@@ -0,0 +1,396 @@
+package scene;
+
+import geometry.Mesh;
+import geometry.TriangleBvh;
+import renderers.RenderQueue;
+import utils.BatchMath;
+import utils.Frustum;
+import utils.IntArray;
+import utils.MatrixUtils;
+import utils.OcclusionCuller;
+
+import java.util.Arrays;
+
+/**
+ * Transform hierarchy of nodes referencing meshes. Nodes are int handles into structure of arrays storage, a node
+ * is always created after its parent so a single forward pass sees every parent before its children. Setting a
+ * local transform marks the node dirty, {@link #update()} recomputes world matrices from the first dirty node on and
+ * only for nodes that are dirty or below a dirty node, so static nodes cost a flag test at most. Nodes with a mesh
+ * are kept in a {@link DynamicBvh} by their world bounds, which drives culling and picking.
+ */
+public final class SceneGraph {
+
+    public static final int ROOT = -1;
+    public static final int NONE = -1;
+
+    private static final int MATRIX_SIZE = 16;
+    private static final int BOUNDS_SIZE = 6;
+    private static final int NO_PROXY = -1;
+
+    private int[] parents = new int[64];
+    private Mesh[] meshes = new Mesh[64];
+
+    private float[] translationX = new float[64];
+    private float[] translationY = new float[64];
+    private float[] translationZ = new float[64];
+    private float[] rotationX = new float[64];
+    private float[] rotationY = new float[64];
+    private float[] rotationZ = new float[64];
+    private float[] rotationW = new float[64];
+    private float[] scaleX = new float[64];
+    private float[] scaleY = new float[64];
+    private float[] scaleZ = new float[64];
+
+    private boolean[] dirty = new boolean[64];
+    private boolean[] occluders = new boolean[64];
+    private float[] worldMatrices = new float[64 * MATRIX_SIZE];
+    private final float[] localMatrix = new float[MATRIX_SIZE];
+    private final float[] modelViewMatrix = new float[MATRIX_SIZE];
+
+    private final DynamicBvh bvh = new DynamicBvh();
+    private int[] proxies = new int[64];
+    private float[] worldBounds = new float[64 * BOUNDS_SIZE];
+    private final float[] boundsScratch = new float[BOUNDS_SIZE];
+    private final float[] planes = new float[Frustum.PLANE_COUNT * 4];
+    private final IntArray visibleNodes = new IntArray();
+    private final DynamicBvh.Visitor visibleCollector = visibleNodes::add;
+    private final DynamicBvh.RayVisitor pickVisitor = this::visitPick;
+
+    private final float[] ray = new float[9];
+    private final float[] modelRay = new float[6];
+    private final TriangleBvh.Hit triangleHit = new TriangleBvh.Hit();
+    private int pickedNode;
+    private int pickedTriangle;
+
+    private int count;
+    private int firstDirty = Integer.MAX_VALUE;
+    private int updatedCount;
+
+    /**
+     * Adds an identity node below {@code parent}, {@link #ROOT} for a top level node.
+     */
+    public int createNode(int parent) {
+        if (parent >= count) throw new IllegalStateException("Unknown parent node " + parent);
+        if (count == parents.length) grow();
+
+        final int node = count++;
+        parents[node] = parent;
+        meshes[node] = null;
+        occluders[node] = false;
+        proxies[node] = NO_PROXY;
+        translationX[node] = 0f;
+        translationY[node] = 0f;
+        translationZ[node] = 0f;
+        rotationX[node] = 0f;
+        rotationY[node] = 0f;
+        rotationZ[node] = 0f;
+        rotationW[node] = 1f;
+        scaleX[node] = 1f;
+        scaleY[node] = 1f;
+        scaleZ[node] = 1f;
+        markDirty(node);
+        return node;
+    }
+
+    public void setMesh(int node, Mesh mesh) {
+        meshes[node] = mesh;
+        if (mesh == null && proxies[node] != NO_PROXY) {
+            bvh.remove(proxies[node]);
+            proxies[node] = NO_PROXY;
+        }
+        markDirty(node);
+    }
+
+    /**
+     * Renders the node into the occlusion culler by {@link #renderOccluders}, if its mesh keeps an occluder.
+     */
+    public void setOccluder(int node, boolean occluder) {
+        occluders[node] = occluder;
+    }
+
+    public void setTranslation(int node, float x, float y, float z) {
+        translationX[node] = x;
+        translationY[node] = y;
+        translationZ[node] = z;
+        markDirty(node);
+    }
+
+    /**
+     * Rotation by {@code angle} radians around a normalised axis.
+     */
+    public void setRotation(int node, float angle, float x, float y, float z) {
+        final float half = angle * 0.5f;
+        final float sin = (float) Math.sin(half);
+        rotationX[node] = x * sin;
+        rotationY[node] = y * sin;
+        rotationZ[node] = z * sin;
+        rotationW[node] = (float) Math.cos(half);
+        markDirty(node);
+    }
+
+    public void setScale(int node, float x, float y, float z) {
+        scaleX[node] = x;
+        scaleY[node] = y;
+        scaleZ[node] = z;
+        markDirty(node);
+    }
+
+    /**
+     * Recomputes the world matrices of dirty nodes and their descendants.
+     */
+    public void update() {
+        updatedCount = 0;
+        if (firstDirty >= count) return;
+
+        for (int node = firstDirty; node < count; node++) {
+            final int parent = parents[node];
+            if (!dirty[node] && (parent == ROOT || !dirty[parent])) continue;
+
+            dirty[node] = true;
+            composeLocal(node);
+            if (parent == ROOT) System.arraycopy(localMatrix, 0, worldMatrices, node * MATRIX_SIZE, MATRIX_SIZE);
+            else multiply(worldMatrices, parent * MATRIX_SIZE, localMatrix, worldMatrices, node * MATRIX_SIZE);
+            if (meshes[node] != null) updateBounds(node);
+            updatedCount++;
+        }
+        Arrays.fill(dirty, firstDirty, count, false);
+        firstDirty = Integer.MAX_VALUE;
+    }
+
+    /**
+     * Updates the hierarchy and queues every node with a mesh, its world matrix multiplied onto the current
+     * model view matrix of {@link MatrixUtils}, which is expected to hold the view. The hierarchy does the frustum
+     * culling and adds to the counters of {@link MatrixUtils#getFrustum()}, survivors are only tested for occlusion.
+     */
+    public void submit(RenderQueue queue, int pass) {
+        update();
+
+        MatrixUtils.getFrustumPlanes(planes);
+        visibleNodes.clear();
+        bvh.queryFrustum(planes, Frustum.PLANE_COUNT, visibleCollector);
+        MatrixUtils.getFrustum().addCounts(bvh.getLeafCount(), bvh.getLeafCount() - visibleNodes.size());
+
+        for (int i = 0; i < visibleNodes.size(); i++) {
+            final int node = visibleNodes.get(i);
+            MatrixUtils.pushMatrix();
+            MatrixUtils.multiply(worldMatrices, node * MATRIX_SIZE);
+            meshes[node].getRenderer().submitInFrustum(queue, pass);
+            MatrixUtils.popMatrix();
+        }
+    }
+
+    /**
+     * Renders the occluders of all occluder nodes into the culler, which has to be between begin and end. Like
+     * {@link #submit} it expects the view on the model view stack of {@link MatrixUtils}.
+     */
+    public void renderOccluders(OcclusionCuller culler) {
+        update();
+
+        for (int node = 0; node < count; node++) {
+            if (!occluders[node] || meshes[node] == null || meshes[node].getOccluder() == null) continue;
+            MatrixUtils.pushMatrix();
+            MatrixUtils.multiply(worldMatrices, node * MATRIX_SIZE);
+            MatrixUtils.getModelViewMatrix(modelViewMatrix, 0);
+            MatrixUtils.popMatrix();
+            culler.render(meshes[node].getOccluder(), modelViewMatrix, 0);
+        }
+    }
+
+    /**
+     * Nearest node with a mesh hit by the ray within {@code maxDistance}, {@link #NONE} if there is none. Meshes
+     * with a {@link TriangleBvh} are hit on their triangles, others on their world bounds. The ray is given in world
+     * space, distances in multiples of the direction.
+     */
+    public int pick(float ox, float oy, float oz, float dx, float dy, float dz, float maxDistance) {
+        update();
+        ray[0] = ox;
+        ray[1] = oy;
+        ray[2] = oz;
+        ray[3] = 1f / dx;
+        ray[4] = 1f / dy;
+        ray[5] = 1f / dz;
+        ray[6] = dx;
+        ray[7] = dy;
+        ray[8] = dz;
+        pickedNode = NONE;
+        pickedTriangle = NONE;
+        bvh.queryRay(ox, oy, oz, dx, dy, dz, maxDistance, pickVisitor);
+        return pickedNode;
+    }
+
+    /**
+     * Triangle of the mesh hit by the last {@link #pick}, see {@link TriangleBvh#getTriangleIds()}. {@link #NONE} if
+     * nothing was picked or the picked mesh has no triangle hierarchy.
+     */
+    public int getPickedTriangle() {
+        return pickedTriangle;
+    }
+
+    /**
+     * Index over the world bounds of the nodes with a mesh, {@link DynamicBvh#rebuild()} after a large batch of
+     * changes keeps queries fast.
+     */
+    public DynamicBvh getBvh() {
+        return bvh;
+    }
+
+    /**
+     * World bounds of all nodes, the ones of a node start at {@code node * 6}. Only valid for nodes with a mesh.
+     */
+    public float[] getWorldBounds() {
+        return worldBounds;
+    }
+
+    public int getNodeCount() {
+        return count;
+    }
+
+    public int getParent(int node) {
+        return parents[node];
+    }
+
+    /**
+     * Column major world matrices of all nodes, the one of a node starts at {@code node * 16}.
+     */
+    public float[] getWorldMatrices() {
+        return worldMatrices;
+    }
+
+    /**
+     * Nodes whose world matrix was recomputed by the last update.
+     */
+    public int getUpdatedCount() {
+        return updatedCount;
+    }
+
+    private void updateBounds(int node) {
+        BatchMath.transformBounds(worldMatrices, node * MATRIX_SIZE, meshes[node].getBounds(), boundsScratch);
+        System.arraycopy(boundsScratch, 0, worldBounds, node * BOUNDS_SIZE, BOUNDS_SIZE);
+        if (proxies[node] == NO_PROXY) proxies[node] = bvh.insert(node, boundsScratch);
+        else bvh.move(proxies[node], boundsScratch);
+    }
+
+    private float visitPick(int node, float maxDistance) {
+        final float distance = DynamicBvh.intersectRay(worldBounds, node * BOUNDS_SIZE, ray[0], ray[1], ray[2],
+                ray[3], ray[4], ray[5], maxDistance);
+        if (distance < 0f) return maxDistance;
+
+        final TriangleBvh triangles = meshes[node].getTriangleBvh();
+        if (triangles == null) {
+            pickedNode = node;
+            pickedTriangle = NONE;
+            return distance;
+        }
+        if (!toModelSpace(node) || !triangles.intersect(modelRay[0], modelRay[1], modelRay[2], modelRay[3],
+                modelRay[4], modelRay[5], maxDistance, triangleHit)) return maxDistance;
+        pickedNode = node;
+        pickedTriangle = triangleHit.getTriangle();
+        return triangleHit.getDistance();
+    }
+
+    /**
+     * Brings the pick ray into the model space of the node through the inverse of its world matrix. An affine
+     * transform keeps the distances along the ray, so hits in model space compare with those of other nodes.
+     */
+    private boolean toModelSpace(int node) {
+        final float[] m = worldMatrices;
+        final int o = node * MATRIX_SIZE;
+        final float c00 = m[o + 5] * m[o + 10] - m[o + 9] * m[o + 6];
+        final float c01 = m[o + 9] * m[o + 2] - m[o + 1] * m[o + 10];
+        final float c02 = m[o + 1] * m[o + 6] - m[o + 5] * m[o + 2];
+        final float determinant = m[o] * c00 + m[o + 4] * c01 + m[o + 8] * c02;
+        if (determinant == 0f) return false;
+        final float inverse = 1f / determinant;
+
+        final float i00 = c00 * inverse;
+        final float i01 = c01 * inverse;
+        final float i02 = c02 * inverse;
+        final float i10 = (m[o + 8] * m[o + 6] - m[o + 4] * m[o + 10]) * inverse;
+        final float i11 = (m[o] * m[o + 10] - m[o + 8] * m[o + 2]) * inverse;
+        final float i12 = (m[o + 4] * m[o + 2] - m[o] * m[o + 6]) * inverse;
+        final float i20 = (m[o + 4] * m[o + 9] - m[o + 8] * m[o + 5]) * inverse;
+        final float i21 = (m[o + 8] * m[o + 1] - m[o] * m[o + 9]) * inverse;
+        final float i22 = (m[o] * m[o + 5] - m[o + 4] * m[o + 1]) * inverse;
+
+        final float px = ray[0] - m[o + 12];
+        final float py = ray[1] - m[o + 13];
+        final float pz = ray[2] - m[o + 14];
+        modelRay[0] = i00 * px + i10 * py + i20 * pz;
+        modelRay[1] = i01 * px + i11 * py + i21 * pz;
+        modelRay[2] = i02 * px + i12 * py + i22 * pz;
+        modelRay[3] = i00 * ray[6] + i10 * ray[7] + i20 * ray[8];
+        modelRay[4] = i01 * ray[6] + i11 * ray[7] + i21 * ray[8];
+        modelRay[5] = i02 * ray[6] + i12 * ray[7] + i22 * ray[8];
+        return true;
+    }
+
+    private void markDirty(int node) {
+        dirty[node] = true;
+        if (node < firstDirty) firstDirty = node;
+    }
+
+    /**
+     * Translation times rotation times scale into the local matrix scratch.
+     */
+    private void composeLocal(int node) {
+        final float x = rotationX[node];
+        final float y = rotationY[node];
+        final float z = rotationZ[node];
+        final float w = rotationW[node];
+        final float sx = scaleX[node];
+        final float sy = scaleY[node];
+        final float sz = scaleZ[node];
+
+        final float[] m = localMatrix;
+        m[0] = (1f - 2f * (y * y + z * z)) * sx;
+        m[1] = 2f * (x * y + z * w) * sx;
+        m[2] = 2f * (x * z - y * w) * sx;
+        m[3] = 0f;
+        m[4] = 2f * (x * y - z * w) * sy;
+        m[5] = (1f - 2f * (x * x + z * z)) * sy;
+        m[6] = 2f * (y * z + x * w) * sy;
+        m[7] = 0f;
+        m[8] = 2f * (x * z + y * w) * sz;
+        m[9] = 2f * (y * z - x * w) * sz;
+        m[10] = (1f - 2f * (x * x + y * y)) * sz;
+        m[11] = 0f;
+        m[12] = translationX[node];
+        m[13] = translationY[node];
+        m[14] = translationZ[node];
+        m[15] = 1f;
+    }
+
+    private static void multiply(float[] a, int aOffset, float[] b, float[] dest, int destOffset) {
+        for (int column = 0; column < 4; column++) {
+            final float bx = b[column * 4];
+            final float by = b[column * 4 + 1];
+            final float bz = b[column * 4 + 2];
+            final float bw = b[column * 4 + 3];
+            for (int row = 0; row < 4; row++) {
+                dest[destOffset + column * 4 + row] = a[aOffset + row] * bx + a[aOffset + 4 + row] * by
+                        + a[aOffset + 8 + row] * bz + a[aOffset + 12 + row] * bw;
+            }
+        }
+    }
+
+    private void grow() {
+        final int capacity = parents.length * 2;
+        parents = Arrays.copyOf(parents, capacity);
+        meshes = Arrays.copyOf(meshes, capacity);
+        proxies = Arrays.copyOf(proxies, capacity);
+        worldBounds = Arrays.copyOf(worldBounds, capacity * BOUNDS_SIZE);
+        translationX = Arrays.copyOf(translationX, capacity);
+        translationY = Arrays.copyOf(translationY, capacity);
+        translationZ = Arrays.copyOf(translationZ, capacity);
+        rotationX = Arrays.copyOf(rotationX, capacity);
+        rotationY = Arrays.copyOf(rotationY, capacity);
+        rotationZ = Arrays.copyOf(rotationZ, capacity);
+        rotationW = Arrays.copyOf(rotationW, capacity);
+        scaleX = Arrays.copyOf(scaleX, capacity);
+        scaleY = Arrays.copyOf(scaleY, capacity);
+        scaleZ = Arrays.copyOf(scaleZ, capacity);
+        dirty = Arrays.copyOf(dirty, capacity);
+        occluders = Arrays.copyOf(occluders, capacity);
+        worldMatrices = Arrays.copyOf(worldMatrices, capacity * MATRIX_SIZE);
+    }
+}
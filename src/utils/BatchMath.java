@@ -0,0 +1,256 @@
+package utils;
+
+import java.nio.FloatBuffer;
+
+/**
+ * Batch kernels over structure of arrays data, one array per component. Every kernel is a plain counted loop over
+ * independent elements with the matrix hoisted into locals, which is the shape the JIT unrolls and turns into SIMD
+ * instructions. Matrices are column major at an offset, like the model view stack of {@link MatrixUtils}.
+ * Output arrays may be the input arrays.
+ */
+public final class BatchMath {
+
+    public static final int MIN_X = 0;
+    public static final int MIN_Y = 1;
+    public static final int MIN_Z = 2;
+    public static final int MAX_X = 3;
+    public static final int MAX_Y = 4;
+    public static final int MAX_Z = 5;
+
+    /**
+     * Transforms {@code count} points, w taken as one.
+     */
+    public static void transformPoints(float[] m, int mOffset, float[] x, float[] y, float[] z,
+                                       float[] outX, float[] outY, float[] outZ, int count) {
+        final float m00 = m[mOffset], m01 = m[mOffset + 1], m02 = m[mOffset + 2];
+        final float m10 = m[mOffset + 4], m11 = m[mOffset + 5], m12 = m[mOffset + 6];
+        final float m20 = m[mOffset + 8], m21 = m[mOffset + 9], m22 = m[mOffset + 10];
+        final float m30 = m[mOffset + 12], m31 = m[mOffset + 13], m32 = m[mOffset + 14];
+
+        for (int i = 0; i < count; i++) {
+            final float px = x[i];
+            final float py = y[i];
+            final float pz = z[i];
+            outX[i] = m00 * px + m10 * py + m20 * pz + m30;
+            outY[i] = m01 * px + m11 * py + m21 * pz + m31;
+            outZ[i] = m02 * px + m12 * py + m22 * pz + m32;
+        }
+    }
+
+    /**
+     * Transforms {@code count} directions, w taken as zero. Normals need the inverse transpose unless the matrix
+     * only rotates and scales uniformly.
+     */
+    public static void transformDirections(float[] m, int mOffset, float[] x, float[] y, float[] z,
+                                           float[] outX, float[] outY, float[] outZ, int count) {
+        final float m00 = m[mOffset], m01 = m[mOffset + 1], m02 = m[mOffset + 2];
+        final float m10 = m[mOffset + 4], m11 = m[mOffset + 5], m12 = m[mOffset + 6];
+        final float m20 = m[mOffset + 8], m21 = m[mOffset + 9], m22 = m[mOffset + 10];
+
+        for (int i = 0; i < count; i++) {
+            final float px = x[i];
+            final float py = y[i];
+            final float pz = z[i];
+            outX[i] = m00 * px + m10 * py + m20 * pz;
+            outY[i] = m01 * px + m11 * py + m21 * pz;
+            outZ[i] = m02 * px + m12 * py + m22 * pz;
+        }
+    }
+
+    /**
+     * Transforms {@code count} points by a full matrix, w taken as one, keeping the homogeneous coordinate for a
+     * later divide. Used with projection matrices.
+     */
+    public static void projectPoints(float[] m, int mOffset, float[] x, float[] y, float[] z,
+                                     float[] outX, float[] outY, float[] outZ, float[] outW, int count) {
+        final float m00 = m[mOffset], m01 = m[mOffset + 1], m02 = m[mOffset + 2], m03 = m[mOffset + 3];
+        final float m10 = m[mOffset + 4], m11 = m[mOffset + 5], m12 = m[mOffset + 6], m13 = m[mOffset + 7];
+        final float m20 = m[mOffset + 8], m21 = m[mOffset + 9], m22 = m[mOffset + 10], m23 = m[mOffset + 11];
+        final float m30 = m[mOffset + 12], m31 = m[mOffset + 13], m32 = m[mOffset + 14], m33 = m[mOffset + 15];
+
+        for (int i = 0; i < count; i++) {
+            final float px = x[i];
+            final float py = y[i];
+            final float pz = z[i];
+            outX[i] = m00 * px + m10 * py + m20 * pz + m30;
+            outY[i] = m01 * px + m11 * py + m21 * pz + m31;
+            outZ[i] = m02 * px + m12 * py + m22 * pz + m32;
+            outW[i] = m03 * px + m13 * py + m23 * pz + m33;
+        }
+    }
+
+    /**
+     * Normalises {@code count} vectors in place, zero vectors stay zero.
+     */
+    public static void normalize(float[] x, float[] y, float[] z, int count) {
+        for (int i = 0; i < count; i++) {
+            final float lengthSquared = x[i] * x[i] + y[i] * y[i] + z[i] * z[i];
+            final float inverse = lengthSquared > 0f ? (float) (1.0 / Math.sqrt(lengthSquared)) : 0f;
+            x[i] *= inverse;
+            y[i] *= inverse;
+            z[i] *= inverse;
+        }
+    }
+
+    /**
+     * Axis aligned bounds of {@code count} points as min xyz followed by max xyz. An empty batch gives inverted
+     * bounds, min at {@link Float#MAX_VALUE} and max at its negation.
+     */
+    public static void bounds(float[] x, float[] y, float[] z, int count, float[] minMax) {
+        float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE, minZ = Float.MAX_VALUE;
+        float maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE, maxZ = -Float.MAX_VALUE;
+        for (int i = 0; i < count; i++) {
+            minX = Math.min(minX, x[i]);
+            minY = Math.min(minY, y[i]);
+            minZ = Math.min(minZ, z[i]);
+            maxX = Math.max(maxX, x[i]);
+            maxY = Math.max(maxY, y[i]);
+            maxZ = Math.max(maxZ, z[i]);
+        }
+        setBounds(minMax, minX, minY, minZ, maxX, maxY, maxZ);
+    }
+
+    /**
+     * Bounds of {@code count} interleaved points starting at {@code offset} of each {@code stride} floats, read in
+     * place so a vertex buffer needs no component arrays.
+     */
+    public static void bounds(FloatBuffer source, int offset, int stride, int count, float[] minMax) {
+        float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE, minZ = Float.MAX_VALUE;
+        float maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE, maxZ = -Float.MAX_VALUE;
+        for (int i = 0, s = offset; i < count; i++, s += stride) {
+            final float px = source.get(s);
+            final float py = source.get(s + 1);
+            final float pz = source.get(s + 2);
+            minX = Math.min(minX, px);
+            minY = Math.min(minY, py);
+            minZ = Math.min(minZ, pz);
+            maxX = Math.max(maxX, px);
+            maxY = Math.max(maxY, py);
+            maxZ = Math.max(maxZ, pz);
+        }
+        setBounds(minMax, minX, minY, minZ, maxX, maxY, maxZ);
+    }
+
+    public static void bounds(float[] source, int offset, int stride, int count, float[] minMax) {
+        float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE, minZ = Float.MAX_VALUE;
+        float maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE, maxZ = -Float.MAX_VALUE;
+        for (int i = 0, s = offset; i < count; i++, s += stride) {
+            minX = Math.min(minX, source[s]);
+            minY = Math.min(minY, source[s + 1]);
+            minZ = Math.min(minZ, source[s + 2]);
+            maxX = Math.max(maxX, source[s]);
+            maxY = Math.max(maxY, source[s + 1]);
+            maxZ = Math.max(maxZ, source[s + 2]);
+        }
+        setBounds(minMax, minX, minY, minZ, maxX, maxY, maxZ);
+    }
+
+    /**
+     * Largest distance of the points from the centre, the radius of a bounding sphere around it.
+     */
+    public static float maxDistance(float[] x, float[] y, float[] z, int count, float cx, float cy, float cz) {
+        float max = 0f;
+        for (int i = 0; i < count; i++) {
+            final float dx = x[i] - cx;
+            final float dy = y[i] - cy;
+            final float dz = z[i] - cz;
+            max = Math.max(max, dx * dx + dy * dy + dz * dz);
+        }
+        return (float) Math.sqrt(max);
+    }
+
+    /**
+     * Largest distance of {@code count} interleaved points from the centre, laid out as for the interleaved
+     * {@link #bounds(FloatBuffer, int, int, int, float[])}.
+     */
+    public static float maxDistance(FloatBuffer source, int offset, int stride, int count, float cx, float cy,
+                                    float cz) {
+        float max = 0f;
+        for (int i = 0, s = offset; i < count; i++, s += stride) {
+            final float dx = source.get(s) - cx;
+            final float dy = source.get(s + 1) - cy;
+            final float dz = source.get(s + 2) - cz;
+            max = Math.max(max, dx * dx + dy * dy + dz * dz);
+        }
+        return (float) Math.sqrt(max);
+    }
+
+    /**
+     * Bounds of the transformed points without storing them.
+     */
+    public static void transformedBounds(float[] m, int mOffset, float[] x, float[] y, float[] z, int count,
+                                         float[] minMax) {
+        final float m00 = m[mOffset], m01 = m[mOffset + 1], m02 = m[mOffset + 2];
+        final float m10 = m[mOffset + 4], m11 = m[mOffset + 5], m12 = m[mOffset + 6];
+        final float m20 = m[mOffset + 8], m21 = m[mOffset + 9], m22 = m[mOffset + 10];
+        final float m30 = m[mOffset + 12], m31 = m[mOffset + 13], m32 = m[mOffset + 14];
+
+        float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE, minZ = Float.MAX_VALUE;
+        float maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE, maxZ = -Float.MAX_VALUE;
+        for (int i = 0; i < count; i++) {
+            final float px = x[i];
+            final float py = y[i];
+            final float pz = z[i];
+            final float tx = m00 * px + m10 * py + m20 * pz + m30;
+            final float ty = m01 * px + m11 * py + m21 * pz + m31;
+            final float tz = m02 * px + m12 * py + m22 * pz + m32;
+            minX = Math.min(minX, tx);
+            minY = Math.min(minY, ty);
+            minZ = Math.min(minZ, tz);
+            maxX = Math.max(maxX, tx);
+            maxY = Math.max(maxY, ty);
+            maxZ = Math.max(maxZ, tz);
+        }
+        setBounds(minMax, minX, minY, minZ, maxX, maxY, maxZ);
+    }
+
+    /**
+     * Bounds of a box after transformation, from its eight corners folded into the matrix columns.
+     */
+    public static void transformBounds(float[] m, int mOffset, float[] minMax, float[] dest) {
+        final float minX = minMax[MIN_X], minY = minMax[MIN_Y], minZ = minMax[MIN_Z];
+        final float maxX = minMax[MAX_X], maxY = minMax[MAX_Y], maxZ = minMax[MAX_Z];
+
+        for (int row = 0; row < 3; row++) {
+            final float mx = m[mOffset + row];
+            final float my = m[mOffset + 4 + row];
+            final float mz = m[mOffset + 8 + row];
+            dest[MIN_X + row] = m[mOffset + 12 + row] + Math.min(mx * minX, mx * maxX)
+                    + Math.min(my * minY, my * maxY) + Math.min(mz * minZ, mz * maxZ);
+            dest[MAX_X + row] = m[mOffset + 12 + row] + Math.max(mx * minX, mx * maxX)
+                    + Math.max(my * minY, my * maxY) + Math.max(mz * minZ, mz * maxZ);
+        }
+    }
+
+    /**
+     * Splits {@code count} interleaved triples starting at {@code offset} of each {@code stride} floats into three
+     * component arrays.
+     */
+    public static void deinterleave(FloatBuffer source, int offset, int stride, float[] x, float[] y, float[] z,
+                                    int count) {
+        for (int i = 0, s = offset; i < count; i++, s += stride) {
+            x[i] = source.get(s);
+            y[i] = source.get(s + 1);
+            z[i] = source.get(s + 2);
+        }
+    }
+
+    public static void deinterleave(float[] source, int offset, int stride, float[] x, float[] y, float[] z,
+                                    int count) {
+        for (int i = 0, s = offset; i < count; i++, s += stride) {
+            x[i] = source[s];
+            y[i] = source[s + 1];
+            z[i] = source[s + 2];
+        }
+    }
+
+    private static void setBounds(float[] minMax, float minX, float minY, float minZ,
+                                  float maxX, float maxY, float maxZ) {
+        minMax[MIN_X] = minX;
+        minMax[MIN_Y] = minY;
+        minMax[MIN_Z] = minZ;
+        minMax[MAX_X] = maxX;
+        minMax[MAX_Y] = maxY;
+        minMax[MAX_Z] = maxZ;
+    }
+}
@@ -0,0 +1,210 @@
+package utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Free-list sub allocator for a linear range such as a GPU buffer. Only offsets are managed here, the owner of the
+ * range moves the actual data when {@link #compact(int, Mover)} relocates blocks. Adjacent free ranges are merged
+ * on release and allocations pick the smallest free range that fits. Blocks are kept sorted by offset.
+ */
+public final class BufferAllocator {
+
+    private final TreeMap<Integer, Integer> freeRanges = new TreeMap<>();
+    private final List<Block> blocks = new ArrayList<>();
+
+    private int capacity;
+    private int used;
+
+    public BufferAllocator(int initialCapacity) {
+        capacity = initialCapacity;
+        if (capacity > 0) freeRanges.put(0, capacity);
+    }
+
+    /**
+     * Returns null when no free range is large enough, the caller decides whether to grow or compact.
+     */
+    public Block allocate(int size, int alignment) {
+        if (size <= 0 || alignment <= 0) throw new IllegalStateException("Invalid allocation of " + size + " bytes!");
+
+        Map.Entry<Integer, Integer> best = null;
+        for (Map.Entry<Integer, Integer> range : freeRanges.entrySet()) {
+            final int start = range.getKey();
+            final int padding = align(start, alignment) - start;
+            if (range.getValue() < padding + size) continue;
+            if (best == null || range.getValue() < best.getValue()) best = range;
+        }
+        if (best == null) return null;
+
+        final int start = best.getKey();
+        final int end = start + best.getValue();
+        final int offset = align(start, alignment);
+        freeRanges.remove(start);
+        if (offset > start) freeRanges.put(start, offset - start);
+        if (offset + size < end) freeRanges.put(offset + size, end - offset - size);
+
+        final Block block = new Block(offset, size, alignment);
+        blocks.add(-search(offset) - 1, block);
+        used += size;
+        return block;
+    }
+
+    public void free(Block block) {
+        final int index = search(block.offset);
+        if (index < 0 || blocks.get(index) != block) {
+            throw new IllegalStateException("Block is not owned by this allocator!");
+        }
+        blocks.remove(index);
+        used -= block.size;
+
+        int start = block.offset;
+        int end = block.offset + block.size;
+
+        final Map.Entry<Integer, Integer> before = freeRanges.floorEntry(start);
+        if (before != null && before.getKey() + before.getValue() == start) {
+            start = before.getKey();
+            freeRanges.remove(start);
+        }
+        final Integer after = freeRanges.get(end);
+        if (after != null) {
+            freeRanges.remove(end);
+            end += after;
+        }
+        freeRanges.put(start, end - start);
+    }
+
+    /**
+     * Extends the range at its end, existing blocks keep their offsets.
+     */
+    public void grow(int newCapacity) {
+        if (newCapacity <= capacity) return;
+
+        final Map.Entry<Integer, Integer> last = freeRanges.lastEntry();
+        if (last != null && last.getKey() + last.getValue() == capacity) {
+            freeRanges.put(last.getKey(), newCapacity - last.getKey());
+        } else freeRanges.put(capacity, newCapacity - capacity);
+        capacity = newCapacity;
+    }
+
+    /**
+     * Packs all blocks to the start of a range of {@code newCapacity} in their current order. The mover is called
+     * for every block with its old and new offset before the block is updated.
+     */
+    public void compact(int newCapacity, Mover mover) {
+        int offset = 0;
+        for (Block block : blocks) {
+            offset = align(offset, block.alignment);
+            offset += block.size;
+        }
+        if (offset > newCapacity) throw new IllegalStateException("Blocks do not fit into " + newCapacity + " bytes!");
+
+        offset = 0;
+        for (Block block : blocks) {
+            offset = align(offset, block.alignment);
+            mover.move(block.offset, offset, block.size);
+            block.offset = offset;
+            offset += block.size;
+        }
+
+        capacity = newCapacity;
+        freeRanges.clear();
+        int start = 0;
+        for (int i = 0; i <= blocks.size(); i++) {
+            final int end = i < blocks.size() ? blocks.get(i).offset : capacity;
+            if (end > start) freeRanges.put(start, end - start);
+            if (i < blocks.size()) start = end + blocks.get(i).size;
+        }
+    }
+
+    /**
+     * Capacity a compaction needs to also fit an allocation of the given size, ignoring growth policy. Blocks are
+     * walked in offset order like {@link #compact(int, Mover)} packs them, so the alignment padding matches.
+     */
+    public int getCompactedSize(int size, int alignment) {
+        int offset = 0;
+        for (Block block : blocks) offset = align(offset, block.alignment) + block.size;
+        return align(offset, alignment) + size;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int getUsed() {
+        return used;
+    }
+
+    public int getFree() {
+        return capacity - used;
+    }
+
+    public int getLargestFreeRange() {
+        int largest = 0;
+        for (int size : freeRanges.values()) largest = Math.max(largest, size);
+        return largest;
+    }
+
+    public int getFreeRangeCount() {
+        return freeRanges.size();
+    }
+
+    public int getBlockCount() {
+        return blocks.size();
+    }
+
+    /**
+     * Share of the free space not usable by a single allocation, 0 when all free space is contiguous.
+     */
+    public float getFragmentation() {
+        final int free = getFree();
+        return free == 0 ? 0f : 1f - (float) getLargestFreeRange() / free;
+    }
+
+    /**
+     * Index of the block at the offset, or minus the insertion point minus one like
+     * {@link java.util.Collections#binarySearch(List, Object)}.
+     */
+    private int search(int offset) {
+        int low = 0;
+        int high = blocks.size() - 1;
+        while (low <= high) {
+            final int middle = (low + high) >>> 1;
+            final int middleOffset = blocks.get(middle).offset;
+            if (middleOffset < offset) low = middle + 1;
+            else if (middleOffset > offset) high = middle - 1;
+            else return middle;
+        }
+        return -low - 1;
+    }
+
+    private static int align(int offset, int alignment) {
+        return (offset + alignment - 1) / alignment * alignment;
+    }
+
+    public interface Mover {
+        void move(int from, int to, int size);
+    }
+
+    public static final class Block {
+
+        private int offset;
+        private final int size;
+        private final int alignment;
+
+        private Block(int o, int s, int a) {
+            offset = o;
+            size = s;
+            alignment = a;
+        }
+
+        public int getOffset() {
+            return offset;
+        }
+
+        public int getSize() {
+            return size;
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package utils;
+
+import org.lwjgl.BufferUtils;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+public final class FloatArray {
+
+    private static final int DEFAULT_CAPACITY = 64;
+
+    private float[] data;
+    private int size;
+
+    public FloatArray() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public FloatArray(int capacity) {
+        data = new float[Math.max(capacity, 1)];
+    }
+
+    public void add(float value) {
+        if (size == data.length) grow(size + 1);
+        data[size++] = value;
+    }
+
+    public void add(float i, float j) {
+        if (size + 2 > data.length) grow(size + 2);
+        data[size++] = i;
+        data[size++] = j;
+    }
+
+    public void add(float i, float j, float k) {
+        if (size + 3 > data.length) grow(size + 3);
+        data[size++] = i;
+        data[size++] = j;
+        data[size++] = k;
+    }
+
+    public void addAll(FloatArray other) {
+        ensureCapacity(size + other.size);
+        System.arraycopy(other.data, 0, data, size, other.size);
+        size += other.size;
+    }
+
+    public float get(int index) {
+        if (index >= size) throw new IndexOutOfBoundsException("Index " + index + " out of bounds for size " + size);
+        return data[index];
+    }
+
+    public void set(int index, float value) {
+        if (index >= size) throw new IndexOutOfBoundsException("Index " + index + " out of bounds for size " + size);
+        data[index] = value;
+    }
+
+    public void ensureCapacity(int capacity) {
+        if (capacity > data.length) grow(capacity);
+    }
+
+    /**
+     * Sets the size, zeroing any elements that become visible.
+     */
+    public void resize(int newSize) {
+        ensureCapacity(newSize);
+        if (newSize > size) Arrays.fill(data, size, newSize, 0);
+        size = newSize;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * Clears the array and drops a backing array of more than {@code maxCapacity} elements, so scratch arrays do
+     * not keep the memory of their largest use.
+     */
+    public void release(int maxCapacity) {
+        size = 0;
+        if (data.length > maxCapacity) data = new float[Math.max(Math.min(DEFAULT_CAPACITY, maxCapacity), 1)];
+    }
+
+    public float[] array() {
+        return data;
+    }
+
+    public float[] toArray() {
+        return Arrays.copyOf(data, size);
+    }
+
+    public FloatBuffer toBuffer() {
+        FloatBuffer buffer = BufferUtils.createFloatBuffer(size);
+        buffer.put(data, 0, size);
+        buffer.flip();
+        return buffer;
+    }
+
+    private void grow(int minCapacity) {
+        data = Arrays.copyOf(data, Math.max(minCapacity, data.length + (data.length >> 1)));
+    }
+}
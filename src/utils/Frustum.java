@@ -0,0 +1,125 @@
+package utils;
+
+import org.lwjgl.util.vector.Matrix4f;
+
+/**
+ * View frustum planes in eye space, extracted from the rows of the projection matrix. Objects are tested in their
+ * own space by moving the bounds through the model view matrix, which together with the eye space planes is the
+ * same as testing against the planes of projection times model view. Tested and culled objects are counted.
+ */
+public final class Frustum {
+
+    public static final int PLANE_COUNT = 6;
+
+    private final float[] planes = new float[PLANE_COUNT * 4];
+    private final float[] eyeBounds = new float[6];
+
+    private int tested;
+    private int culled;
+
+    public void setProjection(Matrix4f p) {
+        setPlane(0, p.m03 + p.m00, p.m13 + p.m10, p.m23 + p.m20, p.m33 + p.m30);
+        setPlane(1, p.m03 - p.m00, p.m13 - p.m10, p.m23 - p.m20, p.m33 - p.m30);
+        setPlane(2, p.m03 + p.m01, p.m13 + p.m11, p.m23 + p.m21, p.m33 + p.m31);
+        setPlane(3, p.m03 - p.m01, p.m13 - p.m11, p.m23 - p.m21, p.m33 - p.m31);
+        setPlane(4, p.m03 + p.m02, p.m13 + p.m12, p.m23 + p.m22, p.m33 + p.m32);
+        setPlane(5, p.m03 - p.m02, p.m13 - p.m12, p.m23 - p.m22, p.m33 - p.m32);
+    }
+
+    /**
+     * Tests the bounding sphere first and the box only if the sphere straddles a plane. {@code minMax} is laid out
+     * as in {@link BatchMath#bounds}, {@code sphere} holds the centre followed by the radius, both in the space of
+     * the column major model view matrix at {@code offset}.
+     */
+    public boolean isVisible(float[] modelView, int offset, float[] minMax, float[] sphere) {
+        tested++;
+
+        final float[] m = modelView;
+        final float sx = sphere[0];
+        final float sy = sphere[1];
+        final float sz = sphere[2];
+        final float cx = m[offset] * sx + m[offset + 4] * sy + m[offset + 8] * sz + m[offset + 12];
+        final float cy = m[offset + 1] * sx + m[offset + 5] * sy + m[offset + 9] * sz + m[offset + 13];
+        final float cz = m[offset + 2] * sx + m[offset + 6] * sy + m[offset + 10] * sz + m[offset + 14];
+        final float radius = sphere[3] * getMaxScale(m, offset);
+
+        boolean straddles = false;
+        for (int i = 0; i < PLANE_COUNT * 4; i += 4) {
+            final float distance = planes[i] * cx + planes[i + 1] * cy + planes[i + 2] * cz + planes[i + 3];
+            if (distance < -radius) {
+                culled++;
+                return false;
+            }
+            if (distance < radius) straddles = true;
+        }
+        if (!straddles) return true;
+
+        BatchMath.transformBounds(m, offset, minMax, eyeBounds);
+        for (int i = 0; i < PLANE_COUNT * 4; i += 4) {
+            final float a = planes[i];
+            final float b = planes[i + 1];
+            final float c = planes[i + 2];
+            final float px = a >= 0f ? eyeBounds[BatchMath.MAX_X] : eyeBounds[BatchMath.MIN_X];
+            final float py = b >= 0f ? eyeBounds[BatchMath.MAX_Y] : eyeBounds[BatchMath.MIN_Y];
+            final float pz = c >= 0f ? eyeBounds[BatchMath.MAX_Z] : eyeBounds[BatchMath.MIN_Z];
+            if (a * px + b * py + c * pz + planes[i + 3] < 0f) {
+                culled++;
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes the six planes moved into the space of the model view matrix at {@code offset}, so bounds in that space
+     * can be tested against them directly.
+     */
+    public void getPlanes(float[] modelView, int offset, float[] dest) {
+        for (int i = 0; i < PLANE_COUNT * 4; i += 4) {
+            for (int column = 0; column < 4; column++) {
+                final int c = offset + column * 4;
+                dest[i + column] = planes[i] * modelView[c] + planes[i + 1] * modelView[c + 1]
+                        + planes[i + 2] * modelView[c + 2] + planes[i + 3] * modelView[c + 3];
+            }
+            final float inverse = 1f / VectorUtils.length(dest[i], dest[i + 1], dest[i + 2]);
+            for (int k = 0; k < 4; k++) dest[i + k] *= inverse;
+        }
+    }
+
+    /**
+     * Adds objects tested against the planes elsewhere, such as by a bounding volume hierarchy, to the counters.
+     */
+    public void addCounts(int testedCount, int culledCount) {
+        tested += testedCount;
+        culled += culledCount;
+    }
+
+    public int getTestedCount() {
+        return tested;
+    }
+
+    public int getCulledCount() {
+        return culled;
+    }
+
+    public void resetCounters() {
+        tested = 0;
+        culled = 0;
+    }
+
+    private void setPlane(int plane, float a, float b, float c, float d) {
+        final float length = VectorUtils.length(a, b, c);
+        final int i = plane * 4;
+        planes[i] = a / length;
+        planes[i + 1] = b / length;
+        planes[i + 2] = c / length;
+        planes[i + 3] = d / length;
+    }
+
+    private static float getMaxScale(float[] m, int offset) {
+        final float x = m[offset] * m[offset] + m[offset + 1] * m[offset + 1] + m[offset + 2] * m[offset + 2];
+        final float y = m[offset + 4] * m[offset + 4] + m[offset + 5] * m[offset + 5] + m[offset + 6] * m[offset + 6];
+        final float z = m[offset + 8] * m[offset + 8] + m[offset + 9] * m[offset + 9] + m[offset + 10] * m[offset + 10];
+        return (float) Math.sqrt(Math.max(x, Math.max(y, z)));
+    }
+}
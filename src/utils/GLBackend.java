@@ -0,0 +1,50 @@
+package utils;
+
+import java.nio.FloatBuffer;
+
+/**
+ * The GL calls issued through {@link GLStateCache}. Rendering code talks to the cache, the backend either forwards
+ * to LWJGL or, for tests, records the calls without a context.
+ */
+public interface GLBackend {
+
+    void useProgram(int program);
+
+    void bindVertexArray(int vertexArray);
+
+    void activeTexture(int unit);
+
+    void bindTexture(int target, int texture);
+
+    void bindBuffer(int target, int buffer);
+
+    void bindBufferRange(int target, int index, int buffer, long offset, long size);
+
+    void enable(int capability);
+
+    void disable(int capability);
+
+    void blendFunc(int source, int destination);
+
+    void depthMask(boolean enabled);
+
+    void enableVertexAttribArray(int index);
+
+    void disableVertexAttribArray(int index);
+
+    void vertexAttrib4f(int index, float x, float y, float z, float w);
+
+    void uniform1i(int location, int value);
+
+    void uniform3f(int location, float x, float y, float z);
+
+    void uniformMatrix4(int location, FloatBuffer matrix);
+
+    void drawElements(int mode, int count, int type, long offset);
+
+    void drawElementsBaseVertex(int mode, int count, int type, long offset, int baseVertex);
+
+    void drawElementsInstanced(int mode, int count, int type, long offset, int instances);
+
+    void drawElementsInstancedBaseVertex(int mode, int count, int type, long offset, int instances, int baseVertex);
+}
@@ -0,0 +1,448 @@
+package utils;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+/**
+ * Shadow copy of the GL state touched by the renderers. Calls that would not change the state are dropped before
+ * they reach the backend. Uniform values are tracked per program and attribute arrays per vertex array, since
+ * that is where GL keeps them. Anything binding programs, vertex arrays, textures or buffers behind the cache's
+ * back has to call {@link #invalidate()} afterwards. All state lives in arrays indexed by GL names, attribute
+ * indices and capability slots, so the per draw lookups allocate nothing.
+ */
+public final class GLStateCache {
+
+    private static final int UNKNOWN = -1;
+    private static final int MAX_TEXTURE_UNITS = 16;
+    private static final int MAX_BUFFER_BINDINGS = 16;
+    private static final int MATRIX_SIZE = 16;
+    private static final int MAX_VERTEX_ATTRIBUTES = Integer.SIZE;
+    private static final int VECTOR_SIZE = 4;
+
+    private static GLStateCache current = new GLStateCache(new LwjglBackend());
+
+    private final GLBackend backend;
+
+    private int program;
+    private int vertexArray;
+    private int activeTexture;
+    private final int[] textureTargets = new int[MAX_TEXTURE_UNITS];
+    private final int[] textures = new int[MAX_TEXTURE_UNITS];
+    private final int[] rangeTargets = new int[MAX_BUFFER_BINDINGS];
+    private final int[] rangeBuffers = new int[MAX_BUFFER_BINDINGS];
+    private final long[] rangeOffsets = new long[MAX_BUFFER_BINDINGS];
+    private final long[] rangeSizes = new long[MAX_BUFFER_BINDINGS];
+
+    private int[] bufferTargets = new int[4];
+    private int[] bufferBindings = new int[4];
+    private int bufferTargetCount;
+
+    private int[] capabilityNames = new int[8];
+    private int[] capabilityStates = new int[8];
+    private int capabilityCount;
+    private int blendSource;
+    private int blendDestination;
+    private int depthMask;
+
+    private int[] attributeArrays = new int[16];
+    private boolean[] attributeArraysKnown = new boolean[16];
+    private final float[] attributeValues = new float[MAX_VERTEX_ATTRIBUTES * VECTOR_SIZE];
+    private final boolean[] attributeValuesKnown = new boolean[MAX_VERTEX_ATTRIBUTES];
+    private UniformState[] uniforms = new UniformState[16];
+
+    private long issuedCalls;
+    private long skippedCalls;
+    private long drawCalls;
+
+    public GLStateCache(GLBackend glBackend) {
+        backend = glBackend;
+        invalidate();
+    }
+
+    /**
+     * The cache used by the renderers, backed by LWJGL unless replaced.
+     */
+    public static GLStateCache get() {
+        return current;
+    }
+
+    public static void set(GLStateCache cache) {
+        current = cache;
+    }
+
+    /**
+     * Forgets all tracked state, the next call of every kind is issued.
+     */
+    public void invalidate() {
+        program = UNKNOWN;
+        vertexArray = UNKNOWN;
+        activeTexture = UNKNOWN;
+        Arrays.fill(textureTargets, UNKNOWN);
+        Arrays.fill(textures, UNKNOWN);
+        Arrays.fill(rangeTargets, UNKNOWN);
+        bufferTargetCount = 0;
+        capabilityCount = 0;
+        blendSource = UNKNOWN;
+        blendDestination = UNKNOWN;
+        depthMask = UNKNOWN;
+        Arrays.fill(attributeArraysKnown, false);
+        Arrays.fill(attributeValuesKnown, false);
+        Arrays.fill(uniforms, null);
+    }
+
+    public void useProgram(int p) {
+        if (program == p) {
+            skippedCalls++;
+            return;
+        }
+        program = p;
+        issue();
+        backend.useProgram(p);
+    }
+
+    public void bindVertexArray(int v) {
+        if (vertexArray == v) {
+            skippedCalls++;
+            return;
+        }
+        vertexArray = v;
+        issue();
+        backend.bindVertexArray(v);
+    }
+
+    /**
+     * Binds the texture to the unit, selecting the unit only if the binding actually changes.
+     */
+    public void bindTexture(int unit, int target, int texture) {
+        if (textureTargets[unit] == target && textures[unit] == texture) {
+            skippedCalls++;
+            return;
+        }
+        if (activeTexture != unit) {
+            activeTexture = unit;
+            issue();
+            backend.activeTexture(unit);
+        }
+        textureTargets[unit] = target;
+        textures[unit] = texture;
+        issue();
+        backend.bindTexture(target, texture);
+    }
+
+    /**
+     * Binds the buffer to a target whose binding is context state, such as the array or uniform buffer. The element
+     * array binding belongs to the vertex array and is not tracked here.
+     */
+    public void bindBuffer(int target, int buffer) {
+        final int slot = getBufferSlot(target);
+        if (bufferBindings[slot] == buffer) {
+            skippedCalls++;
+            return;
+        }
+        bufferBindings[slot] = buffer;
+        issue();
+        backend.bindBuffer(target, buffer);
+    }
+
+    /**
+     * Binds a range of the buffer to an indexed binding point such as a uniform block binding, which binds the
+     * buffer to the target as well.
+     */
+    public void bindBufferRange(int target, int index, int buffer, long offset, long size) {
+        if (rangeTargets[index] == target && rangeBuffers[index] == buffer && rangeOffsets[index] == offset
+                && rangeSizes[index] == size) {
+            skippedCalls++;
+            return;
+        }
+        rangeTargets[index] = target;
+        rangeBuffers[index] = buffer;
+        rangeOffsets[index] = offset;
+        rangeSizes[index] = size;
+        bufferBindings[getBufferSlot(target)] = buffer;
+        issue();
+        backend.bindBufferRange(target, index, buffer, offset, size);
+    }
+
+    public void setCapability(int capability, boolean enabled) {
+        final int slot = getCapabilitySlot(capability);
+        final int state = enabled ? 1 : 0;
+        if (capabilityStates[slot] == state) {
+            skippedCalls++;
+            return;
+        }
+        capabilityStates[slot] = state;
+        issue();
+        if (enabled) backend.enable(capability);
+        else backend.disable(capability);
+    }
+
+    public void blendFunc(int source, int destination) {
+        if (blendSource == source && blendDestination == destination) {
+            skippedCalls++;
+            return;
+        }
+        blendSource = source;
+        blendDestination = destination;
+        issue();
+        backend.blendFunc(source, destination);
+    }
+
+    public void depthMask(boolean enabled) {
+        final int mask = enabled ? 1 : 0;
+        if (depthMask == mask) {
+            skippedCalls++;
+            return;
+        }
+        depthMask = mask;
+        issue();
+        backend.depthMask(enabled);
+    }
+
+    /**
+     * Enables exactly the attribute arrays in {@code mask} on the bound vertex array.
+     */
+    public void setVertexAttribArrays(int mask) {
+        final boolean tracked = vertexArray >= 0;
+        if (tracked && vertexArray >= attributeArrays.length) {
+            final int capacity = Math.max(vertexArray + 1, attributeArrays.length * 2);
+            attributeArrays = Arrays.copyOf(attributeArrays, capacity);
+            attributeArraysKnown = Arrays.copyOf(attributeArraysKnown, capacity);
+        }
+        final boolean enabled = tracked && attributeArraysKnown[vertexArray];
+        final int previous = enabled ? attributeArrays[vertexArray] : 0;
+        final int known = enabled ? ~0 : 0;
+
+        for (int index = 0; index < Integer.SIZE; index++) {
+            final int bit = 1 << index;
+            if ((mask & bit) == 0 && (previous & bit) == 0) continue;
+
+            if ((known & bit) != 0 && (mask & bit) == (previous & bit)) {
+                skippedCalls++;
+                continue;
+            }
+            issue();
+            if ((mask & bit) != 0) {
+                backend.enableVertexAttribArray(index);
+                attributeValuesKnown[index] = false;
+            } else backend.disableVertexAttribArray(index);
+        }
+        if (tracked) {
+            attributeArrays[vertexArray] = mask;
+            attributeArraysKnown[vertexArray] = true;
+        }
+    }
+
+    /**
+     * Constant value of an attribute whose array is disabled. Enabling the array forgets the value, drawing from an
+     * array may leave the constant undefined.
+     */
+    public void vertexAttrib4f(int index, float x, float y, float z, float w) {
+        final float[] value = attributeValues;
+        final int offset = index * VECTOR_SIZE;
+        if (attributeValuesKnown[index] && value[offset] == x && value[offset + 1] == y && value[offset + 2] == z
+                && value[offset + 3] == w) {
+            skippedCalls++;
+            return;
+        }
+        value[offset] = x;
+        value[offset + 1] = y;
+        value[offset + 2] = z;
+        value[offset + 3] = w;
+        attributeValuesKnown[index] = true;
+        issue();
+        backend.vertexAttrib4f(index, x, y, z, w);
+    }
+
+    public void uniform1i(int location, int value) {
+        if (location < 0) return;
+        final UniformState state = getUniformState();
+        if (state.matchesInt(location, value)) {
+            skippedCalls++;
+            return;
+        }
+        issue();
+        backend.uniform1i(location, value);
+    }
+
+    public void uniform3f(int location, float x, float y, float z) {
+        if (location < 0) return;
+        final UniformState state = getUniformState();
+        if (state.matchesVector(location, x, y, z)) {
+            skippedCalls++;
+            return;
+        }
+        issue();
+        backend.uniform3f(location, x, y, z);
+    }
+
+    public void uniformMatrix4(int location, FloatBuffer matrix) {
+        if (location < 0) return;
+        final UniformState state = getUniformState();
+        if (state.matchesMatrix(location, matrix)) {
+            skippedCalls++;
+            return;
+        }
+        issue();
+        backend.uniformMatrix4(location, matrix);
+    }
+
+    public void drawElements(int mode, int count, int type, long offset) {
+        issue();
+        drawCalls++;
+        backend.drawElements(mode, count, type, offset);
+        forgetSourcedValues();
+    }
+
+    public void drawElementsBaseVertex(int mode, int count, int type, long offset, int baseVertex) {
+        issue();
+        drawCalls++;
+        backend.drawElementsBaseVertex(mode, count, type, offset, baseVertex);
+        forgetSourcedValues();
+    }
+
+    public void drawElementsInstanced(int mode, int count, int type, long offset, int instances) {
+        issue();
+        drawCalls++;
+        backend.drawElementsInstanced(mode, count, type, offset, instances);
+        forgetSourcedValues();
+    }
+
+    public void drawElementsInstancedBaseVertex(int mode, int count, int type, long offset, int instances,
+                                                int baseVertex) {
+        issue();
+        drawCalls++;
+        backend.drawElementsInstancedBaseVertex(mode, count, type, offset, instances, baseVertex);
+        forgetSourcedValues();
+    }
+
+    /**
+     * The constant value of an attribute is undefined after a draw sourced it from an enabled array.
+     */
+    private void forgetSourcedValues() {
+        if (vertexArray < 0 || vertexArray >= attributeArrays.length || !attributeArraysKnown[vertexArray]) {
+            Arrays.fill(attributeValuesKnown, false);
+            return;
+        }
+        for (int mask = attributeArrays[vertexArray]; mask != 0; mask &= mask - 1) {
+            attributeValuesKnown[Integer.numberOfTrailingZeros(mask)] = false;
+        }
+    }
+
+    public long getIssuedCalls() {
+        return issuedCalls;
+    }
+
+    public long getSkippedCalls() {
+        return skippedCalls;
+    }
+
+    public long getDrawCalls() {
+        return drawCalls;
+    }
+
+    public void resetCounters() {
+        issuedCalls = 0L;
+        skippedCalls = 0L;
+        drawCalls = 0L;
+    }
+
+    private void issue() {
+        issuedCalls++;
+    }
+
+    private UniformState getUniformState() {
+        if (program == UNKNOWN) throw new IllegalStateException("Uniforms need a program bound through the cache!");
+        if (program >= uniforms.length) uniforms = Arrays.copyOf(uniforms, Math.max(program + 1, uniforms.length * 2));
+        UniformState state = uniforms[program];
+        if (state == null) {
+            state = new UniformState();
+            uniforms[program] = state;
+        }
+        return state;
+    }
+
+    /**
+     * Slot of the capability in the tracked state, a new unknown slot for a capability seen the first time. Only a
+     * handful of capabilities are ever toggled, so a linear search beats hashing.
+     */
+    private int getCapabilitySlot(int capability) {
+        for (int slot = 0; slot < capabilityCount; slot++) {
+            if (capabilityNames[slot] == capability) return slot;
+        }
+        if (capabilityCount == capabilityNames.length) {
+            capabilityNames = Arrays.copyOf(capabilityNames, capabilityCount * 2);
+            capabilityStates = Arrays.copyOf(capabilityStates, capabilityCount * 2);
+        }
+        capabilityNames[capabilityCount] = capability;
+        capabilityStates[capabilityCount] = UNKNOWN;
+        return capabilityCount++;
+    }
+
+    private int getBufferSlot(int target) {
+        for (int slot = 0; slot < bufferTargetCount; slot++) {
+            if (bufferTargets[slot] == target) return slot;
+        }
+        if (bufferTargetCount == bufferTargets.length) {
+            bufferTargets = Arrays.copyOf(bufferTargets, bufferTargetCount * 2);
+            bufferBindings = Arrays.copyOf(bufferBindings, bufferTargetCount * 2);
+        }
+        bufferTargets[bufferTargetCount] = target;
+        bufferBindings[bufferTargetCount] = UNKNOWN;
+        return bufferTargetCount++;
+    }
+
+    /**
+     * Last values set per uniform location of one program. Every location keeps room for a matrix, locations are
+     * small and dense in practice.
+     */
+    private static final class UniformState {
+
+        private float[] values = new float[0];
+        private boolean[] known = new boolean[0];
+
+        boolean matchesInt(int location, int value) {
+            return matches(location, Float.intBitsToFloat(value), 0f, 0f, 1);
+        }
+
+        boolean matchesVector(int location, float x, float y, float z) {
+            return matches(location, x, y, z, 3);
+        }
+
+        boolean matchesMatrix(int location, FloatBuffer matrix) {
+            ensureLocation(location);
+            final int offset = location * MATRIX_SIZE;
+            final int position = matrix.position();
+
+            boolean same = known[location];
+            for (int i = 0; i < MATRIX_SIZE; i++) {
+                final float value = matrix.get(position + i);
+                if (Float.floatToRawIntBits(values[offset + i]) != Float.floatToRawIntBits(value)) same = false;
+                values[offset + i] = value;
+            }
+            known[location] = true;
+            return same;
+        }
+
+        private boolean matches(int location, float x, float y, float z, int size) {
+            ensureLocation(location);
+            final int offset = location * MATRIX_SIZE;
+
+            final boolean same = known[location]
+                    && Float.floatToRawIntBits(values[offset]) == Float.floatToRawIntBits(x)
+                    && (size < 2 || Float.floatToRawIntBits(values[offset + 1]) == Float.floatToRawIntBits(y))
+                    && (size < 3 || Float.floatToRawIntBits(values[offset + 2]) == Float.floatToRawIntBits(z));
+            values[offset] = x;
+            values[offset + 1] = y;
+            values[offset + 2] = z;
+            known[location] = true;
+            return same;
+        }
+
+        private void ensureLocation(int location) {
+            if (location < known.length) return;
+            final int capacity = Math.max(location + 1, known.length * 2);
+            known = Arrays.copyOf(known, capacity);
+            values = Arrays.copyOf(values, capacity * MATRIX_SIZE);
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package utils;
+
+import org.lwjgl.BufferUtils;
+
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+public final class IntArray {
+
+    private static final int DEFAULT_CAPACITY = 64;
+
+    private int[] data;
+    private int size;
+
+    public IntArray() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public IntArray(int capacity) {
+        data = new int[Math.max(capacity, 1)];
+    }
+
+    public void add(int value) {
+        if (size == data.length) grow(size + 1);
+        data[size++] = value;
+    }
+
+    public void add(int i, int j) {
+        if (size + 2 > data.length) grow(size + 2);
+        data[size++] = i;
+        data[size++] = j;
+    }
+
+    public void add(int i, int j, int k) {
+        if (size + 3 > data.length) grow(size + 3);
+        data[size++] = i;
+        data[size++] = j;
+        data[size++] = k;
+    }
+
+    public void addAll(IntArray other) {
+        ensureCapacity(size + other.size);
+        System.arraycopy(other.data, 0, data, size, other.size);
+        size += other.size;
+    }
+
+    public void addAll(int[] values, int count) {
+        ensureCapacity(size + count);
+        System.arraycopy(values, 0, data, size, count);
+        size += count;
+    }
+
+    public int get(int index) {
+        if (index >= size) throw new IndexOutOfBoundsException("Index " + index + " out of bounds for size " + size);
+        return data[index];
+    }
+
+    public void set(int index, int value) {
+        if (index >= size) throw new IndexOutOfBoundsException("Index " + index + " out of bounds for size " + size);
+        data[index] = value;
+    }
+
+    public void ensureCapacity(int capacity) {
+        if (capacity > data.length) grow(capacity);
+    }
+
+    /**
+     * Sets the size, zeroing any elements that become visible.
+     */
+    public void resize(int newSize) {
+        ensureCapacity(newSize);
+        if (newSize > size) Arrays.fill(data, size, newSize, 0);
+        size = newSize;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * Clears the array and drops a backing array of more than {@code maxCapacity} elements, so scratch arrays do
+     * not keep the memory of their largest use.
+     */
+    public void release(int maxCapacity) {
+        size = 0;
+        if (data.length > maxCapacity) data = new int[Math.max(Math.min(DEFAULT_CAPACITY, maxCapacity), 1)];
+    }
+
+    public int[] array() {
+        return data;
+    }
+
+    public int[] toArray() {
+        return Arrays.copyOf(data, size);
+    }
+
+    public IntBuffer toBuffer() {
+        IntBuffer buffer = BufferUtils.createIntBuffer(size);
+        buffer.put(data, 0, size);
+        buffer.flip();
+        return buffer;
+    }
+
+    private void grow(int minCapacity) {
+        data = Arrays.copyOf(data, Math.max(minCapacity, data.length + (data.length >> 1)));
+    }
+}
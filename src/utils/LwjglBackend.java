@@ -0,0 +1,115 @@
+package utils;
+
+import org.lwjgl.opengl.GL11;
+import org.lwjgl.opengl.GL13;
+import org.lwjgl.opengl.GL15;
+import org.lwjgl.opengl.GL20;
+import org.lwjgl.opengl.GL30;
+import org.lwjgl.opengl.GL31;
+import org.lwjgl.opengl.GL32;
+
+import java.nio.FloatBuffer;
+
+public final class LwjglBackend implements GLBackend {
+
+    @Override
+    public void useProgram(int program) {
+        GL20.glUseProgram(program);
+    }
+
+    @Override
+    public void bindVertexArray(int vertexArray) {
+        GL30.glBindVertexArray(vertexArray);
+    }
+
+    @Override
+    public void activeTexture(int unit) {
+        GL13.glActiveTexture(GL13.GL_TEXTURE0 + unit);
+    }
+
+    @Override
+    public void bindTexture(int target, int texture) {
+        GL11.glBindTexture(target, texture);
+    }
+
+    @Override
+    public void bindBuffer(int target, int buffer) {
+        GL15.glBindBuffer(target, buffer);
+    }
+
+    @Override
+    public void bindBufferRange(int target, int index, int buffer, long offset, long size) {
+        GL30.glBindBufferRange(target, index, buffer, offset, size);
+    }
+
+    @Override
+    public void enable(int capability) {
+        GL11.glEnable(capability);
+    }
+
+    @Override
+    public void disable(int capability) {
+        GL11.glDisable(capability);
+    }
+
+    @Override
+    public void blendFunc(int source, int destination) {
+        GL11.glBlendFunc(source, destination);
+    }
+
+    @Override
+    public void depthMask(boolean enabled) {
+        GL11.glDepthMask(enabled);
+    }
+
+    @Override
+    public void enableVertexAttribArray(int index) {
+        GL20.glEnableVertexAttribArray(index);
+    }
+
+    @Override
+    public void disableVertexAttribArray(int index) {
+        GL20.glDisableVertexAttribArray(index);
+    }
+
+    @Override
+    public void vertexAttrib4f(int index, float x, float y, float z, float w) {
+        GL20.glVertexAttrib4f(index, x, y, z, w);
+    }
+
+    @Override
+    public void uniform1i(int location, int value) {
+        GL20.glUniform1i(location, value);
+    }
+
+    @Override
+    public void uniform3f(int location, float x, float y, float z) {
+        GL20.glUniform3f(location, x, y, z);
+    }
+
+    @Override
+    public void uniformMatrix4(int location, FloatBuffer matrix) {
+        GL20.glUniformMatrix4(location, false, matrix);
+    }
+
+    @Override
+    public void drawElements(int mode, int count, int type, long offset) {
+        GL11.glDrawElements(mode, count, type, offset);
+    }
+
+    @Override
+    public void drawElementsBaseVertex(int mode, int count, int type, long offset, int baseVertex) {
+        GL32.glDrawElementsBaseVertex(mode, count, type, offset, baseVertex);
+    }
+
+    @Override
+    public void drawElementsInstanced(int mode, int count, int type, long offset, int instances) {
+        GL31.glDrawElementsInstanced(mode, count, type, offset, instances);
+    }
+
+    @Override
+    public void drawElementsInstancedBaseVertex(int mode, int count, int type, long offset, int instances,
+                                                int baseVertex) {
+        GL32.glDrawElementsInstancedBaseVertex(mode, count, type, offset, instances, baseVertex);
+    }
+}
@@ -4,16 +4,31 @@ import org.lwjgl.BufferUtils;
 import org.lwjgl.util.vector.Matrix4f;
 
 import java.nio.FloatBuffer;
-import java.util.ArrayDeque;
-import java.util.Queue;
+import java.util.Arrays;
 
+/**
+ * Projection matrix and model view stack. The stack is a flat array of column major matrices, pushing copies the
+ * top one level up and the transforms multiply into it in place, so nothing is allocated once the stack is deep
+ * enough. The bottom level is the identity unless changed and can not be popped.
+ */
 public final class MatrixUtils {
 
-    private static final Queue<Matrix4f> matrixStack = new ArrayDeque<>();
+    private static final int MATRIX_SIZE = 16;
+    private static final int INITIAL_DEPTH = 32;
+    private static final int MAX_DEPTH = 1024;
+
     private static final Matrix4f projectionMatrix = new Matrix4f();
-    private static final Matrix4f identitiedMatrix = new Matrix4f();
-    private static final FloatBuffer projectionMatrixBuffer = BufferUtils.createFloatBuffer(16);
-    private static final FloatBuffer modelViewMatrixBuffer = BufferUtils.createFloatBuffer(16);
+    private static final FloatBuffer projectionMatrixBuffer = BufferUtils.createFloatBuffer(MATRIX_SIZE);
+    private static final FloatBuffer modelViewMatrixBuffer = BufferUtils.createFloatBuffer(MATRIX_SIZE);
+    private static final Frustum frustum = new Frustum();
+    private static OcclusionCuller occlusionCuller;
+
+    private static float[] matrixStack = new float[INITIAL_DEPTH * MATRIX_SIZE];
+    private static int top;
+
+    static {
+        loadIdentity();
+    }
 
     public static void setPerspective(float fov, float aspect, float near, float far) {
         final float ratio = 1f / (float) Math.tan(Math.toRadians(fov / 2f));
@@ -28,6 +43,8 @@ public final class MatrixUtils {
         projectionMatrix.m22 = -(far + near) / frustum;
         projectionMatrix.m23 = -1;
         projectionMatrix.m32 = -(2 * near * far) / frustum;
+        MatrixUtils.frustum.setProjection(projectionMatrix);
+        if (occlusionCuller != null) occlusionCuller.setProjection(projectionMatrix);
     }
 
     public static void setOrtho(float left, float right, float bottom, float top, float near, float far) {
@@ -44,30 +61,91 @@ public final class MatrixUtils {
         projectionMatrix.m31 = -(top + bottom) / (top - bottom);
         projectionMatrix.m32 = -(far + near) / (far - near);
         projectionMatrix.m33 = 1;
+        MatrixUtils.frustum.setProjection(projectionMatrix);
+        if (occlusionCuller != null) occlusionCuller.setProjection(projectionMatrix);
     }
 
     public static void pushMatrix() {
-        Matrix4f mat = new Matrix4f();
-        Matrix4f.setIdentity(mat);
-        if (!matrixStack.isEmpty()) mat = getMatrixInStack();
-
-        addMatrixInStack(mat);
+        final int next = top + MATRIX_SIZE;
+        if (next == matrixStack.length) growStack();
+        System.arraycopy(matrixStack, top, matrixStack, next, MATRIX_SIZE);
+        top = next;
     }
 
     public static void popMatrix() {
-        matrixStack.poll();
+        if (top == 0) throw new IllegalStateException("Matrix stack underflow!");
+        top -= MATRIX_SIZE;
+    }
+
+    public static void loadIdentity() {
+        final float[] m = matrixStack;
+        for (int i = 0; i < MATRIX_SIZE; i++) m[top + i] = i % 5 == 0 ? 1f : 0f;
     }
 
     public static void translate(float i, float j, float k) {
-        getMatrixInStack().translate(VectorUtils.create(i, j, k));
+        final float[] m = matrixStack;
+        final int t = top;
+        for (int row = 0; row < 4; row++) {
+            m[t + 12 + row] += m[t + row] * i + m[t + 4 + row] * j + m[t + 8 + row] * k;
+        }
     }
 
+    /**
+     * Rotates by {@code a} radians around the axis, which is expected to be normalised.
+     */
     public static void rotate(float a, float i, float j, float k) {
-        getMatrixInStack().rotate(a, VectorUtils.create(i, j, k));
+        final float c = (float) Math.cos(a);
+        final float s = (float) Math.sin(a);
+        final float oneMinusC = 1f - c;
+
+        final float f00 = i * i * oneMinusC + c;
+        final float f01 = i * j * oneMinusC + k * s;
+        final float f02 = i * k * oneMinusC - j * s;
+        final float f10 = i * j * oneMinusC - k * s;
+        final float f11 = j * j * oneMinusC + c;
+        final float f12 = j * k * oneMinusC + i * s;
+        final float f20 = i * k * oneMinusC + j * s;
+        final float f21 = j * k * oneMinusC - i * s;
+        final float f22 = k * k * oneMinusC + c;
+
+        final float[] m = matrixStack;
+        final int t = top;
+        for (int row = 0; row < 4; row++) {
+            final float x = m[t + row];
+            final float y = m[t + 4 + row];
+            final float z = m[t + 8 + row];
+            m[t + row] = x * f00 + y * f01 + z * f02;
+            m[t + 4 + row] = x * f10 + y * f11 + z * f12;
+            m[t + 8 + row] = x * f20 + y * f21 + z * f22;
+        }
     }
 
     public static void scale(float i, float j, float k) {
-        getMatrixInStack().scale(VectorUtils.create(i, j, k));
+        final float[] m = matrixStack;
+        final int t = top;
+        for (int row = 0; row < 4; row++) {
+            m[t + row] *= i;
+            m[t + 4 + row] *= j;
+            m[t + 8 + row] *= k;
+        }
+    }
+
+    /**
+     * Multiplies the column major matrix at {@code offset} into the top of the stack from the right.
+     */
+    public static void multiply(float[] matrix, int offset) {
+        final float[] m = matrixStack;
+        final int t = top;
+        for (int row = 0; row < 4; row++) {
+            final float x = m[t + row];
+            final float y = m[t + 4 + row];
+            final float z = m[t + 8 + row];
+            final float w = m[t + 12 + row];
+            for (int column = 0; column < 4; column++) {
+                final int o = offset + column * 4;
+                m[t + column * 4 + row] = x * matrix[o] + y * matrix[o + 1] + z * matrix[o + 2] + w * matrix[o + 3];
+            }
+        }
     }
 
     public static FloatBuffer getProjectionMatrixAsBuffer() {
@@ -79,20 +157,95 @@ public final class MatrixUtils {
 
     public static FloatBuffer getModelViewMatrixAsBuffer() {
         modelViewMatrixBuffer.clear();
-        Matrix4f mat = identitiedMatrix;
-        Matrix4f.setIdentity(mat);
-        if (!matrixStack.isEmpty()) mat = getMatrixInStack();
-
-        mat.store(modelViewMatrixBuffer);
+        modelViewMatrixBuffer.put(matrixStack, top, MATRIX_SIZE);
         modelViewMatrixBuffer.flip();
         return modelViewMatrixBuffer;
     }
 
-    private static void addMatrixInStack(Matrix4f mat) {
-        matrixStack.add(mat);
+    /**
+     * Copies the current model view matrix, column major, into {@code dest} at {@code offset}.
+     */
+    public static void getModelViewMatrix(float[] dest, int offset) {
+        System.arraycopy(matrixStack, top, dest, offset, MATRIX_SIZE);
+    }
+
+    /**
+     * Levels pushed above the bottom of the stack.
+     */
+    public static int getStackDepth() {
+        return top / MATRIX_SIZE;
+    }
+
+    /**
+     * Distance from the eye to the origin of the current model view space.
+     */
+    public static float getModelViewDistance() {
+        final float x = matrixStack[top + 12];
+        final float y = matrixStack[top + 13];
+        final float z = matrixStack[top + 14];
+        return (float) Math.sqrt(x * x + y * y + z * z);
+    }
+
+    /**
+     * Depth of the origin of the current model view space along the view direction.
+     */
+    public static float getModelViewDepth() {
+        return -matrixStack[top + 14];
+    }
+
+    /**
+     * Frustum test of bounds given in the current model view space, see {@link Frustum#isVisible}, followed by the
+     * occlusion test if a culler is set.
+     */
+    public static boolean isVisible(float[] minMax, float[] sphere) {
+        return frustum.isVisible(matrixStack, top, minMax, sphere) && isUnoccluded(minMax);
+    }
+
+    /**
+     * Occlusion test alone, for bounds already known to intersect the frustum.
+     */
+    public static boolean isUnoccluded(float[] minMax) {
+        return occlusionCuller == null || occlusionCuller.isVisible(matrixStack, top, minMax);
+    }
+
+    /**
+     * Tests visible bounds against the occluders of the culler as well, null turns occlusion culling off. The
+     * culler follows the projection from now on.
+     */
+    public static void setOcclusionCuller(OcclusionCuller culler) {
+        occlusionCuller = culler;
+        if (culler != null) culler.setProjection(projectionMatrix);
+    }
+
+    public static OcclusionCuller getOcclusionCuller() {
+        return occlusionCuller;
+    }
+
+    /**
+     * Frustum planes in the current model view space, six times (a, b, c, d).
+     */
+    public static void getFrustumPlanes(float[] dest) {
+        frustum.getPlanes(matrixStack, top, dest);
+    }
+
+    /**
+     * Frustum of the current projection, holding the culling counters.
+     */
+    public static Frustum getFrustum() {
+        return frustum;
+    }
+
+    /**
+     * Vertical scale of the projection, pixels per unit at distance one are this times half the viewport height.
+     */
+    public static float getProjectionScale() {
+        return projectionMatrix.m11;
     }
 
-    private static Matrix4f getMatrixInStack() {
-        return matrixStack.peek();
+    private static void growStack() {
+        if (matrixStack.length >= MAX_DEPTH * MATRIX_SIZE) {
+            throw new IllegalStateException("Matrix stack overflow, pushes without matching pops?");
+        }
+        matrixStack = Arrays.copyOf(matrixStack, matrixStack.length * 2);
     }
 }
@@ -0,0 +1,560 @@
+package utils;
+
+import org.lwjgl.util.vector.Matrix4f;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Software occlusion culling against a small depth buffer on the CPU. Between {@link #begin()} and {@link #end()}
+ * occluder triangles are projected, clipped at the near plane, set up once and binned into screen tiles. The end
+ * rasterises the tiles in parallel, each tile owning its part of the depth buffer, and reduces the buffer into a
+ * pyramid holding the farthest depth below every texel. Bounds are tested with their nearest projected depth against
+ * the level at which their screen rectangle spans at most two texels per axis. Depth is sampled at pixel centres, so
+ * occluders should stay inside the geometry they stand for, a coarse level of detail of a wall rather than a hull.
+ */
+public final class OcclusionCuller {
+
+    private static final int MATRIX_SIZE = 16;
+    private static final int TILE_SIZE = 32;
+    private static final int SETUP_SIZE = 16;
+    private static final int LEFT_OFFSET = 0;
+    private static final int RIGHT_OFFSET = 4;
+    private static final int DEPTH_OFFSET = 8;
+    private static final int BOUNDS_OFFSET = 12;
+    private static final int PARALLEL_THRESHOLD = 4096;
+    private static final float FAR_DEPTH = 1f;
+
+    private final int width;
+    private final int height;
+    private final int tilesX;
+    private final int tilesY;
+    private final float[] depth;
+    private final float[] pyramid;
+    private final int[] levelOffsets;
+    private final int[] levelWidths;
+    private final int[] levelHeights;
+    private final IntArray[] tileTriangles;
+    private final ForkJoinPool pool;
+    private final boolean ownsPool;
+
+    private final float[] projection = new float[MATRIX_SIZE];
+    private final float[] clipMatrix = new float[MATRIX_SIZE];
+    private final float[] polygon = new float[4 * 4];
+
+    private float[] clipX = new float[64];
+    private float[] clipY = new float[64];
+    private float[] clipZ = new float[64];
+    private float[] clipW = new float[64];
+    private float[] setup = new float[64 * SETUP_SIZE];
+    private int triangleCount;
+    private int binnedCount;
+
+    private boolean rendering;
+    private boolean ready;
+    private int tested;
+    private int culled;
+
+    /**
+     * Rasterises on a pool of its own with half of the processors, leaving the rest to mesh loads on the common
+     * pool. The pool is shut down by {@link #destroy()}.
+     */
+    public OcclusionCuller(int w, int h) {
+        this(w, h, new ForkJoinPool(Math.max(1, Runtime.getRuntime().availableProcessors() / 2)), true);
+    }
+
+    /**
+     * Rasterises on a pool owned by the caller, which stays running after {@link #destroy()}.
+     */
+    public OcclusionCuller(int w, int h, ForkJoinPool rasterPool) {
+        this(w, h, rasterPool, false);
+    }
+
+    private OcclusionCuller(int w, int h, ForkJoinPool rasterPool, boolean ownPool) {
+        if (w <= 0 || h <= 0) throw new IllegalStateException("Invalid occlusion buffer size " + w + "x" + h);
+        width = w;
+        height = h;
+        pool = rasterPool;
+        ownsPool = ownPool;
+        tilesX = (w + TILE_SIZE - 1) / TILE_SIZE;
+        tilesY = (h + TILE_SIZE - 1) / TILE_SIZE;
+        depth = new float[w * h];
+        tileTriangles = new IntArray[tilesX * tilesY];
+        for (int i = 0; i < tileTriangles.length; i++) tileTriangles[i] = new IntArray();
+
+        int levels = 1;
+        while (Math.max(w >> levels - 1, h >> levels - 1) > 1) levels++;
+        levelOffsets = new int[levels];
+        levelWidths = new int[levels];
+        levelHeights = new int[levels];
+        levelWidths[0] = w;
+        levelHeights[0] = h;
+        int size = 0;
+        for (int l = 1; l < levels; l++) {
+            levelWidths[l] = (levelWidths[l - 1] + 1) / 2;
+            levelHeights[l] = (levelHeights[l - 1] + 1) / 2;
+            levelOffsets[l] = size;
+            size += levelWidths[l] * levelHeights[l];
+        }
+        pyramid = new float[size];
+    }
+
+    public void setProjection(Matrix4f p) {
+        projection[0] = p.m00;
+        projection[1] = p.m01;
+        projection[2] = p.m02;
+        projection[3] = p.m03;
+        projection[4] = p.m10;
+        projection[5] = p.m11;
+        projection[6] = p.m12;
+        projection[7] = p.m13;
+        projection[8] = p.m20;
+        projection[9] = p.m21;
+        projection[10] = p.m22;
+        projection[11] = p.m23;
+        projection[12] = p.m30;
+        projection[13] = p.m31;
+        projection[14] = p.m32;
+        projection[15] = p.m33;
+    }
+
+    /**
+     * Shuts down the raster pool if the culler created it, the culler is unusable afterwards.
+     */
+    public void destroy() {
+        if (ownsPool) pool.shutdown();
+    }
+
+    /**
+     * Clears the depth buffer and starts collecting occluders, tests pass everything until {@link #end()}.
+     */
+    public void begin() {
+        Arrays.fill(depth, FAR_DEPTH);
+        for (IntArray tile : tileTriangles) tile.clear();
+        triangleCount = 0;
+        binnedCount = 0;
+        rendering = true;
+        ready = false;
+    }
+
+    /**
+     * Projects the triangles of the occluder with the column major model view matrix at {@code offset} and bins
+     * them, nothing is rasterised yet.
+     */
+    public void render(Occluder occluder, float[] modelView, int offset) {
+        if (!rendering) throw new IllegalStateException("Occluders have to be rendered between begin and end!");
+
+        multiply(projection, modelView, offset, clipMatrix);
+        final int vertexCount = occluder.x.length;
+        if (clipX.length < vertexCount) {
+            clipX = new float[vertexCount];
+            clipY = new float[vertexCount];
+            clipZ = new float[vertexCount];
+            clipW = new float[vertexCount];
+        }
+        BatchMath.projectPoints(clipMatrix, 0, occluder.x, occluder.y, occluder.z, clipX, clipY, clipZ, clipW,
+                vertexCount);
+
+        final int[] indices = occluder.indices;
+        for (int i = 0; i + 2 < indices.length; i += 3) {
+            final int a = indices[i];
+            final int b = indices[i + 1];
+            final int c = indices[i + 2];
+            final float da = clipZ[a] + clipW[a];
+            final float db = clipZ[b] + clipW[b];
+            final float dc = clipZ[c] + clipW[c];
+            if (da < 0f && db < 0f && dc < 0f) continue;
+
+            if (da >= 0f && db >= 0f && dc >= 0f) {
+                addTriangle(clipX[a], clipY[a], clipZ[a], clipW[a], clipX[b], clipY[b], clipZ[b], clipW[b],
+                        clipX[c], clipY[c], clipZ[c], clipW[c]);
+            } else {
+                clipNear(a, b, c, da, db, dc);
+            }
+        }
+    }
+
+    /**
+     * Rasterises the binned occluders and builds the depth pyramid, bounds are tested against it until the next
+     * {@link #begin()}.
+     */
+    public void end() {
+        if (!rendering) throw new IllegalStateException("Occlusion culler ended without begin!");
+        rendering = false;
+
+        if (binnedCount >= PARALLEL_THRESHOLD) {
+            pool.invoke(new RasterTask(0, tileTriangles.length));
+        } else {
+            for (int tile = 0; tile < tileTriangles.length; tile++) rasterizeTile(tile);
+        }
+
+        for (int l = 1; l < levelOffsets.length; l++) {
+            if (l == 1) reduce(depth, 0, width, height, pyramid, levelOffsets[1]);
+            else reduce(pyramid, levelOffsets[l - 1], levelWidths[l - 1], levelHeights[l - 1], pyramid,
+                    levelOffsets[l]);
+        }
+        ready = true;
+    }
+
+    /**
+     * Whether the box in the space of the model view matrix at {@code offset} may be visible. Boxes reaching behind
+     * the near plane or off the buffer, and every box while no pyramid is built, count as visible.
+     */
+    public boolean isVisible(float[] modelView, int offset, float[] minMax) {
+        if (!ready) return true;
+        tested++;
+
+        multiply(projection, modelView, offset, clipMatrix);
+        final float[] m = clipMatrix;
+        float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE, minZ = Float.MAX_VALUE;
+        float maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE;
+        for (int corner = 0; corner < 8; corner++) {
+            final float px = minMax[(corner & 1) == 0 ? BatchMath.MIN_X : BatchMath.MAX_X];
+            final float py = minMax[(corner & 2) == 0 ? BatchMath.MIN_Y : BatchMath.MAX_Y];
+            final float pz = minMax[(corner & 4) == 0 ? BatchMath.MIN_Z : BatchMath.MAX_Z];
+            final float x = m[0] * px + m[4] * py + m[8] * pz + m[12];
+            final float y = m[1] * px + m[5] * py + m[9] * pz + m[13];
+            final float z = m[2] * px + m[6] * py + m[10] * pz + m[14];
+            final float w = m[3] * px + m[7] * py + m[11] * pz + m[15];
+            if (z + w < 0f || w <= 0f) return true;
+
+            final float inverse = 1f / w;
+            minX = Math.min(minX, x * inverse);
+            maxX = Math.max(maxX, x * inverse);
+            minY = Math.min(minY, y * inverse);
+            maxY = Math.max(maxY, y * inverse);
+            minZ = Math.min(minZ, z * inverse);
+        }
+
+        final int x0 = Math.max(0, (int) Math.floor((minX * 0.5f + 0.5f) * width));
+        final int x1 = Math.min(width - 1, (int) Math.floor((maxX * 0.5f + 0.5f) * width));
+        final int y0 = Math.max(0, (int) Math.floor((minY * 0.5f + 0.5f) * height));
+        final int y1 = Math.min(height - 1, (int) Math.floor((maxY * 0.5f + 0.5f) * height));
+        if (x0 > x1 || y0 > y1) return true;
+
+        int level = 0;
+        while (level + 1 < levelOffsets.length
+                && ((x1 >> level) - (x0 >> level) > 1 || (y1 >> level) - (y0 >> level) > 1)) level++;
+        final float[] buffer = level == 0 ? depth : pyramid;
+        final int base = levelOffsets[level];
+        final int levelWidth = levelWidths[level];
+        for (int y = y0 >> level; y <= y1 >> level; y++) {
+            for (int x = x0 >> level; x <= x1 >> level; x++) {
+                if (buffer[base + y * levelWidth + x] >= minZ) return true;
+            }
+        }
+        culled++;
+        return false;
+    }
+
+    /**
+     * Normalised device depth of the occluders at the pixel, one where nothing was drawn.
+     */
+    public float getDepth(int x, int y) {
+        return depth[y * width + x];
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Occluder triangles set up since the last begin, after near plane clipping.
+     */
+    public int getTriangleCount() {
+        return triangleCount;
+    }
+
+    public int getTestedCount() {
+        return tested;
+    }
+
+    public int getCulledCount() {
+        return culled;
+    }
+
+    public void resetCounters() {
+        tested = 0;
+        culled = 0;
+    }
+
+    /**
+     * Splits the triangle at the plane where z equals minus w, keeping the part in front as one or two triangles.
+     */
+    private void clipNear(int a, int b, int c, float da, float db, float dc) {
+        int count = 0;
+        count = clipEdge(a, b, da, db, count);
+        count = clipEdge(b, c, db, dc, count);
+        count = clipEdge(c, a, dc, da, count);
+
+        final float[] p = polygon;
+        for (int i = 2; i < count; i++) {
+            addTriangle(p[0], p[1], p[2], p[3], p[(i - 1) * 4], p[(i - 1) * 4 + 1], p[(i - 1) * 4 + 2],
+                    p[(i - 1) * 4 + 3], p[i * 4], p[i * 4 + 1], p[i * 4 + 2], p[i * 4 + 3]);
+        }
+    }
+
+    private int clipEdge(int i, int j, float di, float dj, int count) {
+        if (di >= 0f) count = putVertex(count, clipX[i], clipY[i], clipZ[i], clipW[i]);
+        if (di >= 0f == dj >= 0f) return count;
+
+        final float t = di / (di - dj);
+        return putVertex(count, clipX[i] + (clipX[j] - clipX[i]) * t, clipY[i] + (clipY[j] - clipY[i]) * t,
+                clipZ[i] + (clipZ[j] - clipZ[i]) * t, clipW[i] + (clipW[j] - clipW[i]) * t);
+    }
+
+    private int putVertex(int count, float x, float y, float z, float w) {
+        polygon[count * 4] = x;
+        polygon[count * 4 + 1] = y;
+        polygon[count * 4 + 2] = z;
+        polygon[count * 4 + 3] = w;
+        return count + 1;
+    }
+
+    /**
+     * Sets up the edge functions, depth plane and screen bounds of a clip space triangle and adds it to the tiles
+     * it overlaps. Both windings are kept, occluders need not be closed.
+     */
+    private void addTriangle(float x0, float y0, float z0, float w0, float x1, float y1, float z1, float w1,
+                             float x2, float y2, float z2, float w2) {
+        float ax = toScreen(x0 / w0, width), ay = toScreen(y0 / w0, height), az = z0 / w0;
+        float bx = toScreen(x1 / w1, width), by = toScreen(y1 / w1, height), bz = z1 / w1;
+        float cx = toScreen(x2 / w2, width), cy = toScreen(y2 / w2, height), cz = z2 / w2;
+
+        float area = (bx - ax) * (cy - ay) - (cx - ax) * (by - ay);
+        if (area == 0f || Float.isNaN(area)) return;
+        if (area < 0f) {
+            final float sx = bx, sy = by, sz = bz;
+            bx = cx;
+            by = cy;
+            bz = cz;
+            cx = sx;
+            cy = sy;
+            cz = sz;
+            area = -area;
+        }
+
+        final float minX = min(ax, min(bx, cx));
+        final float minY = min(ay, min(by, cy));
+        final float maxX = max(ax, max(bx, cx));
+        final float maxY = max(ay, max(by, cy));
+        final int tx0 = Math.max(0, (int) Math.floor(minX - 0.5f) / TILE_SIZE);
+        final int ty0 = Math.max(0, (int) Math.floor(minY - 0.5f) / TILE_SIZE);
+        final int tx1 = Math.min(tilesX - 1, (int) Math.floor(maxX - 0.5f) / TILE_SIZE);
+        final int ty1 = Math.min(tilesY - 1, (int) Math.floor(maxY - 0.5f) / TILE_SIZE);
+        if (maxX < 0.5f || maxY < 0.5f || tx0 > tx1 || ty0 > ty1) return;
+
+        if ((triangleCount + 1) * SETUP_SIZE > setup.length) setup = Arrays.copyOf(setup, setup.length * 2);
+        final int s = triangleCount * SETUP_SIZE;
+        setup[s + LEFT_OFFSET] = 0f;
+        setup[s + LEFT_OFFSET + 1] = -Float.MAX_VALUE;
+        setup[s + LEFT_OFFSET + 2] = 0f;
+        setup[s + LEFT_OFFSET + 3] = -Float.MAX_VALUE;
+        setup[s + RIGHT_OFFSET] = 0f;
+        setup[s + RIGHT_OFFSET + 1] = Float.MAX_VALUE;
+        setup[s + RIGHT_OFFSET + 2] = 0f;
+        setup[s + RIGHT_OFFSET + 3] = Float.MAX_VALUE;
+        int leftEdges = 0;
+        int rightEdges = 0;
+        for (int e = 0; e < 3; e++) {
+            final float startX = e == 0 ? ax : e == 1 ? bx : cx;
+            final float startY = e == 0 ? ay : e == 1 ? by : cy;
+            final float endX = e == 0 ? bx : e == 1 ? cx : ax;
+            final float endY = e == 0 ? by : e == 1 ? cy : ay;
+            if (startY == endY) continue;
+            final int edge = s + (startY > endY ? LEFT_OFFSET + 2 * leftEdges++ : RIGHT_OFFSET + 2 * rightEdges++);
+            setup[edge] = (endX - startX) / (endY - startY);
+            setup[edge + 1] = startX - setup[edge] * startY;
+        }
+
+        final float dzdx = ((bz - az) * (cy - ay) - (cz - az) * (by - ay)) / area;
+        final float dzdy = ((cz - az) * (bx - ax) - (bz - az) * (cx - ax)) / area;
+        setup[s + DEPTH_OFFSET] = az - dzdx * ax - dzdy * ay;
+        setup[s + DEPTH_OFFSET + 1] = dzdx;
+        setup[s + DEPTH_OFFSET + 2] = dzdy;
+        setup[s + BOUNDS_OFFSET] = minX;
+        setup[s + BOUNDS_OFFSET + 1] = minY;
+        setup[s + BOUNDS_OFFSET + 2] = maxX;
+        setup[s + BOUNDS_OFFSET + 3] = maxY;
+
+        for (int ty = ty0; ty <= ty1; ty++) {
+            for (int tx = tx0; tx <= tx1; tx++) tileTriangles[ty * tilesX + tx].add(triangleCount);
+        }
+        binnedCount += (tx1 - tx0 + 1) * (ty1 - ty0 + 1);
+        triangleCount++;
+    }
+
+    /**
+     * Scan converts the triangles of the tile row by row. Setup sorted the edges into those bounding the inside on
+     * the left and on the right, unused ones never binding, so the span of a row is a max and a min of where they
+     * cross it. That leaves a branch free depth loop the JIT can vectorise.
+     */
+    private void rasterizeTile(int tile) {
+        final int tileX0 = tile % tilesX * TILE_SIZE;
+        final int tileY0 = tile / tilesX * TILE_SIZE;
+        final int tileX1 = Math.min(width, tileX0 + TILE_SIZE) - 1;
+        final int tileY1 = Math.min(height, tileY0 + TILE_SIZE) - 1;
+        final float[] setup = this.setup;
+        final float[] depth = this.depth;
+        final IntArray triangles = tileTriangles[tile];
+        final int[] list = triangles.array();
+
+        for (int k = 0, count = triangles.size(); k < count; k++) {
+            final int s = list[k] * SETUP_SIZE;
+            final int y0 = Math.max(tileY0, (int) Math.ceil(setup[s + BOUNDS_OFFSET + 1] - 0.5f));
+            final int y1 = Math.min(tileY1, (int) Math.floor(setup[s + BOUNDS_OFFSET + 3] - 0.5f));
+            final int spanX0 = Math.max(tileX0, (int) Math.ceil(setup[s + BOUNDS_OFFSET] - 0.5f));
+            final int spanX1 = Math.min(tileX1, (int) Math.floor(setup[s + BOUNDS_OFFSET + 2] - 0.5f));
+            final float dzdx = setup[s + DEPTH_OFFSET + 1];
+            final float leftSlope0 = setup[s + LEFT_OFFSET], leftOffset0 = setup[s + LEFT_OFFSET + 1];
+            final float leftSlope1 = setup[s + LEFT_OFFSET + 2], leftOffset1 = setup[s + LEFT_OFFSET + 3];
+            final float rightSlope0 = setup[s + RIGHT_OFFSET], rightOffset0 = setup[s + RIGHT_OFFSET + 1];
+            final float rightSlope1 = setup[s + RIGHT_OFFSET + 2], rightOffset1 = setup[s + RIGHT_OFFSET + 3];
+
+            for (int y = y0; y <= y1; y++) {
+                final float py = y + 0.5f;
+                final float left = max(leftSlope0 * py + leftOffset0, leftSlope1 * py + leftOffset1);
+                final float right = min(rightSlope0 * py + rightOffset0, rightSlope1 * py + rightOffset1);
+
+                final int x0 = Math.max(spanX0, (int) Math.ceil(left - 0.5f));
+                final int x1 = Math.min(spanX1, (int) Math.floor(right - 0.5f));
+                final float rowDepth = setup[s + DEPTH_OFFSET] + setup[s + DEPTH_OFFSET + 2] * py + dzdx * 0.5f;
+                final int row = y * width;
+                for (int x = x0; x <= x1; x++) {
+                    depth[row + x] = Math.min(depth[row + x], rowDepth + dzdx * x);
+                }
+            }
+        }
+    }
+
+    /**
+     * Halves a level, every texel taking the farthest of the up to four texels below it.
+     */
+    private static void reduce(float[] source, int sourceOffset, int sourceWidth, int sourceHeight, float[] dest,
+                               int destOffset) {
+        final int destWidth = (sourceWidth + 1) / 2;
+        final int destHeight = (sourceHeight + 1) / 2;
+        for (int y = 0; y < destHeight; y++) {
+            final int row0 = sourceOffset + y * 2 * sourceWidth;
+            final int row1 = y * 2 + 1 < sourceHeight ? row0 + sourceWidth : row0;
+            for (int x = 0; x < destWidth; x++) {
+                final int x0 = x * 2;
+                final int x1 = x0 + 1 < sourceWidth ? x0 + 1 : x0;
+                dest[destOffset + y * destWidth + x] = Math.max(Math.max(source[row0 + x0], source[row0 + x1]),
+                        Math.max(source[row1 + x0], source[row1 + x1]));
+            }
+        }
+    }
+
+    private static float min(float a, float b) {
+        return a < b ? a : b;
+    }
+
+    private static float max(float a, float b) {
+        return a > b ? a : b;
+    }
+
+    private static float toScreen(float ndc, int size) {
+        return (ndc * 0.5f + 0.5f) * size;
+    }
+
+    private static void multiply(float[] a, float[] b, int bOffset, float[] dest) {
+        for (int column = 0; column < 4; column++) {
+            final float bx = b[bOffset + column * 4];
+            final float by = b[bOffset + column * 4 + 1];
+            final float bz = b[bOffset + column * 4 + 2];
+            final float bw = b[bOffset + column * 4 + 3];
+            for (int row = 0; row < 4; row++) {
+                dest[column * 4 + row] = a[row] * bx + a[4 + row] * by + a[8 + row] * bz + a[12 + row] * bw;
+            }
+        }
+    }
+
+    private final class RasterTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int first;
+        private final int end;
+
+        private RasterTask(int f, int e) {
+            first = f;
+            end = e;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - first == 1) {
+                rasterizeTile(first);
+                return;
+            }
+            final int middle = (first + end) >>> 1;
+            invokeAll(new RasterTask(first, middle), new RasterTask(middle, end));
+        }
+    }
+
+    /**
+     * Occluder geometry as positions in structure of arrays form and triangle indices into them.
+     */
+    public static final class Occluder {
+
+        private final float[] x;
+        private final float[] y;
+        private final float[] z;
+        private final int[] indices;
+
+        public Occluder(float[] px, float[] py, float[] pz, int[] i) {
+            x = px;
+            y = py;
+            z = pz;
+            indices = i;
+        }
+
+        /**
+         * Copies {@code count} indices from {@code first} of the index buffer and the positions they reference,
+         * the first three floats of every {@code stride} floats of the vertex buffer. Buffer positions are the base
+         * of both and are left unchanged.
+         */
+        public static Occluder of(FloatBuffer vertices, int stride, IntBuffer indices, int first, int count) {
+            final int vertexBase = vertices.position();
+            final int indexBase = indices.position() + first;
+            final int[] remap = new int[vertices.remaining() / stride];
+            Arrays.fill(remap, -1);
+
+            final int[] compact = new int[count];
+            int vertexCount = 0;
+            for (int i = 0; i < count; i++) {
+                final int index = indices.get(indexBase + i);
+                if (remap[index] < 0) remap[index] = vertexCount++;
+                compact[i] = remap[index];
+            }
+
+            final float[] x = new float[vertexCount];
+            final float[] y = new float[vertexCount];
+            final float[] z = new float[vertexCount];
+            for (int index = 0; index < remap.length; index++) {
+                final int v = remap[index];
+                if (v < 0) continue;
+                x[v] = vertices.get(vertexBase + index * stride);
+                y[v] = vertices.get(vertexBase + index * stride + 1);
+                z[v] = vertices.get(vertexBase + index * stride + 2);
+            }
+            return new Occluder(x, y, z, compact);
+        }
+
+        public int getVertexCount() {
+            return x.length;
+        }
+
+        public int getTriangleCount() {
+            return indices.length / 3;
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package utils;
+
+import java.util.Arrays;
+
+/**
+ * Least significant digit radix sort of unsigned 64-bit keys carrying an int payload, one byte per pass. Passes
+ * in which every key has the same byte are skipped, so keys that only use a few bits cost only a few passes.
+ */
+public final class RadixSort {
+
+    private static final int RADIX_BITS = 8;
+    private static final int RADIX = 1 << RADIX_BITS;
+    private static final int PASSES = Long.SIZE / RADIX_BITS;
+
+    private final int[] histograms = new int[PASSES * RADIX];
+    private long[] keyScratch = new long[0];
+    private int[] valueScratch = new int[0];
+
+    /**
+     * Sorts the first {@code count} keys ascending, moving the values along. The sort is stable.
+     */
+    public void sort(long[] keys, int[] values, int count) {
+        if (keyScratch.length < count) {
+            keyScratch = new long[count];
+            valueScratch = new int[count];
+        }
+
+        Arrays.fill(histograms, 0);
+        for (int i = 0; i < count; i++) {
+            final long key = keys[i];
+            for (int pass = 0; pass < PASSES; pass++) {
+                histograms[pass * RADIX + (int) (key >>> pass * RADIX_BITS & RADIX - 1)]++;
+            }
+        }
+
+        long[] sourceKeys = keys;
+        int[] sourceValues = values;
+        long[] targetKeys = keyScratch;
+        int[] targetValues = valueScratch;
+
+        for (int pass = 0; pass < PASSES; pass++) {
+            final int histogram = pass * RADIX;
+            final int shift = pass * RADIX_BITS;
+            if (count == 0 || histograms[histogram + (int) (sourceKeys[0] >>> shift & RADIX - 1)] == count) continue;
+
+            int offset = 0;
+            for (int digit = 0; digit < RADIX; digit++) {
+                final int digitCount = histograms[histogram + digit];
+                histograms[histogram + digit] = offset;
+                offset += digitCount;
+            }
+
+            for (int i = 0; i < count; i++) {
+                final int slot = histograms[histogram + (int) (sourceKeys[i] >>> shift & RADIX - 1)]++;
+                targetKeys[slot] = sourceKeys[i];
+                targetValues[slot] = sourceValues[i];
+            }
+
+            final long[] keySwap = sourceKeys;
+            sourceKeys = targetKeys;
+            targetKeys = keySwap;
+            final int[] valueSwap = sourceValues;
+            sourceValues = targetValues;
+            targetValues = valueSwap;
+        }
+
+        if (sourceKeys != keys) {
+            System.arraycopy(sourceKeys, 0, keys, 0, count);
+            System.arraycopy(sourceValues, 0, values, 0, count);
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package utils;
+
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Backend without a GL context that records every call it receives by name and arguments, so the calls a
+ * renderer issues can be checked in tests.
+ */
+public final class RecordingBackend implements GLBackend {
+
+    private final List<String> calls = new ArrayList<>();
+
+    public List<String> getCalls() {
+        return Collections.unmodifiableList(calls);
+    }
+
+    /**
+     * Number of recorded calls of the named function, e.g. "glUseProgram".
+     */
+    public int count(String function) {
+        int count = 0;
+        for (String call : calls) {
+            if (call.equals(function) || call.startsWith(function + " ")) count++;
+        }
+        return count;
+    }
+
+    public void clear() {
+        calls.clear();
+    }
+
+    @Override
+    public void useProgram(int program) {
+        record("glUseProgram", program);
+    }
+
+    @Override
+    public void bindVertexArray(int vertexArray) {
+        record("glBindVertexArray", vertexArray);
+    }
+
+    @Override
+    public void activeTexture(int unit) {
+        record("glActiveTexture", unit);
+    }
+
+    @Override
+    public void bindTexture(int target, int texture) {
+        record("glBindTexture", target, texture);
+    }
+
+    @Override
+    public void bindBuffer(int target, int buffer) {
+        record("glBindBuffer", target, buffer);
+    }
+
+    @Override
+    public void bindBufferRange(int target, int index, int buffer, long offset, long size) {
+        record("glBindBufferRange", target, index, buffer, offset, size);
+    }
+
+    @Override
+    public void enable(int capability) {
+        record("glEnable", capability);
+    }
+
+    @Override
+    public void disable(int capability) {
+        record("glDisable", capability);
+    }
+
+    @Override
+    public void blendFunc(int source, int destination) {
+        record("glBlendFunc", source, destination);
+    }
+
+    @Override
+    public void depthMask(boolean enabled) {
+        record("glDepthMask", enabled);
+    }
+
+    @Override
+    public void enableVertexAttribArray(int index) {
+        record("glEnableVertexAttribArray", index);
+    }
+
+    @Override
+    public void disableVertexAttribArray(int index) {
+        record("glDisableVertexAttribArray", index);
+    }
+
+    @Override
+    public void vertexAttrib4f(int index, float x, float y, float z, float w) {
+        record("glVertexAttrib4f", index, x, y, z, w);
+    }
+
+    @Override
+    public void uniform1i(int location, int value) {
+        record("glUniform1i", location, value);
+    }
+
+    @Override
+    public void uniform3f(int location, float x, float y, float z) {
+        record("glUniform3f", location, x, y, z);
+    }
+
+    @Override
+    public void uniformMatrix4(int location, FloatBuffer matrix) {
+        record("glUniformMatrix4", location);
+    }
+
+    @Override
+    public void drawElements(int mode, int count, int type, long offset) {
+        record("glDrawElements", mode, count, type, offset);
+    }
+
+    @Override
+    public void drawElementsBaseVertex(int mode, int count, int type, long offset, int baseVertex) {
+        record("glDrawElementsBaseVertex", mode, count, type, offset, baseVertex);
+    }
+
+    @Override
+    public void drawElementsInstanced(int mode, int count, int type, long offset, int instances) {
+        record("glDrawElementsInstanced", mode, count, type, offset, instances);
+    }
+
+    @Override
+    public void drawElementsInstancedBaseVertex(int mode, int count, int type, long offset, int instances,
+                                                int baseVertex) {
+        record("glDrawElementsInstancedBaseVertex", mode, count, type, offset, instances, baseVertex);
+    }
+
+    private void record(String function, Object... arguments) {
+        final StringBuilder call = new StringBuilder(function);
+        for (Object argument : arguments) call.append(' ').append(argument);
+        calls.add(call.toString());
+    }
+}
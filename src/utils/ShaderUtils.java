@@ -2,6 +2,7 @@ package utils;
 
 import org.lwjgl.opengl.GL11;
 import org.lwjgl.opengl.GL20;
+import org.lwjgl.opengl.GL31;
 
 import java.io.BufferedReader;
 import java.io.IOException;
@@ -13,6 +14,10 @@ public final class ShaderUtils {
     public static final int POSITION_ATTRIBUTE = 0;
     public static final int TEXTURE_COORD_ATTRIBUTE = 1;
     public static final int NORMAL_ATTRIBUTE = 2;
+    public static final int INSTANCE_MATRIX_ATTRIBUTE = 3;
+    public static final int INSTANCE_COLOR_ATTRIBUTE = 7;
+
+    public static final int MATERIAL_BLOCK_BINDING = 0;
 
     private static final int LOG_INFO_LENGTH = 512;
 
@@ -29,7 +34,13 @@ public final class ShaderUtils {
     public static int SAMPLER_TEXTURE_DIFFUSE_UNIFORM;
     public static int SAMPLER_TEXTURE_SPECULAR_UNIFORM;
 
-    public static int MATERIAL_TABLE_UNIFORM;
+    public static int MATERIAL_INDEX_UNIFORM;
+
+    public static int POSITION_OFFSET_UNIFORM;
+    public static int POSITION_SCALE_UNIFORM;
+    public static int OCTAHEDRAL_NORMALS_UNIFORM;
+
+    public static int INSTANCED_UNIFORM;
 
     private static int shaderProgram;
     private static int shadowShaderProgram;
@@ -46,6 +57,8 @@ public final class ShaderUtils {
         GL20.glBindAttribLocation(shaderProgram, POSITION_ATTRIBUTE, "a_vertex.position");
         GL20.glBindAttribLocation(shaderProgram, TEXTURE_COORD_ATTRIBUTE, "a_vertex.texcoord");
         GL20.glBindAttribLocation(shaderProgram, NORMAL_ATTRIBUTE, "a_vertex.normal");
+        GL20.glBindAttribLocation(shaderProgram, INSTANCE_MATRIX_ATTRIBUTE, "a_instance_matrix");
+        GL20.glBindAttribLocation(shaderProgram, INSTANCE_COLOR_ATTRIBUTE, "a_instance_color");
 
         GL20.glLinkProgram(shaderProgram);
 
@@ -62,7 +75,17 @@ public final class ShaderUtils {
         SAMPLER_TEXTURE_DIFFUSE_UNIFORM = getUniform(shaderProgram, "u_textures.diffuse");
         SAMPLER_TEXTURE_SPECULAR_UNIFORM = getUniform(shaderProgram, "u_textures.specular");
 
-        MATERIAL_TABLE_UNIFORM = getUniform(shaderProgram, "u_material_table");
+        MATERIAL_INDEX_UNIFORM = getUniform(shaderProgram, "u_material_index");
+        final int materialBlock = GL31.glGetUniformBlockIndex(shaderProgram, "Materials");
+        if (materialBlock != GL31.GL_INVALID_INDEX) {
+            GL31.glUniformBlockBinding(shaderProgram, materialBlock, MATERIAL_BLOCK_BINDING);
+        }
+
+        POSITION_OFFSET_UNIFORM = getUniform(shaderProgram, "u_quantization.position_offset");
+        POSITION_SCALE_UNIFORM = getUniform(shaderProgram, "u_quantization.position_scale");
+        OCTAHEDRAL_NORMALS_UNIFORM = getUniform(shaderProgram, "u_quantization.octahedral_normals");
+
+        INSTANCED_UNIFORM = getUniform(shaderProgram, "u_instanced");
 
         final int shadowVertexShader = createShader(GL20.GL_VERTEX_SHADER, getShaderSourceFromPath(SHADOW_VERTEX_SHADER_PATH));
         final int shadowFragShader = createShader(GL20.GL_FRAGMENT_SHADER, getShaderSourceFromPath(SHADOW_FRAG_SHADER_PATH));
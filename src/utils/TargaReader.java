@@ -2,6 +2,7 @@ package utils;
 
 
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
 import java.io.*;
 import java.util.ArrayList;
 
@@ -71,23 +72,24 @@ public final class TargaReader {
 
 
         BufferedImage buffy = new BufferedImage(width, height, BufferedImage.TYPE_4BYTE_ABGR);
+        byte[] abgr = ((DataBufferByte) buffy.getRaster().getDataBuffer()).getData();
 
         //comes in bgra.
-        for (int i = 0; i < width; i++) {
-            for (int j = 0; j < height; j++) {
-                int dex = (j * width + i) * byte_per_pixel + offset;
-                int b = stack.getUnsigned(dex);
-                int g = stack.getUnsigned(dex + 1);
-                int r = stack.getUnsigned(dex + 2);
-                int a = stack.getUnsigned(dex + 3);
+        for (int j = 0; j < height; j++) {
+            int y = j;
 
-                int y = j;
+            if (y_ll == 0) {
+                y = height - j - 1;
+            }
 
-                if (y_ll == 0) {
-                    y = height - j - 1;
-                }
+            for (int i = 0; i < width; i++) {
+                int dex = (j * width + i) * byte_per_pixel + offset;
+                int pixel = (y * width + i) * 4;
 
-                buffy.setRGB(i, y, (a << 24) + (r << 16) + (g << 8) + b);
+                abgr[pixel] = byte_per_pixel > 3 ? stack.get(dex + 3) : (byte) 0xff;
+                abgr[pixel + 1] = stack.get(dex);
+                abgr[pixel + 2] = stack.get(dex + 1);
+                abgr[pixel + 3] = stack.get(dex + 2);
             }
         }
         return buffy;
@@ -6,6 +6,9 @@ import org.lwjgl.opengl.GL11;
 import javax.imageio.ImageIO;
 import java.awt.*;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.WritableRaster;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
@@ -17,12 +20,15 @@ public final class TextureUtils {
     private static final int GREEN_CHANNEL_OFFSET = 1;
     private static final int BLUE_CHANNEL_OFFSET = 2;
     private static final int ALPHA_CHANNEL_OFFSET = 3;
+    private static final int TEXEL_SIZE = 4;
 
     private static final BufferedImage missingTexture = new BufferedImage(16, 16, BufferedImage.TYPE_INT_ARGB);
     private static final HashMap<String, Integer> texturesMap = new HashMap<>();
     private static final String sourceFolder = "textures/";
     private static final String missingTextureName = "Missing.png";
     private static int texture;
+    private static ByteBuffer pixelBuffer;
+    private static int[] rowPixels = new int[0];
 
     public static int getMissingTexture() {
         return loadTexture(missingTextureName);
@@ -47,24 +53,9 @@ public final class TextureUtils {
 
         final int width = img.getWidth();
         final int height = img.getHeight();
-        final byte[] pixelsBuffer = new byte[width * height * 4];
-        final int[] pixels = new int[width * height];
+        final ByteBuffer byteBuffer = decode(img);
 
-        img.getRGB(0, 0, width, height, pixels, 0, width);
-
-        for (int i = 0; i < pixels.length; i++) {
-            int a = pixels[i] >> 24 & 0xff;
-            int b = pixels[i] >> 16 & 0xff;
-            int g = pixels[i] >> 8 & 0xff;
-            int r = pixels[i] & 0xff;
-
-            pixelsBuffer[i * 4 + RED_CHANNEL_OFFSET] = (byte) r;
-            pixelsBuffer[i * 4 + GREEN_CHANNEL_OFFSET] = (byte) g;
-            pixelsBuffer[i * 4 + BLUE_CHANNEL_OFFSET] = (byte) b;
-            pixelsBuffer[i * 4 + ALPHA_CHANNEL_OFFSET] = (byte) a;
-        }
-
-        GL11.glBindTexture(GL11.GL_TEXTURE_2D, index);
+        GLStateCache.get().bindTexture(0, GL11.GL_TEXTURE_2D, index);
 
         GL11.glTexParameteri(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_MIN_FILTER, GL11.GL_NEAREST);
         GL11.glTexParameteri(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_MIN_FILTER, GL11.GL_NEAREST);
@@ -72,14 +63,87 @@ public final class TextureUtils {
         GL11.glTexParameteri(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_WRAP_S, GL11.GL_CLAMP);
         GL11.glTexParameteri(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_WRAP_T, GL11.GL_CLAMP);
 
-        ByteBuffer byteBuffer = BufferUtils.createByteBuffer(pixelsBuffer.length);
-        byteBuffer.put(pixelsBuffer);
-        byteBuffer.flip();
         GL11.glTexImage2D(GL11.GL_TEXTURE_2D, 0, GL11.GL_RGBA, width, height, 0, GL11.GL_RGBA, GL11.GL_UNSIGNED_BYTE, byteBuffer);
-        GL11.glBindTexture(GL11.GL_TEXTURE_2D, 0);
+        GLStateCache.get().bindTexture(0, GL11.GL_TEXTURE_2D, 0);
         byteBuffer.clear();
     }
 
+    /**
+     * Writes the image as RGBA texels into the pooled pixel buffer, which stays valid until the next call. Images
+     * backed by interleaved ABGR or BGR bytes are read from their backing array, anything else goes through
+     * {@link BufferedImage#getRGB} one row at a time.
+     */
+    static ByteBuffer decode(BufferedImage img) {
+        final int width = img.getWidth();
+        final int height = img.getHeight();
+        final ByteBuffer buffer = getPixelBuffer(width * height * TEXEL_SIZE);
+
+        switch (img.getType()) {
+            case BufferedImage.TYPE_4BYTE_ABGR:
+                final byte[] abgr = getBackingArray(img, 4);
+                if (abgr == null) break;
+                for (int i = 0, p = 0; p < abgr.length; i += TEXEL_SIZE, p += 4) {
+                    buffer.put(i + RED_CHANNEL_OFFSET, abgr[p + 3]);
+                    buffer.put(i + GREEN_CHANNEL_OFFSET, abgr[p + 2]);
+                    buffer.put(i + BLUE_CHANNEL_OFFSET, abgr[p + 1]);
+                    buffer.put(i + ALPHA_CHANNEL_OFFSET, abgr[p]);
+                }
+                return buffer;
+            case BufferedImage.TYPE_3BYTE_BGR:
+                final byte[] bgr = getBackingArray(img, 3);
+                if (bgr == null) break;
+                for (int i = 0, p = 0; p < bgr.length; i += TEXEL_SIZE, p += 3) {
+                    buffer.put(i + RED_CHANNEL_OFFSET, bgr[p + 2]);
+                    buffer.put(i + GREEN_CHANNEL_OFFSET, bgr[p + 1]);
+                    buffer.put(i + BLUE_CHANNEL_OFFSET, bgr[p]);
+                    buffer.put(i + ALPHA_CHANNEL_OFFSET, (byte) 0xff);
+                }
+                return buffer;
+        }
+
+        if (rowPixels.length < width) rowPixels = new int[width];
+        for (int y = 0, i = 0; y < height; y++) {
+            img.getRGB(0, y, width, 1, rowPixels, 0, width);
+            for (int x = 0; x < width; x++, i += TEXEL_SIZE) {
+                final int argb = rowPixels[x];
+                buffer.put(i + RED_CHANNEL_OFFSET, (byte) (argb >> 16));
+                buffer.put(i + GREEN_CHANNEL_OFFSET, (byte) (argb >> 8));
+                buffer.put(i + BLUE_CHANNEL_OFFSET, (byte) argb);
+                buffer.put(i + ALPHA_CHANNEL_OFFSET, (byte) (argb >> 24));
+            }
+        }
+        return buffer;
+    }
+
+    /**
+     * Byte array behind the image when it holds exactly its own pixels, tightly packed, null for sub images and
+     * other layouts.
+     */
+    private static byte[] getBackingArray(BufferedImage img, int pixelSize) {
+        final WritableRaster raster = img.getRaster();
+        if (!(raster.getDataBuffer() instanceof DataBufferByte)) return null;
+        if (!(raster.getSampleModel() instanceof PixelInterleavedSampleModel)) return null;
+        if (raster.getSampleModelTranslateX() != 0 || raster.getSampleModelTranslateY() != 0) return null;
+
+        final PixelInterleavedSampleModel sampleModel = (PixelInterleavedSampleModel) raster.getSampleModel();
+        final DataBufferByte dataBuffer = (DataBufferByte) raster.getDataBuffer();
+        final byte[] data = dataBuffer.getData();
+        if (sampleModel.getPixelStride() != pixelSize
+                || sampleModel.getScanlineStride() != img.getWidth() * pixelSize
+                || dataBuffer.getOffset() != 0
+                || data.length != img.getWidth() * img.getHeight() * pixelSize) return null;
+        return data;
+    }
+
+    private static ByteBuffer getPixelBuffer(int size) {
+        if (pixelBuffer == null || pixelBuffer.capacity() < size) {
+            pixelBuffer = BufferUtils.createByteBuffer(size);
+        }
+        pixelBuffer.clear();
+        pixelBuffer.limit(size);
+        return pixelBuffer;
+    }
+
     private static BufferedImage getImageFromPath(String path) {
 
         if (path.equals(missingTextureName)) {
@@ -3,48 +3,92 @@ package utils;
 import org.lwjgl.util.vector.Vector2f;
 import org.lwjgl.util.vector.Vector3f;
 
-import java.util.ArrayDeque;
-import java.util.Queue;
+/**
+ * Vector math without hidden allocation. The primitive kernels take and return plain floats, the array kernels
+ * read and write packed xyz triples at an offset and the vector variants write into a destination passed by the
+ * caller, so temporaries can be reused or scalar replaced by the JIT.
+ */
+public final class VectorUtils {
 
+    public static float dot(float ax, float ay, float az, float bx, float by, float bz) {
+        return ax * bx + ay * by + az * bz;
+    }
 
-public final class VectorUtils {
+    public static float length(float x, float y, float z) {
+        return (float) Math.sqrt(x * x + y * y + z * z);
+    }
+
+    public static float length(float x, float y) {
+        return (float) Math.sqrt(x * x + y * y);
+    }
 
-    private static final Queue<Vector2f> vectors2fList = new ArrayDeque<>();
-    private static final Queue<Vector3f> vectors3fList = new ArrayDeque<>();
+    public static float distance(float ax, float ay, float az, float bx, float by, float bz) {
+        return length(bx - ax, by - ay, bz - az);
+    }
+
+    public static float distance(float ax, float ay, float bx, float by) {
+        return length(bx - ax, by - ay);
+    }
 
-    public static void clear() {
-        vectors2fList.clear();
-        vectors3fList.clear();
+    public static float dot(float[] a, int aOffset, float[] b, int bOffset) {
+        return dot(a[aOffset], a[aOffset + 1], a[aOffset + 2], b[bOffset], b[bOffset + 1], b[bOffset + 2]);
     }
 
-    public static Vector2f create(float i, float j) {
-        Vector2f vec = new Vector2f(i, j);
-        vectors2fList.add(vec);
-        return vec;
+    public static void subtract(float[] a, int aOffset, float[] b, int bOffset, float[] dest, int destOffset) {
+        dest[destOffset] = a[aOffset] - b[bOffset];
+        dest[destOffset + 1] = a[aOffset + 1] - b[bOffset + 1];
+        dest[destOffset + 2] = a[aOffset + 2] - b[bOffset + 2];
     }
 
-    public static Vector3f create(float i, float j, float k) {
-        Vector3f vec = new Vector3f(i, j, k);
-        vectors3fList.add(vec);
-        return vec;
+    /**
+     * Writes the cross product of a and b, {@code dest} may alias either input.
+     */
+    public static void cross(float[] a, int aOffset, float[] b, int bOffset, float[] dest, int destOffset) {
+        final float ax = a[aOffset];
+        final float ay = a[aOffset + 1];
+        final float az = a[aOffset + 2];
+        final float bx = b[bOffset];
+        final float by = b[bOffset + 1];
+        final float bz = b[bOffset + 2];
+        dest[destOffset] = ay * bz - az * by;
+        dest[destOffset + 1] = az * bx - ax * bz;
+        dest[destOffset + 2] = ax * by - ay * bx;
+    }
+
+    /**
+     * Normalises the triple in place and returns its previous length, zero vectors are left alone.
+     */
+    public static float normalize(float[] v, int offset) {
+        final float length = length(v[offset], v[offset + 1], v[offset + 2]);
+        if (length > 0f) {
+            final float inverse = 1f / length;
+            v[offset] *= inverse;
+            v[offset + 1] *= inverse;
+            v[offset + 2] *= inverse;
+        }
+        return length;
     }
 
     public static float getDistance(Vector3f from, Vector3f to) {
-        Vector3f deltaVec = create(to.x - from.x, to.y - from.y, to.z - from.z);
-        return deltaVec.length();
+        return distance(from.x, from.y, from.z, to.x, to.y, to.z);
     }
 
     public static float getDistance(Vector2f from, Vector2f to) {
-        Vector2f deltaVec = create(to.x - from.x, to.y - from.y);
-        return deltaVec.length();
+        return distance(from.x, from.y, to.x, to.y);
     }
 
     public static float getDotProduct(Vector3f vecV, Vector3f vecU) {
-        return vecV.x * vecU.x + vecV.y * vecU.y + vecV.z * vecU.z;
+        return dot(vecV.x, vecV.y, vecV.z, vecU.x, vecU.y, vecU.z);
     }
 
-    public static Vector3f getCrossProduct(Vector3f vecV, Vector3f vecU) {
-        return create(vecV.y * vecU.z - vecV.z * vecU.y, vecV.x * vecU.z + vecV.z * vecU.x, vecV.x * vecU.y - vecV.y * vecV.x);
+    /**
+     * Writes the cross product of vecV and vecU into {@code dest} and returns it, {@code dest} may be one of the inputs.
+     */
+    public static Vector3f getCrossProduct(Vector3f vecV, Vector3f vecU, Vector3f dest) {
+        final float x = vecV.y * vecU.z - vecV.z * vecU.y;
+        final float y = vecV.z * vecU.x - vecV.x * vecU.z;
+        final float z = vecV.x * vecU.y - vecV.y * vecU.x;
+        dest.set(x, y, z);
+        return dest;
     }
-
 }
@@ -1,9 +1,6 @@
 #version 330
 
-#define AMBIENT_C 0
-#define DIFFUSE_C 1
-#define SPECULAR_C 2
-#define EMISSIVE_C 3
+#define MAX_MATERIALS 256
 
 struct GOut{
 	vec2 texcoord;
@@ -34,12 +31,16 @@ struct MaterialStandard
 };
 
 uniform Textures u_textures;
-uniform mat4 u_material_table;
+layout(std140) uniform Materials{
+    MaterialStandard u_materials[MAX_MATERIALS];
+};
+uniform int u_material_index;
 
 in Light light;
 in vec3 look_direction;
 
 in GOut v_out;
+in vec4 v_instance_color;
 
 out vec4 frag_color;
 
@@ -62,10 +63,8 @@ void phongLighting(inout MaterialStandard mat, in Light light, in vec3 normal, i
 
 void main(){
     /*Material*/
-    material.ambient = u_material_table[AMBIENT_C];
-    material.diffuse = u_material_table[DIFFUSE_C];
-    material.specular = u_material_table[SPECULAR_C];
-    material.emissive = u_material_table[EMISSIVE_C];
+    material = u_materials[u_material_index];
+    material.diffuse *= v_instance_color;
 
     vec4 ambient = texture(u_textures.ambient, v_out.texcoord) * material.ambient;
     material.ambient = ambient;
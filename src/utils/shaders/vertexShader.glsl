@@ -11,6 +11,12 @@ struct Matrices{
     mat4 p_matrix;
 };
 
+struct Quantization{
+    vec3 position_offset;
+    vec3 position_scale;
+    bool octahedral_normals;
+};
+
 struct GOut{
 	vec2 texcoord;
 	vec3 world_position;
@@ -25,7 +31,11 @@ struct Light
 };
 
 layout(location = 0) in Vertex a_vertex;
+layout(location = 3) in mat4 a_instance_matrix;
+layout(location = 7) in vec4 a_instance_color;
 uniform Matrices u_matrices;
+uniform Quantization u_quantization;
+uniform bool u_instanced;
 
 const vec3 light_position = vec3(0.0, 4.0, 0.0);
 const vec3 light_color = vec3(1.0, 1.0, 1.0);
@@ -33,17 +43,31 @@ const vec3 light_color = vec3(1.0, 1.0, 1.0);
 out Light light;
 out vec3 look_direction;
 out GOut v_out;
+out vec4 v_instance_color;
+
+vec3 decodeOctahedral(vec2 encoded){
+    vec3 normal = vec3(encoded, 1.0 - abs(encoded.x) - abs(encoded.y));
+    float fold = max(-normal.z, 0.0);
+    normal.x += normal.x >= 0.0 ? -fold : fold;
+    normal.y += normal.y >= 0.0 ? -fold : fold;
+    return normalize(normal);
+}
 
 void main(){
-    vec4 world_position = u_matrices.mv_matrix * vec4(a_vertex.position, 1.0);
+    vec3 position = a_vertex.position * u_quantization.position_scale + u_quantization.position_offset;
+    vec3 normal = u_quantization.octahedral_normals ? decodeOctahedral(a_vertex.normal.xy) : a_vertex.normal;
+
+    mat4 mv_matrix = u_instanced ? a_instance_matrix : u_matrices.mv_matrix;
+    vec4 world_position = mv_matrix * vec4(position, 1.0);
     
-    look_direction = normalize(world_position - inverse(u_matrices.mv_matrix)[3]).xyz;
+    look_direction = normalize(world_position - inverse(mv_matrix)[3]).xyz;
     light.position = light_position;
     light.direction = normalize(world_position.xyz - light.position);
     light.color = light_color;
 
     v_out.texcoord = a_vertex.texcoord;
-    v_out.world_normal = normalize(u_matrices.mv_matrix * vec4(a_vertex.normal, 0.0)).xyz;
+    v_out.world_normal = normalize(mv_matrix * vec4(normal, 0.0)).xyz;
+    v_instance_color = a_instance_color;
     v_out.world_position = world_position.xyz;
 	
 	gl_Position = u_matrices.p_matrix * world_position;
@@ -0,0 +1,146 @@
+package geometry;
+
+import org.junit.jupiter.api.Test;
+import org.lwjgl.BufferUtils;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MeshOptimizerTest {
+
+    private static final int STRIDE = 8;
+    private static final int ID = 3;
+    private static final int GRID = 64;
+
+    @Test
+    void optimizeImprovesCacheStatistics() {
+        final FloatBuffer vertices = createGridVertices();
+        final IntBuffer indices = createShuffledGridIndices(new Random(3));
+
+        final MeshOptimizer.Statistics statistics = new MeshOptimizer().optimize(vertices, indices, STRIDE);
+
+        assertTrue(statistics.getAcmrAfter() < statistics.getAcmrBefore(), statistics.toString());
+        assertTrue(statistics.getAtvrAfter() < statistics.getAtvrBefore(), statistics.toString());
+        assertTrue(statistics.getAcmrAfter() < 1f, statistics.toString());
+    }
+
+    @Test
+    void optimizeKeepsTrianglesAndWinding() {
+        final FloatBuffer vertices = createGridVertices();
+        final IntBuffer indices = createShuffledGridIndices(new Random(5));
+        final long[] before = triangles(vertices, indices);
+
+        new MeshOptimizer().optimize(vertices, indices, STRIDE);
+
+        assertArrayEquals(before, triangles(vertices, indices));
+    }
+
+    @Test
+    void vertexCacheOrderKeepsTriangles() {
+        final IntBuffer buffer = createShuffledGridIndices(new Random(7));
+        final int[] indices = new int[buffer.remaining()];
+        buffer.get(indices);
+        final long[] before = triangles(indices);
+        final int vertexCount = (GRID + 1) * (GRID + 1);
+        final float acmr = MeshOptimizer.computeAcmr(indices, indices.length, vertexCount, 16);
+
+        new MeshOptimizer().optimizeVertexCache(indices, indices.length, vertexCount);
+
+        assertArrayEquals(before, triangles(indices));
+        assertTrue(MeshOptimizer.computeAcmr(indices, indices.length, vertexCount, 16) < acmr);
+    }
+
+    @Test
+    void vertexFetchNumbersVerticesInOrderOfUse() {
+        final float[] vertices = {10f, 11f, 12f, 13f};
+        final int[] indices = {3, 1, 3, 0};
+
+        final int referenced = new MeshOptimizer().optimizeVertexFetch(vertices, 1, 4, indices, indices.length);
+
+        assertEquals(3, referenced);
+        assertArrayEquals(new int[]{0, 1, 0, 2}, indices);
+        assertEquals(13f, vertices[0]);
+        assertEquals(11f, vertices[1]);
+        assertEquals(10f, vertices[2]);
+        assertEquals(12f, vertices[3]);
+    }
+
+    @Test
+    void acmrOfAnUnsharedTriangleListIsThree() {
+        final int[] indices = {0, 1, 2, 3, 4, 5};
+
+        assertEquals(3f, MeshOptimizer.computeAcmr(indices, indices.length, 6, 16));
+        assertEquals(1f, MeshOptimizer.computeAtvr(indices, indices.length, 6, 16));
+    }
+
+    private static FloatBuffer createGridVertices() {
+        final int size = GRID + 1;
+        final FloatBuffer vertices = BufferUtils.createFloatBuffer(size * size * STRIDE);
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                final int base = (y * size + x) * STRIDE;
+                vertices.put(base, x);
+                vertices.put(base + 1, y);
+                vertices.put(base + 2, (x * 7 + y * 3) % 5);
+                vertices.put(base + ID, y * size + x);
+            }
+        }
+        return vertices;
+    }
+
+    private static IntBuffer createShuffledGridIndices(Random random) {
+        final int size = GRID + 1;
+        final int[] quads = new int[GRID * GRID];
+        for (int i = 0; i < quads.length; i++) quads[i] = i;
+        for (int i = quads.length - 1; i > 0; i--) {
+            final int j = random.nextInt(i + 1);
+            final int swap = quads[i];
+            quads[i] = quads[j];
+            quads[j] = swap;
+        }
+
+        final IntBuffer indices = BufferUtils.createIntBuffer(quads.length * 6);
+        for (int quad : quads) {
+            final int corner = quad / GRID * size + quad % GRID;
+            indices.put(corner).put(corner + 1).put(corner + size);
+            indices.put(corner + 1).put(corner + size + 1).put(corner + size);
+        }
+        indices.flip();
+        return indices;
+    }
+
+    /**
+     * Triangles as sorted keys of the original vertex ids, rotated so the smallest id comes first to keep winding.
+     */
+    private static long[] triangles(FloatBuffer vertices, IntBuffer indices) {
+        final int[] ids = new int[indices.remaining()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = (int) vertices.get(indices.get(indices.position() + i) * STRIDE + ID);
+        }
+        return triangles(ids);
+    }
+
+    private static long[] triangles(int[] indices) {
+        final long[] keys = new long[indices.length / 3];
+        for (int t = 0; t < keys.length; t++) {
+            final int a = indices[t * 3];
+            final int b = indices[t * 3 + 1];
+            final int c = indices[t * 3 + 2];
+            if (a <= b && a <= c) keys[t] = key(a, b, c);
+            else if (b <= c) keys[t] = key(b, c, a);
+            else keys[t] = key(c, a, b);
+        }
+        Arrays.sort(keys);
+        return keys;
+    }
+
+    private static long key(int a, int b, int c) {
+        return (long) a << 42 | (long) b << 21 | c;
+    }
+}
@@ -0,0 +1,138 @@
+package geometry.loaders;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MeshLoaderWaveFrontTest {
+
+    private static final int STRIDE = 8;
+    private static final int SYNTHETIC_VERTICES = 20000;
+    private static final int FAR_REFERENCE = 5000;
+
+    private Path assetRoot;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        assetRoot = Files.createTempDirectory("meshes");
+        Files.createDirectory(assetRoot.resolve("meshes"));
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(assetRoot)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+    }
+
+    @Test
+    void parallelParseOfAssetsMatchesSequential() {
+        final Path projectRoot = Paths.get(System.getProperty("user.dir"));
+        for (String mesh : new String[]{"Stalker.obj", "WhipperNude.obj"}) {
+            final Result sequential = load(projectRoot, mesh, false);
+            final Result parallel = load(projectRoot, mesh, true);
+
+            assertTrue(sequential.indices.length > 0, mesh);
+            assertArrayEquals(sequential.vertices, parallel.vertices, mesh);
+            assertArrayEquals(sequential.indices, parallel.indices, mesh);
+        }
+    }
+
+    @Test
+    void negativeIndicesResolveAcrossChunks() throws IOException {
+        final byte[] source = createRelativeObject().getBytes(StandardCharsets.US_ASCII);
+        Files.write(assetRoot.resolve("meshes/Relative.obj"), source);
+
+        final Result sequential = load(assetRoot, "Relative.obj", false);
+        final Result parallel = load(assetRoot, "Relative.obj", true);
+
+        assertArrayEquals(sequential.vertices, parallel.vertices);
+        assertArrayEquals(sequential.indices, parallel.indices);
+
+        int corner = 0;
+        for (int k = 2; k < SYNTHETIC_VERTICES; k++) {
+            assertCorner(sequential, corner++, k);
+            assertCorner(sequential, corner++, k - 1);
+            assertCorner(sequential, corner++, k - 2);
+            if (k >= FAR_REFERENCE && k % 7 == 0) {
+                assertCorner(sequential, corner++, k);
+                assertCorner(sequential, corner++, k - FAR_REFERENCE / 2);
+                assertCorner(sequential, corner++, k - FAR_REFERENCE);
+            }
+        }
+        assertEquals(corner, sequential.indices.length);
+    }
+
+    /**
+     * Vertex k sits at (k, 2k, 3k) with texture coordinate (k, 1) and normal (0, 0, k), every face refers back to
+     * the latest vertices through negative indices and some faces reach far enough back to cross chunk boundaries.
+     */
+    private static String createRelativeObject() {
+        final StringBuilder obj = new StringBuilder();
+        for (int k = 0; k < SYNTHETIC_VERTICES; k++) {
+            obj.append("v ").append(k).append(' ').append(2 * k).append(' ').append(3 * k).append('\n');
+            obj.append("vt ").append(k).append(" 1\n");
+            obj.append("vn 0 0 ").append(k).append('\n');
+            if (k < 2) continue;
+            obj.append("f -1/-1/-1 -2/-2/-2 -3/-3/-3\n");
+            if (k >= FAR_REFERENCE && k % 7 == 0) {
+                final int half = -FAR_REFERENCE / 2 - 1;
+                final int far = -FAR_REFERENCE - 1;
+                obj.append("f -1/-1/-1 ").append(half).append('/').append(half).append('/').append(half).append(' ')
+                        .append(far).append('/').append(far).append('/').append(far).append('\n');
+            }
+        }
+        return obj.toString();
+    }
+
+    private static void assertCorner(Result result, int corner, int k) {
+        final int base = result.indices[corner] * STRIDE;
+        assertEquals(k, result.vertices[base], 0f);
+        assertEquals(2 * k, result.vertices[base + 1], 0f);
+        assertEquals(3 * k, result.vertices[base + 2], 0f);
+        assertEquals(k, result.vertices[base + 3], 0f);
+        assertEquals(k, result.vertices[base + 7], 0f);
+    }
+
+    private static Result load(Path root, String mesh, boolean parallel) {
+        final MeshLoaderWaveFront loader = new MeshLoaderWaveFront();
+        loader.setAssetRoot(root);
+        if (parallel) {
+            loader.setParallelThreshold(1);
+            loader.setMinChunkSize(16 << 10);
+        } else loader.setParallelThreshold(Integer.MAX_VALUE);
+        loader.loadMesh(mesh);
+
+        final FloatBuffer vertices = loader.getVerticesBuffer();
+        final IntBuffer indices = loader.getIndicesBuffer();
+        final Result result = new Result(new float[vertices.remaining()], new int[indices.remaining()]);
+        vertices.get(result.vertices);
+        indices.get(result.indices);
+        return result;
+    }
+
+    private static final class Result {
+
+        private final float[] vertices;
+        private final int[] indices;
+
+        private Result(float[] v, int[] i) {
+            vertices = v;
+            indices = i;
+        }
+    }
+}
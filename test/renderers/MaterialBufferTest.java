@@ -0,0 +1,65 @@
+package renderers;
+
+import geometry.loaders.Material;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MaterialBufferTest {
+
+    private final MaterialBuffer buffer = MaterialBuffer.get();
+
+    @Test
+    void freedSlotIsReused() {
+        final Material first = new Material("first");
+        final Material second = new Material("second");
+        final Material third = new Material("third");
+        final int count = buffer.getMaterialCount();
+
+        final int firstSlot = buffer.register(first);
+        buffer.register(second);
+        buffer.unregister(first);
+        third.clearDirty();
+
+        assertEquals(firstSlot, buffer.register(third));
+        assertEquals(-1, first.getBufferIndex());
+        assertTrue(third.isDirty());
+        assertEquals(count + 2, buffer.getMaterialCount());
+
+        buffer.unregister(second);
+        buffer.unregister(third);
+        assertEquals(count, buffer.getMaterialCount());
+    }
+
+    @Test
+    void registersPastOnePage() {
+        final Material[] materials = new Material[MaterialBuffer.PAGE_MATERIALS + 1];
+        for (int i = 0; i < materials.length; i++) {
+            materials[i] = new Material("material" + i);
+            buffer.register(materials[i]);
+        }
+
+        assertEquals(materials.length, distinctSlots(materials));
+
+        for (Material material : materials) buffer.unregister(material);
+    }
+
+    @Test
+    void unregisteringAForeignSlotThrows() {
+        final Material material = new Material("foreign");
+        material.setBufferIndex(Integer.MAX_VALUE);
+
+        assertThrows(IllegalStateException.class, () -> buffer.unregister(material));
+    }
+
+    private static int distinctSlots(Material[] materials) {
+        final Set<Integer> slots = new HashSet<>();
+        for (Material material : materials) slots.add(material.getBufferIndex());
+        return slots.size();
+    }
+}
@@ -0,0 +1,145 @@
+package renderers;
+
+import geometry.LodChain;
+import geometry.Mesh;
+import geometry.VertexQuantizer;
+import geometry.loaders.Material;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.lwjgl.BufferUtils;
+import utils.GLStateCache;
+import utils.RecordingBackend;
+import utils.ShaderUtils;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class MeshRendererTest {
+
+    private GLStateCache previous;
+    private RecordingBackend backend;
+    private GLStateCache cache;
+    private FloatBuffer modelView;
+
+    @BeforeEach
+    void setUp() {
+        ShaderUtils.PROJECTION_MATRIX_UNIFORM = 1;
+        ShaderUtils.MODELVIEW_MATRIX_UNIFORM = 2;
+        ShaderUtils.SAMPLER_TEXTURE_AMBIENT_UNIFORM = 3;
+        ShaderUtils.SAMPLER_TEXTURE_DIFFUSE_UNIFORM = 4;
+        ShaderUtils.SAMPLER_TEXTURE_SPECULAR_UNIFORM = 5;
+        ShaderUtils.MATERIAL_INDEX_UNIFORM = 6;
+        ShaderUtils.POSITION_OFFSET_UNIFORM = 7;
+        ShaderUtils.POSITION_SCALE_UNIFORM = 8;
+        ShaderUtils.OCTAHEDRAL_NORMALS_UNIFORM = 9;
+        ShaderUtils.INSTANCED_UNIFORM = 10;
+
+        previous = GLStateCache.get();
+        backend = new RecordingBackend();
+        cache = new GLStateCache(backend);
+        GLStateCache.set(cache);
+
+        modelView = BufferUtils.createFloatBuffer(16);
+        for (int i = 0; i < 16; i++) modelView.put(i, i % 5 == 0 ? 1f : 0f);
+    }
+
+    @AfterEach
+    void tearDown() {
+        GLStateCache.set(previous);
+    }
+
+    @Test
+    void repeatedDrawOnlyIssuesTheDraw() {
+        final MeshRenderer renderer = createMesh(11, 12, 13).getRenderer();
+
+        renderer.draw(modelView, 0, 1f, 1f, 1f, 1f);
+        backend.clear();
+        cache.resetCounters();
+
+        renderer.draw(modelView, 0, 1f, 1f, 1f, 1f);
+
+        assertEquals(1, backend.getCalls().size());
+        assertEquals(1, backend.count("glDrawElements"));
+        assertEquals(1L, cache.getIssuedCalls());
+        assertEquals(19L, cache.getSkippedCalls());
+    }
+
+    @Test
+    void firstDrawBindsEverything() {
+        createMesh(11, 12, 13).getRenderer().draw(modelView, 0, 1f, 1f, 1f, 1f);
+
+        assertEquals(1, backend.count("glUseProgram"));
+        assertEquals(1, backend.count("glBindVertexArray"));
+        assertEquals(3, backend.count("glBindTexture"));
+        assertEquals(3, backend.count("glActiveTexture"));
+        assertEquals(2, backend.count("glUniformMatrix4"));
+        assertEquals(2, backend.count("glUniform3f"));
+        assertEquals(6, backend.count("glUniform1i"));
+        assertEquals(1, backend.count("glVertexAttrib4f"));
+        assertEquals(0L, cache.getSkippedCalls());
+    }
+
+    @Test
+    void changedModelViewOnlyIssuesTheMatrix() {
+        final MeshRenderer renderer = createMesh(11, 12, 13).getRenderer();
+
+        renderer.draw(modelView, 0, 1f, 1f, 1f, 1f);
+        backend.clear();
+        modelView.put(12, 5f);
+        renderer.draw(modelView, 0, 1f, 1f, 1f, 1f);
+
+        assertEquals(2, backend.getCalls().size());
+        assertEquals(1, backend.count("glUniformMatrix4"));
+        assertEquals(1, backend.count("glDrawElements"));
+    }
+
+    @Test
+    void sharedTexturesAreNotRebound() {
+        final MeshRenderer first = createMesh(11, 12, 13).getRenderer();
+        final MeshRenderer second = createMesh(14, 12, 13).getRenderer();
+
+        first.draw(modelView, 0, 1f, 1f, 1f, 1f);
+        backend.clear();
+        second.draw(modelView, 0, 1f, 1f, 1f, 1f);
+
+        assertEquals(0, backend.count("glUseProgram"));
+        assertEquals(0, backend.count("glBindVertexArray"));
+        assertEquals(1, backend.count("glBindTexture"));
+        assertEquals(1, backend.count("glActiveTexture"));
+        assertEquals(0, backend.count("glUniformMatrix4"));
+        assertEquals(1, backend.count("glDrawElements"));
+    }
+
+    @Test
+    void changedColourReissuesTheAttribute() {
+        final MeshRenderer renderer = createMesh(11, 12, 13).getRenderer();
+
+        renderer.draw(modelView, 0, 1f, 1f, 1f, 1f);
+        backend.clear();
+        renderer.draw(modelView, 0, 1f, 0f, 0f, 1f);
+
+        assertEquals(1, backend.count("glVertexAttrib4f"));
+        assertEquals(2, backend.getCalls().size());
+    }
+
+    private static Mesh createMesh(int ambient, int diffuse, int specular) {
+        final int stride = VertexQuantizer.SOURCE_STRIDE;
+        final FloatBuffer vertices = BufferUtils.createFloatBuffer(3 * stride);
+        vertices.put(0, 0f);
+        vertices.put(stride, 1f);
+        vertices.put(2 * stride + 1, 1f);
+        final IntBuffer indices = BufferUtils.createIntBuffer(3);
+        indices.put(0).put(1).put(2).flip();
+
+        final Material material = new Material("test");
+        material.setTextureMaps(ambient, diffuse, specular);
+
+        final Mesh mesh = new Mesh("triangle");
+        mesh.addComponent(material);
+        mesh.prepare(vertices, LodChain.of(indices));
+        return mesh;
+    }
+}
@@ -0,0 +1,155 @@
+package utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BufferAllocatorTest {
+
+    @Test
+    void allocatesAlignedBlocks() {
+        final BufferAllocator allocator = new BufferAllocator(1024);
+
+        final BufferAllocator.Block first = allocator.allocate(10, 1);
+        final BufferAllocator.Block second = allocator.allocate(16, 16);
+
+        assertEquals(0, first.getOffset());
+        assertEquals(16, second.getOffset());
+        assertEquals(26, allocator.getUsed());
+        assertEquals(2, allocator.getFreeRangeCount());
+    }
+
+    @Test
+    void freeCoalescesNeighbours() {
+        final BufferAllocator allocator = new BufferAllocator(300);
+        final BufferAllocator.Block a = allocator.allocate(100, 1);
+        final BufferAllocator.Block b = allocator.allocate(100, 1);
+        final BufferAllocator.Block c = allocator.allocate(100, 1);
+
+        allocator.free(a);
+        allocator.free(c);
+        assertEquals(2, allocator.getFreeRangeCount());
+
+        allocator.free(b);
+        assertEquals(1, allocator.getFreeRangeCount());
+        assertEquals(300, allocator.getLargestFreeRange());
+        assertEquals(0, allocator.getUsed());
+        assertEquals(0f, allocator.getFragmentation());
+    }
+
+    @Test
+    void picksTheSmallestFittingRange() {
+        final BufferAllocator allocator = new BufferAllocator(400);
+        final BufferAllocator.Block a = allocator.allocate(100, 1);
+        allocator.allocate(100, 1);
+        final BufferAllocator.Block c = allocator.allocate(50, 1);
+        allocator.allocate(150, 1);
+
+        allocator.free(a);
+        allocator.free(c);
+
+        assertEquals(200, allocator.allocate(40, 1).getOffset());
+    }
+
+    @Test
+    void fragmentationReportsTheUnusableShare() {
+        final BufferAllocator allocator = new BufferAllocator(400);
+        final List<BufferAllocator.Block> blocks = new ArrayList<>();
+        for (int i = 0; i < 4; i++) blocks.add(allocator.allocate(100, 1));
+
+        allocator.free(blocks.get(0));
+        allocator.free(blocks.get(2));
+
+        assertEquals(0.5f, allocator.getFragmentation(), 1e-6f);
+        assertNull(allocator.allocate(150, 1));
+    }
+
+    @Test
+    void compactionPacksBlocksAndMovesTheirData() {
+        final BufferAllocator allocator = new BufferAllocator(400);
+        final List<BufferAllocator.Block> blocks = new ArrayList<>();
+        for (int i = 0; i < 4; i++) blocks.add(allocator.allocate(100, 1));
+        allocator.free(blocks.get(0));
+        allocator.free(blocks.get(2));
+
+        final List<int[]> moves = new ArrayList<>();
+        allocator.compact(400, (from, to, size) -> moves.add(new int[]{from, to, size}));
+
+        assertEquals(0, blocks.get(1).getOffset());
+        assertEquals(100, blocks.get(3).getOffset());
+        assertEquals(2, moves.size());
+        assertEquals(100, moves.get(0)[0]);
+        assertEquals(300, moves.get(1)[0]);
+        assertEquals(1, allocator.getFreeRangeCount());
+        assertEquals(0f, allocator.getFragmentation());
+        assertNotNull(allocator.allocate(150, 1));
+    }
+
+    @Test
+    void compactedSizeMatchesCompactionWithMixedAlignment() {
+        final Random random = new Random(7);
+        final BufferAllocator allocator = new BufferAllocator(1 << 16);
+        final List<BufferAllocator.Block> blocks = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            final BufferAllocator.Block block = allocator.allocate(1 + random.nextInt(200), 1 << random.nextInt(5));
+            if (block != null) blocks.add(block);
+            if (!blocks.isEmpty() && random.nextInt(3) == 0) {
+                allocator.free(blocks.remove(random.nextInt(blocks.size())));
+            }
+        }
+
+        final int required = allocator.getCompactedSize(64, 16);
+        assertEquals(required, allocator.getCompactedSize(64, 16));
+
+        allocator.compact(required, (from, to, size) -> { });
+
+        final BufferAllocator.Block last = allocator.allocate(64, 16);
+        assertNotNull(last);
+        assertEquals(required, last.getOffset() + last.getSize());
+        assertNull(allocator.allocate(16, 16));
+        assertOrderedAndDisjoint(blocks);
+    }
+
+    @Test
+    void compactionThatDoesNotFitThrows() {
+        final BufferAllocator allocator = new BufferAllocator(100);
+        allocator.allocate(60, 1);
+
+        assertThrows(IllegalStateException.class, () -> allocator.compact(50, (from, to, size) -> { }));
+    }
+
+    @Test
+    void freeingAForeignBlockThrows() {
+        final BufferAllocator allocator = new BufferAllocator(100);
+        final BufferAllocator.Block block = new BufferAllocator(100).allocate(10, 1);
+
+        assertThrows(IllegalStateException.class, () -> allocator.free(block));
+    }
+
+    @Test
+    void growExtendsTheTrailingFreeRange() {
+        final BufferAllocator allocator = new BufferAllocator(100);
+        allocator.allocate(60, 1);
+        allocator.grow(200);
+
+        assertEquals(1, allocator.getFreeRangeCount());
+        assertEquals(140, allocator.getLargestFreeRange());
+    }
+
+    private static void assertOrderedAndDisjoint(List<BufferAllocator.Block> blocks) {
+        final List<BufferAllocator.Block> sorted = new ArrayList<>(blocks);
+        sorted.sort((a, b) -> Integer.compare(a.getOffset(), b.getOffset()));
+        for (int i = 1; i < sorted.size(); i++) {
+            final BufferAllocator.Block previous = sorted.get(i - 1);
+            assertTrue(previous.getOffset() + previous.getSize() <= sorted.get(i).getOffset());
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package utils;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.FloatBuffer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class GLStateCacheTest {
+
+    private static final int GL_TEXTURE_2D = 0x0DE1;
+    private static final int GL_BLEND = 0x0BE2;
+    private static final int GL_TRIANGLES = 0x0004;
+    private static final int GL_UNSIGNED_INT = 0x1405;
+    private static final int GL_ARRAY_BUFFER = 0x8892;
+    private static final int GL_UNIFORM_BUFFER = 0x8A11;
+
+    private RecordingBackend backend;
+    private GLStateCache cache;
+
+    @BeforeEach
+    void setUp() {
+        backend = new RecordingBackend();
+        cache = new GLStateCache(backend);
+    }
+
+    @Test
+    void repeatedProgramIsSkipped() {
+        cache.useProgram(3);
+        cache.useProgram(3);
+        cache.useProgram(4);
+
+        assertEquals(2, backend.count("glUseProgram"));
+        assertEquals(2L, cache.getIssuedCalls());
+        assertEquals(1L, cache.getSkippedCalls());
+    }
+
+    @Test
+    void repeatedVertexArrayIsSkipped() {
+        cache.bindVertexArray(1);
+        cache.bindVertexArray(1);
+        cache.bindVertexArray(2);
+        cache.bindVertexArray(2);
+
+        assertEquals(2, backend.count("glBindVertexArray"));
+        assertEquals(2L, cache.getSkippedCalls());
+    }
+
+    @Test
+    void repeatedTextureIsSkippedPerUnit() {
+        cache.bindTexture(0, GL_TEXTURE_2D, 5);
+        cache.bindTexture(1, GL_TEXTURE_2D, 6);
+        cache.bindTexture(0, GL_TEXTURE_2D, 5);
+        cache.bindTexture(1, GL_TEXTURE_2D, 6);
+
+        assertEquals(2, backend.count("glBindTexture"));
+        assertEquals(2, backend.count("glActiveTexture"));
+        assertEquals(4L, cache.getIssuedCalls());
+        assertEquals(2L, cache.getSkippedCalls());
+    }
+
+    @Test
+    void activeTextureIsOnlySelectedWhenTheUnitChanges() {
+        cache.bindTexture(2, GL_TEXTURE_2D, 5);
+        cache.bindTexture(2, GL_TEXTURE_2D, 6);
+
+        assertEquals(1, backend.count("glActiveTexture"));
+        assertEquals(2, backend.count("glBindTexture"));
+    }
+
+    @Test
+    void repeatedUniformsAreSkippedPerProgram() {
+        final FloatBuffer matrix = FloatBuffer.allocate(16);
+        for (int i = 0; i < 16; i++) matrix.put(i, i);
+
+        cache.useProgram(1);
+        cache.uniform1i(0, 7);
+        cache.uniform1i(0, 7);
+        cache.uniform3f(1, 1f, 2f, 3f);
+        cache.uniform3f(1, 1f, 2f, 3f);
+        cache.uniformMatrix4(2, matrix);
+        cache.uniformMatrix4(2, matrix);
+
+        assertEquals(1, backend.count("glUniform1i"));
+        assertEquals(1, backend.count("glUniform3f"));
+        assertEquals(1, backend.count("glUniformMatrix4"));
+
+        cache.useProgram(2);
+        cache.uniform1i(0, 7);
+        cache.useProgram(1);
+        cache.uniform1i(0, 7);
+
+        assertEquals(2, backend.count("glUniform1i"));
+    }
+
+    @Test
+    void changedUniformIsIssued() {
+        final FloatBuffer matrix = FloatBuffer.allocate(16);
+
+        cache.useProgram(1);
+        cache.uniformMatrix4(0, matrix);
+        matrix.put(5, 1f);
+        cache.uniformMatrix4(0, matrix);
+        cache.uniform1i(1, 1);
+        cache.uniform1i(1, 2);
+
+        assertEquals(2, backend.count("glUniformMatrix4"));
+        assertEquals(2, backend.count("glUniform1i"));
+    }
+
+    @Test
+    void repeatedCapabilityIsSkipped() {
+        cache.setCapability(GL_BLEND, true);
+        cache.setCapability(GL_BLEND, true);
+        cache.setCapability(GL_BLEND, false);
+        cache.setCapability(GL_BLEND, false);
+
+        assertEquals(1, backend.count("glEnable"));
+        assertEquals(1, backend.count("glDisable"));
+        assertEquals(2L, cache.getSkippedCalls());
+    }
+
+    @Test
+    void attributeArraysAreTrackedPerVertexArray() {
+        cache.bindVertexArray(1);
+        cache.setVertexAttribArrays(0b11);
+        cache.bindVertexArray(2);
+        cache.setVertexAttribArrays(0b1);
+        cache.bindVertexArray(1);
+        cache.setVertexAttribArrays(0b11);
+
+        assertEquals(3, backend.count("glEnableVertexAttribArray"));
+        assertEquals(0, backend.count("glDisableVertexAttribArray"));
+    }
+
+    @Test
+    void attributeValueIsReissuedAfterADrawSourcedIt() {
+        cache.bindVertexArray(2);
+        cache.setVertexAttribArrays(1 | 1 << 7);
+        cache.bindVertexArray(3);
+        cache.setVertexAttribArrays(1);
+        cache.vertexAttrib4f(7, 1f, 1f, 1f, 1f);
+        cache.vertexAttrib4f(7, 1f, 1f, 1f, 1f);
+        assertEquals(1, backend.count("glVertexAttrib4f"));
+
+        cache.bindVertexArray(2);
+        cache.drawElementsInstanced(GL_TRIANGLES, 3, GL_UNSIGNED_INT, 0L, 2);
+        cache.bindVertexArray(3);
+        cache.vertexAttrib4f(7, 1f, 1f, 1f, 1f);
+
+        assertEquals(2, backend.count("glVertexAttrib4f"));
+    }
+
+    @Test
+    void invalidateIssuesEverythingAgain() {
+        cache.useProgram(1);
+        cache.bindVertexArray(1);
+        cache.bindTexture(0, GL_TEXTURE_2D, 1);
+        cache.invalidate();
+        cache.useProgram(1);
+        cache.bindVertexArray(1);
+        cache.bindTexture(0, GL_TEXTURE_2D, 1);
+
+        assertEquals(2, backend.count("glUseProgram"));
+        assertEquals(2, backend.count("glBindVertexArray"));
+        assertEquals(2, backend.count("glBindTexture"));
+        assertEquals(0L, cache.getSkippedCalls());
+    }
+
+    @Test
+    void repeatedBufferIsSkippedPerTarget() {
+        cache.bindBuffer(GL_ARRAY_BUFFER, 4);
+        cache.bindBuffer(GL_UNIFORM_BUFFER, 4);
+        cache.bindBuffer(GL_ARRAY_BUFFER, 4);
+        cache.bindBuffer(GL_UNIFORM_BUFFER, 4);
+
+        assertEquals(2, backend.count("glBindBuffer"));
+        assertEquals(2L, cache.getSkippedCalls());
+    }
+
+    @Test
+    void bufferRangeBindsTheTargetToo() {
+        cache.bindBufferRange(GL_UNIFORM_BUFFER, 0, 4, 0L, 256L);
+        cache.bindBufferRange(GL_UNIFORM_BUFFER, 0, 4, 0L, 256L);
+        cache.bindBuffer(GL_UNIFORM_BUFFER, 4);
+        cache.bindBufferRange(GL_UNIFORM_BUFFER, 0, 4, 256L, 256L);
+
+        assertEquals(2, backend.count("glBindBufferRange"));
+        assertEquals(0, backend.count("glBindBuffer"));
+    }
+
+    @Test
+    void drawsAreAlwaysIssued() {
+        cache.drawElements(GL_TRIANGLES, 3, GL_UNSIGNED_INT, 0L);
+        cache.drawElements(GL_TRIANGLES, 3, GL_UNSIGNED_INT, 0L);
+
+        assertEquals(2L, cache.getDrawCalls());
+        assertEquals(2, backend.count("glDrawElements"));
+    }
+}